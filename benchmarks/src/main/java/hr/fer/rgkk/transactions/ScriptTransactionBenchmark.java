@@ -0,0 +1,148 @@
+package hr.fer.rgkk.transactions;
+
+import hr.fer.rgkk.transactions.CoinToss.CoinTossChoice;
+import hr.fer.rgkk.transactions.CoinToss.WinningPlayer;
+import hr.fer.rgkk.transactions.TimeLock.ScriptSigType;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.InsufficientMoneyException;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.crypto.TransactionSignature;
+import org.bitcoinj.params.RegTestParams;
+import org.bitcoinj.script.Script;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of each step of a script round trip, for every script type, against a {@link StandInWallet}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+// The validation and signature caches would answer every testScript after the first
+@Fork(value = 1, jvmArgsAppend = {
+        "-Dlog4j.configurationFile=log4j2-benchmarks.xml",
+        "-Drgkk.validationCache.size=0",
+        "-Drgkk.signatureCache.entries=0"
+})
+public class ScriptTransactionBenchmark {
+
+    // More variants than the sighash cache holds, so signing always hashes
+    private static final int VARIANTS = 64;
+
+    public enum Type {
+        PAY_TO_PUB_KEY, PAY_TO_PUB_KEY_HASH, TIME_LOCK, COIN_TOSS
+    }
+
+    @Param
+    private Type type;
+
+    private final NetworkParameters parameters = RegTestParams.get();
+    private StandInWallet wallet;
+    private ScriptTransaction scriptTransaction;
+    private Script lockingScript;
+    private Transaction redemptionTransaction;
+    private Script unlockingScript;
+    private Transaction[] variants;
+    private int next;
+    private final ECKey key = new ECKey();
+
+    @Setup
+    public void setUp() throws Exception {
+        Context.propagate(new Context(parameters));
+        wallet = new StandInWallet(parameters);
+        scriptTransaction = create(type, wallet.getWalletKit(), parameters);
+        lockingScript = scriptTransaction.createLockingScript();
+
+        // The funding transaction is never completed, the steps below don't need it to be
+        Transaction funding = new Transaction(parameters);
+        funding.addOutput(Coin.CENT, lockingScript);
+        variants = new Transaction[VARIANTS];
+        for (int i = 0; i < VARIANTS; i++) {
+            variants[i] = redemption(funding.getOutput(0));
+            variants[i].setLockTime(scriptTransaction.getNLockTime() + i);
+        }
+        redemptionTransaction = redemption(funding.getOutput(0));
+        unlockingScript = scriptTransaction.createUnlockingScript(redemptionTransaction);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        wallet.close();
+    }
+
+    @Benchmark
+    public Script createLockingScript() {
+        return scriptTransaction.createLockingScript();
+    }
+
+    @Benchmark
+    public Script createUnlockingScript() {
+        return scriptTransaction.createUnlockingScript(nextVariant());
+    }
+
+    @Benchmark
+    public TransactionSignature sign() {
+        return scriptTransaction.sign(nextVariant(), key);
+    }
+
+    @Benchmark
+    public void testScript() {
+        scriptTransaction.testScript(lockingScript, unlockingScript, redemptionTransaction);
+    }
+
+    /**
+     * Everything {@code ScriptTest} does short of broadcasting: coin selection, both transactions, the check.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public Transaction buildAndVerify() throws InsufficientMoneyException {
+        Script script = scriptTransaction.createLockingScript();
+        Transaction transaction = scriptTransaction.createOutgoingTransaction(script, Coin.CENT);
+        TransactionOutput output = null;
+        for (TransactionOutput candidate : transaction.getOutputs()) {
+            if (candidate.getScriptPubKey().equals(script)) {
+                output = candidate;
+            }
+        }
+        Transaction redemption = redemption(output);
+        scriptTransaction.testScript(script, scriptTransaction.createUnlockingScript(redemption), redemption);
+        return redemption;
+    }
+
+    private Transaction redemption(TransactionOutput output) {
+        Transaction redemption = scriptTransaction.createUnsignedRedemptionTransaction(
+                output, scriptTransaction.getReceiveAddress()
+        );
+        redemption.getInput(0).setSequenceNumber(scriptTransaction.getNSequence());
+        redemption.setLockTime(scriptTransaction.getNLockTime());
+        return redemption;
+    }
+
+    private Transaction nextVariant() {
+        next = (next + 1) % VARIANTS;
+        return variants[next];
+    }
+
+    private static ScriptTransaction create(Type type, WalletKit walletKit, NetworkParameters parameters) {
+        switch (type) {
+            case PAY_TO_PUB_KEY:
+                return new PayToPubKey(walletKit, parameters);
+            case PAY_TO_PUB_KEY_HASH:
+                return new PayToPubKeyHash(walletKit, parameters);
+            case TIME_LOCK:
+                return new TimeLock(walletKit, parameters, ScriptSigType.ALICE_AND_BOB);
+            case COIN_TOSS:
+                return CoinToss.of(walletKit, parameters, CoinTossChoice.ZERO, CoinTossChoice.ONE, WinningPlayer.HEAD);
+            default:
+                throw new IllegalArgumentException("Unknown script type " + type);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package hr.fer.rgkk.transactions;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.RegTestParams;
+import org.bitcoinj.script.ScriptBuilder;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Signature hashes of every input of a sweep, through bitcoinj and through {@link SighashEngine}.
+ * <p>
+ * Each operation is a whole sweep, bitcoinj takes seconds at 5,000 inputs so every run is a single shot.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configurationFile=log4j2-benchmarks.xml")
+public class SighashBenchmark {
+
+    @Param({"100", "1000", "5000"})
+    private int inputs;
+
+    private Transaction transaction;
+    private byte[] scriptCode;
+
+    @Setup
+    public void setUp() {
+        NetworkParameters parameters = RegTestParams.get();
+        Context.propagate(new Context(parameters));
+        transaction = new Transaction(parameters);
+        for (int i = 0; i < inputs; i++) {
+            transaction.addInput(Sha256Hash.of(Integer.toString(i).getBytes()), 0, new ScriptBuilder().build());
+        }
+        transaction.addOutput(Coin.COIN, new ECKey().toAddress(parameters));
+        scriptCode = ScriptBuilder.createOutputScript(new ECKey().toAddress(parameters)).getProgram();
+    }
+
+    @Benchmark
+    public void bitcoinj(Blackhole blackhole) {
+        for (int i = 0; i < inputs; i++) {
+            blackhole.consume(transaction.hashForSignature(i, scriptCode, (byte) Transaction.SigHash.ALL.value));
+        }
+    }
+
+    @Benchmark
+    public void engine(Blackhole blackhole) {
+        // Built for every sweep, as it would be for a freshly laid out transaction
+        SighashEngine engine = new SighashEngine(transaction);
+        for (int i = 0; i < inputs; i++) {
+            blackhole.consume(engine.hashForSignature(i, scriptCode, (byte) Transaction.SigHash.ALL.value));
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package hr.fer.rgkk.transactions;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.wallet.Wallet;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * A throwaway wallet synced from an embedded {@link RegTestPeer} and funded with several outputs, so that
+ * benchmarks can select coins without a real node.
+ */
+final class StandInWallet implements AutoCloseable {
+
+    private static final int FUNDING_OUTPUTS = 8;
+
+    private final RegTestPeer peer;
+    private final Path directory;
+    private final WalletKit walletKit;
+
+    StandInWallet(NetworkParameters parameters) throws Exception {
+        this.peer = new RegTestPeer(parameters);
+        this.directory = Files.createTempDirectory("benchmark-wallet");
+        this.walletKit = new WalletKit(parameters, directory.toFile(), "password", peer);
+        Wallet wallet = walletKit.getWallet();
+        for (int i = 0; i < FUNDING_OUTPUTS; i++) {
+            peer.fund(wallet.currentReceiveAddress(), Coin.COIN);
+        }
+        wallet.getBalanceFuture(Coin.COIN.multiply(FUNDING_OUTPUTS), Wallet.BalanceType.AVAILABLE)
+                .get(30, TimeUnit.SECONDS);
+    }
+
+    WalletKit getWalletKit() {
+        return walletKit;
+    }
+
+    @Override
+    public void close() throws Exception {
+        walletKit.close();
+        peer.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package hr.fer.rgkk.transactions;
+
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ScriptException;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptChunk;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.bitcoinj.script.ScriptOpCodes.*;
+
+/**
+ * Verifies many spends at once by splitting them over a work-stealing {@link ForkJoinPool}.
+ * Every job is checked independently, so one failing input doesn't stop the rest of the batch.
+ */
+public class BatchVerifier implements AutoCloseable {
+
+    // Signature checks dominate, so even small leaves are worth stealing
+    private static final int LEAF_SIZE = 4;
+
+    private static final Pattern OPCODE_NAME = Pattern.compile("OP_([A-Z0-9]+)");
+
+    private final ForkJoinPool pool;
+
+    public BatchVerifier() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public BatchVerifier(int parallelism) {
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * @return one result per job, in the iteration order of {@code jobs}
+     */
+    public List<VerificationResult> verify(Collection<SpendJob> jobs) {
+        SpendJob[] input = jobs.toArray(new SpendJob[0]);
+        VerificationResult[] output = new VerificationResult[input.length];
+        if (input.length > 0) {
+            // Workers inherit the caller's bitcoinj context rather than each creating their own
+            Context context = Context.getOrCreate(input[0].getTransaction().getParams());
+            pool.invoke(new VerifyRange(context, input, output, 0, input.length));
+        }
+        return new ArrayList<>(Arrays.asList(output));
+    }
+
+    /**
+     * Verifies a single job on the calling thread.
+     */
+    public static VerificationResult verify(SpendJob job) {
+        try {
+            TemplateInterpreter.correctlySpends(
+                    job.getUnlockingScript(), job.getTransaction(), job.getInputIndex(),
+                    job.getLockingScript(), job.getVerifyFlags()
+            );
+            return VerificationResult.valid(job);
+        } catch (ScriptException e) {
+            return VerificationResult.invalid(job, failingOpcode(e, job.getLockingScript()), e.getMessage());
+        }
+    }
+
+    /**
+     * Neither interpreter exposes where it stopped, but their messages name the opcode for every failure
+     * except a false result at the end, which belongs to the last operation of the locking script.
+     */
+    static int failingOpcode(ScriptException e, Script lockingScript) {
+        String message = e.getMessage();
+        if (message != null) {
+            Matcher matcher = OPCODE_NAME.matcher(message);
+            if (matcher.find()) {
+                int opcode = getOpCode(matcher.group(1));
+                if (opcode != OP_INVALIDOPCODE) {
+                    return opcode;
+                }
+            }
+        }
+        int last = OP_INVALIDOPCODE;
+        for (ScriptChunk chunk : lockingScript.getChunks()) {
+            if (chunk.isOpCode() && chunk.opcode > OP_16 && chunk.opcode != OP_ELSE && chunk.opcode != OP_ENDIF) {
+                last = chunk.opcode;
+            }
+        }
+        return last;
+    }
+
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+
+    // Never serialized, RecursiveAction only happens to be Serializable
+    @SuppressWarnings("serial")
+    private static class VerifyRange extends RecursiveAction {
+
+        private final Context context;
+        private final SpendJob[] input;
+        private final VerificationResult[] output;
+        private final int from;
+        private final int to;
+
+        VerifyRange(Context context, SpendJob[] input, VerificationResult[] output, int from, int to) {
+            this.context = context;
+            this.input = input;
+            this.output = output;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= LEAF_SIZE) {
+                Context.propagate(context);
+                for (int i = from; i < to; i++) {
+                    output[i] = verify(input[i]);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(
+                    new VerifyRange(context, input, output, from, middle),
+                    new VerifyRange(context, input, output, middle, to)
+            );
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package hr.fer.rgkk.transactions;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import org.bitcoinj.core.CheckpointManager;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Block headers a new block store starts from instead of the genesis block, so that a new wallet only syncs
+ * the headers after the last checkpoint before its birth, minus the week {@link CheckpointManager} allows for
+ * clock drift.
+ * <p>
+ * Checkpoints come bundled with bitcoinj for the main and test networks, but those stop at the library's
+ * release. {@link #fromChain} takes recent ones from a synced block store, such as one kept by our own node.
+ */
+public final class Checkpoints {
+
+    private final static Logger LOGGER = LoggerFactory.getLogger(Checkpoints.class);
+
+    private static final String TEXTUAL_MAGIC = "TXT CHECKPOINTS 1";
+
+    // In bitcoinj's textual format
+    private final byte[] data;
+
+    private Checkpoints(byte[] data) {
+        this.data = data;
+    }
+
+    /**
+     * @throws IllegalArgumentException if bitcoinj has no checkpoints for {@code parameters}, such as regtest
+     */
+    public static Checkpoints bundled(NetworkParameters parameters) throws IOException {
+        try (InputStream in = CheckpointManager.openStream(parameters)) {
+            checkArgument(in != null, "No bundled checkpoints for %s", parameters.getId());
+            return new Checkpoints(ByteStreams.toByteArray(in));
+        }
+    }
+
+    /**
+     * @param file in either of the formats read by {@link CheckpointManager}
+     */
+    public static Checkpoints fromFile(File file) throws IOException {
+        return new Checkpoints(Files.readAllBytes(file.toPath()));
+    }
+
+    /**
+     * Takes every block at a multiple of {@code interval} from the head of {@code store} back to where the store
+     * stops, which for an SPV store is its last few thousand blocks.
+     *
+     * @param interval a multiple of the difficulty adjustment interval outside regtest, so that a chain starting
+     *                 at a checkpoint can check the next adjustment
+     */
+    public static Checkpoints fromChain(BlockStore store, int interval) throws BlockStoreException {
+        checkArgument(interval > 0, "Interval must be positive, got %s", interval);
+        List<StoredBlock> blocks = new ArrayList<>();
+        StoredBlock block = store.getChainHead();
+        while (block != null && block.getHeight() > 0) {
+            if (block.getHeight() % interval == 0) {
+                blocks.add(block);
+            }
+            block = block.getPrev(store);
+        }
+        checkArgument(!blocks.isEmpty(), "No block at a multiple of %s in the store", interval);
+        Collections.reverse(blocks);
+        return of(blocks);
+    }
+
+    /**
+     * @param blocks in increasing height
+     */
+    public static Checkpoints of(List<StoredBlock> blocks) {
+        checkArgument(!blocks.isEmpty(), "At least one checkpoint is needed");
+        StringBuilder text = new StringBuilder(TEXTUAL_MAGIC).append('\n')
+                // No signatures
+                .append(0).append('\n')
+                .append(blocks.size()).append('\n');
+        ByteBuffer buffer = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
+        for (StoredBlock block : blocks) {
+            buffer.clear();
+            block.serializeCompact(buffer);
+            text.append(CheckpointManager.BASE64.encode(buffer.array())).append('\n');
+        }
+        LOGGER.info("Checkpoints up to height {}", blocks.get(blocks.size() - 1).getHeight());
+        return new Checkpoints(text.toString().getBytes(Charsets.US_ASCII));
+    }
+
+    public InputStream openStream() {
+        return new ByteArrayInputStream(data);
+    }
+
+    public void writeTo(File file) throws IOException {
+        Files.write(file.toPath(), data);
+    }
+}
@@ -7,12 +7,19 @@ import org.bitcoinj.crypto.TransactionSignature;
 import org.bitcoinj.script.Script;
 import org.bitcoinj.script.ScriptBuilder;
 
-import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static org.bitcoinj.script.ScriptOpCodes.*;
 
 public class CoinToss extends ScriptTransaction {
 
+    private static final ScriptTemplate.Family LOCKING_SCRIPT =
+            new ScriptTemplate.Family(slots -> lockingScript(slots[0], slots[1], slots[2], slots[3]));
+
     // Alice's private key
     private final ECKey aliceKey;
     // Alice's nonce
@@ -40,49 +47,50 @@ public class CoinToss extends ScriptTransaction {
 
     @Override
     public Script createLockingScript() {
-        // TODO: Create Locking script
-        try {
-            return new ScriptBuilder()
-                    .op(OP_HASH160)
-                    .data(aliceNonce)
-                    .op(OP_HASH160)
-                    .op(OP_EQUALVERIFY)
-                    .op(OP_HASH160)
-                    .data(bobNonce)
-                    .op(OP_HASH160)
-                    .op(OP_EQUALVERIFY)
-                    .data(aliceNonce)
-                    .op(OP_SIZE)
-                    .op(OP_16)
-                    .op(OP_EQUAL)
-                    .op(OP_NOT)
-                    .op(OP_SWAP)
-                    .op(OP_DROP)
-                    .data(bobNonce)
-                    .op(OP_SIZE)
-                    .op(OP_16)
-                    .op(OP_EQUAL)
-                    .op(OP_NOT)
-                    .op(OP_SWAP)
-                    .op(OP_DROP)
-                    .op(OP_BOOLOR)
-                    .op(OP_NOTIF)
-                    .data(aliceKey.getPubKey())
-                    .op(OP_CHECKSIG)
-                    .op(OP_ELSE)
-                    .data(bobKey.getPubKey())
-                    .op(OP_CHECKSIG)
-                    .op(OP_ENDIF)
-                    .build();
-        } catch (Exception e){
-            throw new UnsupportedOperationException();
-        }
+        long start = metrics().start();
+        Script lockingScript = LOCKING_SCRIPT.instantiate(aliceNonce, bobNonce, aliceKey.getPubKey(), bobKey.getPubKey());
+        metrics().stop(ScriptMetrics.Phase.CREATE_LOCKING_SCRIPT, start);
+        return lockingScript;
+    }
 
+    private static Script lockingScript(byte[] aliceNonce, byte[] bobNonce, byte[] alicePubKey, byte[] bobPubKey) {
+        return new ScriptBuilder()
+                .op(OP_HASH160)
+                .data(aliceNonce)
+                .op(OP_HASH160)
+                .op(OP_EQUALVERIFY)
+                .op(OP_HASH160)
+                .data(bobNonce)
+                .op(OP_HASH160)
+                .op(OP_EQUALVERIFY)
+                .data(aliceNonce)
+                .op(OP_SIZE)
+                .op(OP_16)
+                .op(OP_EQUAL)
+                .op(OP_NOT)
+                .op(OP_SWAP)
+                .op(OP_DROP)
+                .data(bobNonce)
+                .op(OP_SIZE)
+                .op(OP_16)
+                .op(OP_EQUAL)
+                .op(OP_NOT)
+                .op(OP_SWAP)
+                .op(OP_DROP)
+                .op(OP_BOOLOR)
+                .op(OP_NOTIF)
+                .data(alicePubKey)
+                .op(OP_CHECKSIG)
+                .op(OP_ELSE)
+                .data(bobPubKey)
+                .op(OP_CHECKSIG)
+                .op(OP_ENDIF)
+                .build();
     }
 
     @Override
-    public Script createUnlockingScript(Transaction unsignedTransaction) {
-        TransactionSignature signature = sign(unsignedTransaction, winningPlayerKey);
+    public Script createUnlockingScript(Transaction unsignedTransaction, int inputIndex) {
+        TransactionSignature signature = sign(unsignedTransaction, inputIndex, winningPlayerKey);
         return new ScriptBuilder()
                 .data(signature.encodeToBitcoin())
                 .data(bobNonce)
@@ -90,13 +98,59 @@ public class CoinToss extends ScriptTransaction {
                 .build();
     }
 
+    @Override
+    protected int getMaxUnlockingScriptSize() {
+        return MAX_SIGNATURE_PUSH + 1 + bobNonce.length + 1 + aliceNonce.length;
+    }
+
     public static CoinToss of(
             WalletKit walletKit, NetworkParameters parameters,
             CoinTossChoice aliceChoice, CoinTossChoice bobChoice,
             WinningPlayer winningPlayer
     ) {
-        byte[] aliceNonce = randomBytes(16 + aliceChoice.value);
-        byte[] bobNonce = randomBytes(16 + bobChoice.value);
+        byte[] nonces = NonceSource.shared().nextBytes(nonceLength(aliceChoice) + nonceLength(bobChoice));
+        try {
+            return of(walletKit, parameters, nonces, 0, aliceChoice, bobChoice, winningPlayer);
+        } finally {
+            Arrays.fill(nonces, (byte) 0);
+        }
+    }
+
+    /**
+     * Creates {@code count} games at once: the nonces of all games come from a single draw and the games
+     * are built in parallel.
+     *
+     * @throws IllegalArgumentException if {@code count} is negative or the nonces of all games don't fit an array
+     */
+    public static List<CoinToss> of(
+            final WalletKit walletKit, final NetworkParameters parameters, int count,
+            final CoinTossChoice aliceChoice, final CoinTossChoice bobChoice,
+            final WinningPlayer winningPlayer
+    ) {
+        final int gameLength = nonceLength(aliceChoice) + nonceLength(bobChoice);
+        checkArgument(count >= 0 && count <= Integer.MAX_VALUE / gameLength,
+                "Can't create %s games with %s nonce bytes each", count, gameLength);
+        final byte[] nonces = NonceSource.shared().nextBytes(count * gameLength);
+        try {
+            return IntStream.range(0, count)
+                    .parallel()
+                    .mapToObj(i -> of(walletKit, parameters, nonces, i * gameLength, aliceChoice, bobChoice, winningPlayer))
+                    .collect(Collectors.toList());
+        } finally {
+            // Every game has copied its nonces
+            Arrays.fill(nonces, (byte) 0);
+        }
+    }
+
+    private static CoinToss of(
+            WalletKit walletKit, NetworkParameters parameters,
+            byte[] nonces, int offset,
+            CoinTossChoice aliceChoice, CoinTossChoice bobChoice,
+            WinningPlayer winningPlayer
+    ) {
+        int aliceNonceEnd = offset + nonceLength(aliceChoice);
+        byte[] aliceNonce = Arrays.copyOfRange(nonces, offset, aliceNonceEnd);
+        byte[] bobNonce = Arrays.copyOfRange(nonces, aliceNonceEnd, aliceNonceEnd + nonceLength(bobChoice));
 
         ECKey aliceKey = randKey();
         ECKey bobKey = randKey();
@@ -112,11 +166,8 @@ public class CoinToss extends ScriptTransaction {
         );
     }
 
-    private static byte[] randomBytes(int length) {
-        SecureRandom random = new SecureRandom();
-        byte[] bytes = new byte[length];
-        random.nextBytes(bytes);
-        return bytes;
+    private static int nonceLength(CoinTossChoice choice) {
+        return 16 + choice.value;
     }
 
     public enum WinningPlayer {
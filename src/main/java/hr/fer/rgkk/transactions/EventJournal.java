@@ -0,0 +1,441 @@
+package hr.fer.rgkk.transactions;
+
+import org.bitcoinj.core.ScriptException;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Binary journal of the phases of script round trips, in place of logging transactions as text.
+ * <p>
+ * Recording an event stores a few fields in a preallocated ring buffer and never blocks or allocates: slots are
+ * claimed with a compare-and-set and the event is dropped, and counted, if the ring is full. A background thread
+ * drains the ring into the journal file, and only then takes the txid, size and sigops of the transaction, so
+ * a recorded transaction must not change afterwards.
+ * <p>
+ * Off by default, {@link ScriptMetrics.Recorder} records into {@link #getDefault()} when the {@code rgkk.events}
+ * system property names a journal file or one is set with {@link #setDefault}. Read a journal back with
+ * {@link #read(File)} or print it with {@link #main(String[])}.
+ */
+public final class EventJournal implements AutoCloseable {
+
+    private final static Logger LOGGER = LoggerFactory.getLogger(EventJournal.class);
+
+    private static final int DEFAULT_CAPACITY = Integer.getInteger("rgkk.events.capacity", 1 << 13);
+    // Also how long an event can sit in the ring before the writer picks it up
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    // "RGKKEVT1"
+    private static final long MAGIC = 0x52474B4B45565431L;
+    private static final byte EVENT = 1;
+    private static final byte SCRIPT_TYPE = 2;
+    private static final byte DROPPED = 3;
+
+    private static volatile EventJournal defaultJournal = openDefault();
+
+    private final File file;
+    private final DataOutputStream out;
+    private final int mask;
+    // Slot fields, published by writing the slot's sequence
+    private final Transaction[] transactions;
+    private final String[] scriptTypes;
+    private final byte[] phases;
+    private final boolean[] failures;
+    private final long[] endMillis;
+    private final long[] nanos;
+    private final AtomicLongArray published;
+    private final AtomicLong claimed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    // Written by the writer only
+    private volatile long consumed;
+    private final Map<String, Short> scriptTypeIds = new HashMap<>();
+    private final Thread writer;
+    private volatile boolean closed;
+    private IOException failure;
+
+    public EventJournal(File file) throws IOException {
+        this(file, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param file     replaced if it exists
+     * @param capacity events the ring holds, rounded up to a power of two
+     */
+    public EventJournal(File file, int capacity) throws IOException {
+        checkArgument(capacity > 0, "Capacity must be positive, got %s", capacity);
+        int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.file = file;
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        this.out.writeLong(MAGIC);
+        this.mask = size - 1;
+        this.transactions = new Transaction[size];
+        this.scriptTypes = new String[size];
+        this.phases = new byte[size];
+        this.failures = new boolean[size];
+        this.endMillis = new long[size];
+        this.nanos = new long[size];
+        this.published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            published.set(i, -1);
+        }
+        this.writer = new Thread(this::drain, "event-journal");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * @return the journal script round trips are recorded into, or null if they aren't
+     */
+    public static EventJournal getDefault() {
+        return defaultJournal;
+    }
+
+    /**
+     * @param journal null to stop recording, the previous journal isn't closed
+     */
+    public static void setDefault(EventJournal journal) {
+        defaultJournal = journal;
+    }
+
+    /**
+     * @param transaction   the transaction the phase made or handled, null if there is none
+     * @param durationNanos how long the phase took, it ended now
+     * @return false if the ring was full and the event was dropped
+     */
+    public boolean record(Transaction transaction, String scriptType, ScriptMetrics.Phase phase, boolean failed,
+                          long durationNanos) {
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed > mask) {
+                dropped.incrementAndGet();
+                return false;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+        int slot = (int) sequence & mask;
+        transactions[slot] = transaction;
+        scriptTypes[slot] = scriptType;
+        phases[slot] = (byte) phase.ordinal();
+        failures[slot] = failed;
+        endMillis[slot] = System.currentTimeMillis();
+        nanos[slot] = durationNanos;
+        published.lazySet(slot, sequence);
+        if (sequence - consumed >= (mask + 1) / 2) {
+            LockSupport.unpark(writer);
+        }
+        return true;
+    }
+
+    /**
+     * @return events dropped because the ring was full
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Writes out the events recorded so far and stops recording.
+     */
+    @Override
+    public void close() throws IOException {
+        if (defaultJournal == this) {
+            defaultJournal = null;
+        }
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while closing event journal " + file, e);
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void drain() {
+        try {
+            while (true) {
+                // Read before draining, so the last pass sees everything recorded before close
+                boolean last = closed;
+                if (drainPublished() == 0) {
+                    out.flush();
+                    if (last) {
+                        break;
+                    }
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+            }
+            // Claimed but never published, a recording thread died halfway
+            long lost = claimed.get() - consumed + dropped.get();
+            if (lost > 0) {
+                out.writeByte(DROPPED);
+                out.writeLong(lost);
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Failed to write event journal {}", file, e);
+            failure = e;
+        } finally {
+            try {
+                out.close();
+            } catch (IOException e) {
+                LOGGER.warn("Failed to close event journal {}", file, e);
+            }
+        }
+    }
+
+    private int drainPublished() throws IOException {
+        int drained = 0;
+        long sequence = consumed;
+        int slot = (int) sequence & mask;
+        while (published.get(slot) == sequence) {
+            write(transactions[slot], scriptTypes[slot], phases[slot], failures[slot], endMillis[slot], nanos[slot]);
+            transactions[slot] = null;
+            consumed = ++sequence;
+            slot = (int) sequence & mask;
+            drained++;
+        }
+        return drained;
+    }
+
+    private void write(Transaction transaction, String scriptType, byte phase, boolean failed, long endMillis,
+                       long nanos) throws IOException {
+        Short scriptTypeId = scriptTypeIds.get(scriptType);
+        if (scriptTypeId == null) {
+            scriptTypeId = (short) scriptTypeIds.size();
+            scriptTypeIds.put(scriptType, scriptTypeId);
+            byte[] name = scriptType.getBytes(StandardCharsets.UTF_8);
+            out.writeByte(SCRIPT_TYPE);
+            out.writeShort(scriptTypeId);
+            out.writeShort(name.length);
+            out.write(name);
+        }
+        out.writeByte(EVENT);
+        if (transaction == null) {
+            out.write(Sha256Hash.ZERO_HASH.getBytes());
+            out.writeInt(0);
+            out.writeInt(0);
+        } else {
+            out.write(transaction.getHash().getBytes());
+            out.writeInt(transaction.unsafeBitcoinSerialize().length);
+            int sigOps;
+            try {
+                sigOps = transaction.getSigOpCount();
+            } catch (ScriptException e) {
+                sigOps = -1;
+            }
+            out.writeInt(sigOps);
+        }
+        out.writeShort(scriptTypeId);
+        out.writeByte(phase);
+        out.writeBoolean(failed);
+        out.writeLong(endMillis);
+        out.writeLong(nanos);
+    }
+
+    /**
+     * Reads a journal, a torn last event is left out.
+     */
+    public static Journal read(File file) throws IOException {
+        List<Event> events = new ArrayList<>();
+        Map<Short, String> scriptTypes = new HashMap<>();
+        long dropped = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            checkState(in.readLong() == MAGIC, "Not an event journal: %s", file);
+            ScriptMetrics.Phase[] phases = ScriptMetrics.Phase.values();
+            while (true) {
+                int kind = in.read();
+                if (kind == -1) {
+                    break;
+                }
+                try {
+                    if (kind == SCRIPT_TYPE) {
+                        short id = in.readShort();
+                        byte[] name = new byte[in.readUnsignedShort()];
+                        in.readFully(name);
+                        scriptTypes.put(id, new String(name, StandardCharsets.UTF_8));
+                    } else if (kind == EVENT) {
+                        byte[] txid = new byte[32];
+                        in.readFully(txid);
+                        Sha256Hash hash = Sha256Hash.wrap(txid);
+                        int size = in.readInt();
+                        int sigOps = in.readInt();
+                        String scriptType = scriptTypes.get(in.readShort());
+                        ScriptMetrics.Phase phase = phases[in.readByte()];
+                        boolean failed = in.readBoolean();
+                        long endMillis = in.readLong();
+                        long nanos = in.readLong();
+                        events.add(new Event(
+                                hash.equals(Sha256Hash.ZERO_HASH) ? null : hash, scriptType, phase, failed,
+                                size, sigOps, endMillis, nanos
+                        ));
+                    } else if (kind == DROPPED) {
+                        dropped = in.readLong();
+                    } else {
+                        throw new IOException("Unknown record " + kind + " in event journal " + file);
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+            }
+        }
+        return new Journal(events, dropped);
+    }
+
+    /**
+     * Prints a journal, one event per line.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: EventJournal <journal file>");
+            System.exit(2);
+        }
+        Journal journal = read(new File(args[0]));
+        for (Event event : journal.getEvents()) {
+            System.out.println(event);
+        }
+        if (journal.getDropped() > 0) {
+            System.out.println("Dropped " + journal.getDropped() + " events");
+        }
+    }
+
+    private static EventJournal openDefault() {
+        String path = System.getProperty("rgkk.events");
+        if (path == null) {
+            return null;
+        }
+        try {
+            return new EventJournal(new File(path));
+        } catch (IOException e) {
+            LOGGER.warn("Failed to open event journal {}", path, e);
+            return null;
+        }
+    }
+
+    public static final class Journal {
+
+        private final List<Event> events;
+        private final long dropped;
+
+        private Journal(List<Event> events, long dropped) {
+            this.events = events;
+            this.dropped = dropped;
+        }
+
+        /**
+         * @return in the order they were recorded
+         */
+        public List<Event> getEvents() {
+            return events;
+        }
+
+        /**
+         * @return events the journal had no room for
+         */
+        public long getDropped() {
+            return dropped;
+        }
+    }
+
+    public static final class Event {
+
+        private final Sha256Hash txid;
+        private final String scriptType;
+        private final ScriptMetrics.Phase phase;
+        private final boolean failed;
+        private final int size;
+        private final int sigOps;
+        private final long endMillis;
+        private final long nanos;
+
+        private Event(Sha256Hash txid, String scriptType, ScriptMetrics.Phase phase, boolean failed, int size,
+                      int sigOps, long endMillis, long nanos) {
+            this.txid = txid;
+            this.scriptType = scriptType;
+            this.phase = phase;
+            this.failed = failed;
+            this.size = size;
+            this.sigOps = sigOps;
+            this.endMillis = endMillis;
+            this.nanos = nanos;
+        }
+
+        /**
+         * @return null if the phase had no transaction
+         */
+        public Sha256Hash getTxid() {
+            return txid;
+        }
+
+        public String getScriptType() {
+            return scriptType;
+        }
+
+        public ScriptMetrics.Phase getPhase() {
+            return phase;
+        }
+
+        public boolean isFailed() {
+            return failed;
+        }
+
+        /**
+         * @return serialized size of the transaction in bytes, 0 if there is none
+         */
+        public int getSize() {
+            return size;
+        }
+
+        /**
+         * @return legacy sigops of the transaction, -1 if a script couldn't be parsed
+         */
+        public int getSigOps() {
+            return sigOps;
+        }
+
+        /**
+         * @return wall clock time the phase ended at
+         */
+        public long getEndMillis() {
+            return endMillis;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        @Override
+        public String toString() {
+            return endMillis + " " + scriptType + " " + phase + (failed ? " FAILED " : " ") + nanos + "ns"
+                    + (txid == null ? "" : " " + txid + " " + size + "B " + sigOps + " sigops");
+        }
+    }
+}
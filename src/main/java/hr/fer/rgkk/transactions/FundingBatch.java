@@ -0,0 +1,152 @@
+package hr.fer.rgkk.transactions;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.InsufficientMoneyException;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.core.VarInt;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.wallet.CoinSelection;
+import org.bitcoinj.wallet.CoinSelector;
+import org.bitcoinj.wallet.SendRequest;
+import org.bitcoinj.wallet.Wallet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Funds many locking scripts with as few transactions as possible, so that opening a lot of contracts pays for
+ * coin selection, change and signing once per transaction rather than once per contract.
+ * <p>
+ * Outputs are packed in the order they were added into transactions whose outputs stay under a size cap,
+ * leaving the rest of {@link Transaction#MAX_STANDARD_TX_SIZE} for inputs and change. No transaction is
+ * committed to the wallet, so the later ones of a batch never spend the change of the earlier ones.
+ */
+public final class FundingBatch {
+
+    private final static Logger LOGGER = LoggerFactory.getLogger(FundingBatch.class);
+
+    // Half a standard transaction, the other half is left for the inputs paying for it
+    static final int DEFAULT_MAX_OUTPUT_BYTES = Transaction.MAX_STANDARD_TX_SIZE / 2;
+
+    private final int maxOutputBytes;
+    private final Map<Script, Coin> outputs = new LinkedHashMap<>();
+
+    public FundingBatch() {
+        this(DEFAULT_MAX_OUTPUT_BYTES);
+    }
+
+    FundingBatch(int maxOutputBytes) {
+        checkArgument(maxOutputBytes > 0, "Output size cap must be positive, got %s", maxOutputBytes);
+        this.maxOutputBytes = maxOutputBytes;
+    }
+
+    /**
+     * @throws IllegalArgumentException if {@code script} is already in the batch, outputs are looked up by script
+     */
+    public FundingBatch add(Script script, Coin amount) {
+        checkArgument(amount.signum() > 0, "Amount must be positive, got %s", amount);
+        checkArgument(!outputs.containsKey(script), "Script already funded by this batch: %s", script);
+        outputs.put(script, amount);
+        return this;
+    }
+
+    public int size() {
+        return outputs.size();
+    }
+
+    /**
+     * Completes the batch against {@code wallet}.
+     *
+     * @return the output paying each script, in the order the scripts were added
+     * @throws InsufficientMoneyException if the wallet can't pay for one of the transactions, the ones completed
+     *                                    before it are dropped
+     */
+    public Map<Script, TransactionOutput> fund(Wallet wallet) throws InsufficientMoneyException {
+        Map<Script, TransactionOutput> funded = new LinkedHashMap<>();
+        Set<TransactionOutPoint> spent = new HashSet<>();
+        int transactions = 0;
+        for (Map<Script, Coin> group : split()) {
+            Transaction transaction = new Transaction(wallet.getParams());
+            for (Map.Entry<Script, Coin> output : group.entrySet()) {
+                transaction.addOutput(output.getValue(), output.getKey());
+            }
+            SendRequest request = SendRequest.forTx(transaction);
+            request.coinSelector = new UnspentInBatch(wallet.getCoinSelector(), spent);
+            wallet.completeTx(request);
+            for (TransactionInput input : transaction.getInputs()) {
+                spent.add(input.getOutpoint());
+            }
+            // Outputs are shuffled by the wallet, so they are found by script
+            for (TransactionOutput output : transaction.getOutputs()) {
+                if (group.containsKey(output.getScriptPubKey())) {
+                    funded.put(output.getScriptPubKey(), output);
+                }
+            }
+            transactions++;
+        }
+        LOGGER.info("Funded {} scripts with {} transactions", funded.size(), transactions);
+        Map<Script, TransactionOutput> ordered = new LinkedHashMap<>();
+        for (Script script : outputs.keySet()) {
+            ordered.put(script, funded.get(script));
+        }
+        return Collections.unmodifiableMap(ordered);
+    }
+
+    private List<Map<Script, Coin>> split() {
+        List<Map<Script, Coin>> groups = new ArrayList<>();
+        Map<Script, Coin> group = new LinkedHashMap<>();
+        int groupBytes = 0;
+        for (Map.Entry<Script, Coin> output : outputs.entrySet()) {
+            int length = output.getKey().getProgram().length;
+            int bytes = 8 + VarInt.sizeOf(length) + length;
+            if (!group.isEmpty() && groupBytes + bytes > maxOutputBytes) {
+                groups.add(group);
+                group = new LinkedHashMap<>();
+                groupBytes = 0;
+            }
+            group.put(output.getKey(), output.getValue());
+            groupBytes += bytes;
+        }
+        if (!group.isEmpty()) {
+            groups.add(group);
+        }
+        return groups;
+    }
+
+    /**
+     * The wallet's own selection, minus the coins already spent by earlier transactions of the batch.
+     */
+    private static final class UnspentInBatch implements CoinSelector {
+
+        private final CoinSelector delegate;
+        private final Set<TransactionOutPoint> spent;
+
+        UnspentInBatch(CoinSelector delegate, Set<TransactionOutPoint> spent) {
+            this.delegate = delegate;
+            this.spent = spent;
+        }
+
+        @Override
+        public CoinSelection select(Coin target, List<TransactionOutput> candidates) {
+            List<TransactionOutput> unspent = new ArrayList<>(candidates.size());
+            for (TransactionOutput candidate : candidates) {
+                if (!spent.contains(candidate.getOutPointFor())) {
+                    unspent.add(candidate);
+                }
+            }
+            return delegate.select(target, unspent);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package hr.fer.rgkk.transactions;
+
+import org.bitcoinj.core.ECKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Fresh keys generated ahead of time by a background thread, so that taking one doesn't cost a point
+ * multiplication on the caller's thread.
+ * <p>
+ * The refill thread wakes up when the pool drops to the low watermark and fills it up to the high watermark.
+ * Taking a key never blocks: if the pool is empty the key is generated on the spot and counted as a miss.
+ */
+public final class KeyPool implements AutoCloseable {
+
+    private final static Logger LOGGER = LoggerFactory.getLogger(KeyPool.class);
+
+    private static final int DEFAULT_LOW_WATERMARK = Integer.getInteger("rgkk.keyPool.low", 16);
+    private static final int DEFAULT_HIGH_WATERMARK = Integer.getInteger("rgkk.keyPool.high", 64);
+    // In case a wake-up is lost between the size check and parking
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final int lowWatermark;
+    private final int highWatermark;
+    private final Queue<ECKey> keys = new ConcurrentLinkedQueue<>();
+    // ConcurrentLinkedQueue.size() walks the whole queue
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final Thread refill;
+    private volatile boolean closed;
+
+    public KeyPool(int lowWatermark, int highWatermark) {
+        checkArgument(lowWatermark >= 0 && lowWatermark <= highWatermark && highWatermark > 0,
+                "Expected 0 <= low <= high and high > 0, got %s and %s", lowWatermark, highWatermark);
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+        this.refill = new Thread(this::refill, "key-pool-refill");
+        this.refill.setDaemon(true);
+        this.refill.start();
+    }
+
+    /**
+     * @return the pool behind {@link ScriptTransaction#randKey()}, with watermarks taken from the
+     * {@code rgkk.keyPool.low} and {@code rgkk.keyPool.high} system properties
+     */
+    public static KeyPool getDefault() {
+        return DefaultHolder.POOL;
+    }
+
+    /**
+     * @return a key that hasn't been handed out before
+     */
+    public ECKey take() {
+        ECKey key = keys.poll();
+        if (key == null) {
+            misses.incrementAndGet();
+            LockSupport.unpark(refill);
+            return new ECKey();
+        }
+        hits.incrementAndGet();
+        if (size.decrementAndGet() <= lowWatermark) {
+            LockSupport.unpark(refill);
+        }
+        return key;
+    }
+
+    public int getLowWatermark() {
+        return lowWatermark;
+    }
+
+    public int getHighWatermark() {
+        return highWatermark;
+    }
+
+    /**
+     * @return number of keys ready to be taken
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * @return number of keys taken from the pool
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of keys generated on the caller's thread because the pool was empty
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(refill);
+    }
+
+    private void refill() {
+        while (!closed) {
+            if (size.get() <= lowWatermark) {
+                while (!closed && size.get() < highWatermark) {
+                    keys.add(new ECKey());
+                    size.incrementAndGet();
+                }
+                LOGGER.debug("Refilled key pool to {}", size.get());
+            }
+            LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+        }
+    }
+
+    private static final class DefaultHolder {
+        private static final KeyPool POOL = new KeyPool(DEFAULT_LOW_WATERMARK, DEFAULT_HIGH_WATERMARK);
+    }
+}
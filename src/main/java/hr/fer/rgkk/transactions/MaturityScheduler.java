@@ -0,0 +1,409 @@
+package hr.fer.rgkk.transactions;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.bitcoinj.core.AbstractBlockChain;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.listeners.NewBestBlockListener;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Holds signed redemptions until their lock time has passed and broadcasts them as soon as the chain tip makes
+ * them final, such as the Eve branch of a {@link TimeLock}.
+ * <p>
+ * A transaction locked to height {@code h} is final once the tip is at {@code h}, the next block being above it.
+ * One locked to time {@code t} is final once the median time of the last 11 blocks is past {@code t} (BIP 113).
+ * <p>
+ * Pending redemptions are appended to a journal file and only their lock time and journal offset are kept in
+ * memory, 16 bytes each, in one heap per kind of lock. A transaction is read back when it is due and marked done
+ * in the journal once a peer has acknowledged it, so a restart picks up exactly the ones that are still pending.
+ * A failed broadcast goes back on its heap and is tried again on the next tip. The journal is
+ * compacted on start once most of it is done.
+ */
+public final class MaturityScheduler implements AutoCloseable {
+
+    private final static Logger LOGGER = LoggerFactory.getLogger(MaturityScheduler.class);
+
+    private static final byte PENDING = 1;
+    private static final byte DONE = 2;
+    // Kind, lock time and length
+    private static final int PENDING_HEADER = 1 + 8 + 4;
+    // Kind and offset of the pending record
+    private static final int DONE_SIZE = 1 + 8;
+    private static final int MEDIAN_TIME_SPAN = 11;
+
+    private final NetworkParameters parameters;
+    private final Broadcaster broadcaster;
+    private final File journalFile;
+    private final RandomAccessFile journal;
+    private final LockHeap byHeight = new LockHeap();
+    private final LockHeap byTime = new LockHeap();
+    private final AbstractBlockChain chain;
+    private final NewBestBlockListener listener;
+    private int tipHeight = -1;
+    private long tipMedianTime = -1;
+    private boolean closed;
+
+    /**
+     * Broadcasts through the kit's {@link PeerBroadcaster} whenever its chain gets a new tip.
+     *
+     * @param journalFile created if missing, pending redemptions in it are scheduled again
+     */
+    public MaturityScheduler(WalletKit walletKit, File journalFile) throws IOException {
+        this(walletKit.getWallet().getParams(), broadcaster(walletKit.getBroadcaster()), journalFile,
+                walletKit.getChain());
+    }
+
+    MaturityScheduler(
+            NetworkParameters parameters, Broadcaster broadcaster, File journalFile,
+            final AbstractBlockChain chain
+    ) throws IOException {
+        this.parameters = parameters;
+        this.broadcaster = broadcaster;
+        this.journalFile = journalFile;
+        RandomAccessFile journal = new RandomAccessFile(journalFile, "rw");
+        int done = replay(journal);
+        this.journal = done > getPendingCount() ? compact(journal) : journal;
+        this.chain = chain;
+        if (chain == null) {
+            this.listener = null;
+            return;
+        }
+        this.listener = new NewBestBlockListener() {
+            @Override
+            public void notifyNewBestBlock(StoredBlock block) {
+                onNewTip(block, chain.getBlockStore());
+            }
+        };
+        chain.addNewBestBlockListener(Threading.USER_THREAD, listener);
+        onNewTip(chain.getChainHead(), chain.getBlockStore());
+    }
+
+    /**
+     * Broadcasts {@code redemption} once it is final, right away if it already is.
+     */
+    public void schedule(Transaction redemption) throws IOException {
+        schedule(Collections.singletonList(redemption));
+    }
+
+    /**
+     * Same as {@link #schedule(Transaction)}, with one write to disk for all of them.
+     */
+    public synchronized void schedule(Collection<Transaction> redemptions) throws IOException {
+        long offset = journal.length();
+        ByteBuffer records = ByteBuffer.allocate(size(redemptions));
+        long[] locks = new long[redemptions.size()];
+        long[] offsets = new long[redemptions.size()];
+        int i = 0;
+        for (Transaction redemption : redemptions) {
+            byte[] serialized = redemption.bitcoinSerialize();
+            locks[i] = redemption.getLockTime();
+            offsets[i] = offset + records.position();
+            records.put(PENDING).putLong(locks[i]).putInt(serialized.length).put(serialized);
+            i++;
+        }
+        journal.seek(offset);
+        journal.write(records.array());
+        journal.getFD().sync();
+        for (i = 0; i < locks.length; i++) {
+            heapFor(locks[i]).push(locks[i], offsets[i]);
+        }
+        broadcastDue();
+    }
+
+    public synchronized int getPendingCount() {
+        return byHeight.size + byTime.size;
+    }
+
+    synchronized void onNewTip(int height, long medianTime) throws IOException {
+        tipHeight = height;
+        tipMedianTime = medianTime;
+        broadcastDue();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (chain != null) {
+            chain.removeNewBestBlockListener(listener);
+        }
+        // Broadcasts still in flight stay pending in the journal
+        closed = true;
+        journal.close();
+    }
+
+    private void onNewTip(StoredBlock tip, BlockStore store) {
+        try {
+            onNewTip(tip.getHeight(), medianTime(tip, store));
+        } catch (BlockStoreException | IOException e) {
+            LOGGER.warn("Failed to broadcast matured redemptions at height {}", tip.getHeight(), e);
+        }
+    }
+
+    private void broadcastDue() throws IOException {
+        List<Long> locks = new ArrayList<>();
+        List<Long> offsets = new ArrayList<>();
+        // Final once the next block is above the lock height
+        while (byHeight.size > 0 && byHeight.peekLock() <= tipHeight) {
+            locks.add(byHeight.peekLock());
+            offsets.add(byHeight.pop());
+        }
+        while (byTime.size > 0 && byTime.peekLock() < tipMedianTime) {
+            locks.add(byTime.peekLock());
+            offsets.add(byTime.pop());
+        }
+        List<Transaction> due = new ArrayList<>(offsets.size());
+        for (long offset : offsets) {
+            due.add(read(offset));
+        }
+        for (int i = 0; i < due.size(); i++) {
+            final Transaction transaction = due.get(i);
+            final long lock = locks.get(i);
+            final long offset = offsets.get(i);
+            ListenableFuture<?> broadcast;
+            try {
+                broadcast = broadcaster.broadcast(transaction);
+            } catch (RuntimeException e) {
+                broadcast = Futures.immediateFailedFuture(e);
+            }
+            Futures.addCallback(broadcast, new FutureCallback<Object>() {
+                @Override
+                public void onSuccess(Object ignore) {
+                    LOGGER.info("Broadcasted matured transaction: {}", transaction.getHashAsString());
+                    try {
+                        done(offset);
+                    } catch (IOException e) {
+                        LOGGER.warn("Failed to mark {} done, it is broadcast again after a restart",
+                                transaction.getHashAsString(), e);
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable failure) {
+                    LOGGER.warn("Failed to broadcast matured transaction {}, retrying on the next tip",
+                            transaction.getHashAsString(), failure);
+                    requeue(lock, offset);
+                }
+            });
+        }
+    }
+
+    private synchronized void done(long offset) throws IOException {
+        if (closed) {
+            return;
+        }
+        ByteBuffer record = ByteBuffer.allocate(DONE_SIZE);
+        record.put(DONE).putLong(offset);
+        journal.seek(journal.length());
+        journal.write(record.array());
+        journal.getFD().sync();
+    }
+
+    private synchronized void requeue(long lock, long offset) {
+        if (!closed) {
+            heapFor(lock).push(lock, offset);
+        }
+    }
+
+    private Transaction read(long offset) throws IOException {
+        journal.seek(offset + 1 + 8);
+        byte[] serialized = new byte[journal.readInt()];
+        journal.readFully(serialized);
+        return new Transaction(parameters, serialized);
+    }
+
+    private LockHeap heapFor(long lockTime) {
+        return lockTime < Transaction.LOCKTIME_THRESHOLD ? byHeight : byTime;
+    }
+
+    /**
+     * Rebuilds the heaps from the journal, dropping a record cut short by a crash.
+     *
+     * @return number of done records
+     */
+    private int replay(RandomAccessFile journal) throws IOException {
+        Set<Long> done = new HashSet<>();
+        LockHeap pending = new LockHeap();
+        long end = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+            while (true) {
+                byte kind = in.readByte();
+                if (kind == PENDING) {
+                    long lockTime = in.readLong();
+                    int length = in.readInt();
+                    if (in.skipBytes(length) != length) {
+                        break;
+                    }
+                    pending.push(lockTime, end);
+                    end += PENDING_HEADER + length;
+                } else if (kind == DONE) {
+                    done.add(in.readLong());
+                    end += DONE_SIZE;
+                } else {
+                    throw new IOException("Corrupt maturity journal " + journalFile + " at " + end);
+                }
+            }
+        } catch (EOFException ignore) {
+            // Whatever follows the last complete record was never acknowledged
+        }
+        journal.setLength(end);
+        for (int i = 0; i < pending.size; i++) {
+            if (!done.contains(pending.offsets[i])) {
+                heapFor(pending.locks[i]).push(pending.locks[i], pending.offsets[i]);
+            }
+        }
+        LOGGER.info("Restored {} pending redemptions from {}", getPendingCount(), journalFile);
+        return done.size();
+    }
+
+    /**
+     * Rewrites the journal with only the pending records, the heaps keep their order and get the new offsets.
+     */
+    private RandomAccessFile compact(RandomAccessFile journal) throws IOException {
+        File compacted = new File(journalFile.getPath() + ".compact");
+        try (RandomAccessFile out = new RandomAccessFile(compacted, "rw")) {
+            out.setLength(0);
+            for (LockHeap heap : new LockHeap[]{byHeight, byTime}) {
+                for (int i = 0; i < heap.size; i++) {
+                    journal.seek(heap.offsets[i] + 1 + 8);
+                    byte[] record = new byte[PENDING_HEADER + journal.readInt()];
+                    journal.seek(heap.offsets[i]);
+                    journal.readFully(record);
+                    heap.offsets[i] = out.getFilePointer();
+                    out.write(record);
+                }
+            }
+            out.getFD().sync();
+        }
+        journal.close();
+        Files.move(compacted.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        LOGGER.info("Compacted {} to {} pending redemptions", journalFile, getPendingCount());
+        return new RandomAccessFile(journalFile, "rw");
+    }
+
+    private static int size(Collection<Transaction> redemptions) {
+        int size = 0;
+        for (Transaction redemption : redemptions) {
+            size += PENDING_HEADER + redemption.getMessageSize();
+        }
+        return size;
+    }
+
+    /**
+     * @return median of the timestamps of {@code tip} and the 10 blocks before it, or of as many as there are
+     */
+    static long medianTime(StoredBlock tip, BlockStore store) throws BlockStoreException {
+        long[] times = new long[MEDIAN_TIME_SPAN];
+        int count = 0;
+        StoredBlock block = tip;
+        while (block != null && count < MEDIAN_TIME_SPAN) {
+            times[count++] = block.getHeader().getTimeSeconds();
+            block = block.getHeight() == 0 ? null : block.getPrev(store);
+        }
+        Arrays.sort(times, 0, count);
+        return times[count / 2];
+    }
+
+    private static Broadcaster broadcaster(final PeerBroadcaster peerBroadcaster) {
+        return new Broadcaster() {
+            @Override
+            public ListenableFuture<?> broadcast(Transaction transaction) {
+                return peerBroadcaster.broadcast(transaction);
+            }
+        };
+    }
+
+    /**
+     * Sends a due transaction, the future completes once a peer has it.
+     */
+    interface Broadcaster {
+
+        ListenableFuture<?> broadcast(Transaction transaction);
+    }
+
+    /**
+     * Binary min-heap of (lock time, journal offset) pairs in two primitive arrays.
+     */
+    private static final class LockHeap {
+
+        private long[] locks = new long[16];
+        private long[] offsets = new long[16];
+        private int size;
+
+        void push(long lock, long offset) {
+            if (size == locks.length) {
+                locks = Arrays.copyOf(locks, size * 2);
+                offsets = Arrays.copyOf(offsets, size * 2);
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (locks[parent] <= lock) {
+                    break;
+                }
+                locks[i] = locks[parent];
+                offsets[i] = offsets[parent];
+                i = parent;
+            }
+            locks[i] = lock;
+            offsets[i] = offset;
+        }
+
+        long peekLock() {
+            return locks[0];
+        }
+
+        /**
+         * @return the offset of the earliest lock
+         */
+        long pop() {
+            long top = offsets[0];
+            size--;
+            long lock = locks[size];
+            long offset = offsets[size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && locks[child + 1] < locks[child]) {
+                    child++;
+                }
+                if (lock <= locks[child]) {
+                    break;
+                }
+                locks[i] = locks[child];
+                offsets[i] = offsets[child];
+                i = child;
+            }
+            locks[i] = lock;
+            offsets[i] = offset;
+            return top;
+        }
+    }
+}
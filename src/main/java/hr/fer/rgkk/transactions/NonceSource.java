@@ -0,0 +1,59 @@
+package hr.fer.rgkk.transactions;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * One shared DRBG handing out random bytes from blocks drawn ahead of time, instead of seeding a new
+ * {@link SecureRandom} for every nonce.
+ * <p>
+ * Fresh seed material is mixed in after every {@link #RESEED_INTERVAL} bytes drawn.
+ */
+final class NonceSource {
+
+    private static final int BLOCK_SIZE = 4096;
+    private static final long RESEED_INTERVAL = 1 << 20;
+    private static final int SEED_LENGTH = 32;
+
+    private static final NonceSource SHARED = new NonceSource();
+
+    private final SecureRandom random = new SecureRandom();
+    // Only used to reseed, so that a blocking entropy source holds up one reseed rather than every nonce
+    private final SecureRandom seeds = new SecureRandom();
+
+    // Guarded by this
+    private final byte[] block = new byte[BLOCK_SIZE];
+    private int position = BLOCK_SIZE;
+    private long drawnSinceReseed;
+
+    static NonceSource shared() {
+        return SHARED;
+    }
+
+    synchronized byte[] nextBytes(int length) {
+        byte[] bytes = new byte[length];
+        int filled = 0;
+        while (filled < length) {
+            if (position == BLOCK_SIZE) {
+                refill();
+            }
+            int chunk = Math.min(length - filled, BLOCK_SIZE - position);
+            System.arraycopy(block, position, bytes, filled, chunk);
+            // Handed out bytes are never kept around
+            Arrays.fill(block, position, position + chunk, (byte) 0);
+            position += chunk;
+            filled += chunk;
+        }
+        return bytes;
+    }
+
+    private void refill() {
+        if (drawnSinceReseed >= RESEED_INTERVAL) {
+            random.setSeed(seeds.generateSeed(SEED_LENGTH));
+            drawnSinceReseed = 0;
+        }
+        random.nextBytes(block);
+        drawnSinceReseed += BLOCK_SIZE;
+        position = 0;
+    }
+}
@@ -11,6 +11,9 @@ import static org.bitcoinj.script.ScriptOpCodes.OP_CHECKSIG;
 
 public class PayToPubKey extends ScriptTransaction {
 
+    private static final ScriptTemplate.Family LOCKING_SCRIPT =
+            new ScriptTemplate.Family(slots -> lockingScript(slots[0]));
+
     private DeterministicKey key;
 
     public PayToPubKey(WalletKit walletKit, NetworkParameters parameters) {
@@ -20,17 +23,29 @@ public class PayToPubKey extends ScriptTransaction {
 
     @Override
     public Script createLockingScript() {
+        long start = metrics().start();
+        Script lockingScript = LOCKING_SCRIPT.instantiate(key.getPubKey());
+        metrics().stop(ScriptMetrics.Phase.CREATE_LOCKING_SCRIPT, start);
+        return lockingScript;
+    }
+
+    private static Script lockingScript(byte[] pubKey) {
         return new ScriptBuilder()            // Stack = | signature |
-                .data(key.getPubKey())        // Stack = | pubKey, signature|
+                .data(pubKey)                 // Stack = | pubKey, signature|
                 .op(OP_CHECKSIG)              // Stack = | True |
                 .build();
     }
 
     @Override
-    public Script createUnlockingScript(Transaction unsignedTransaction) {
-        byte[] signature = sign(unsignedTransaction, key).encodeToBitcoin();
+    public Script createUnlockingScript(Transaction unsignedTransaction, int inputIndex) {
+        byte[] signature = sign(unsignedTransaction, inputIndex, key).encodeToBitcoin();
         return new ScriptBuilder()
                 .data(signature)               // Stack = | signature |
                 .build();
     }
+
+    @Override
+    protected int getMaxUnlockingScriptSize() {
+        return MAX_SIGNATURE_PUSH;
+    }
 }
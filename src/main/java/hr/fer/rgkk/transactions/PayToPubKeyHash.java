@@ -8,7 +8,10 @@ import static org.bitcoinj.script.ScriptOpCodes.*;
 
 public class PayToPubKeyHash extends ScriptTransaction {
 
-    private final ECKey ecKey = new ECKey();
+    private static final ScriptTemplate.Family LOCKING_SCRIPT =
+            new ScriptTemplate.Family(slots -> lockingScript(slots[0], slots[1]));
+
+    private final ECKey ecKey = randKey();
 
     public PayToPubKeyHash(WalletKit walletKit, NetworkParameters parameters) {
         super(walletKit, parameters);
@@ -16,31 +19,32 @@ public class PayToPubKeyHash extends ScriptTransaction {
 
     @Override
     public Script createLockingScript() {
-        // TODO: Create Locking script
-        try {
-            return new ScriptBuilder()
-                    .data(ecKey.getPubKey())
-                    .op(OP_DUP)
-                    .op(OP_HASH160)
-                    .data(ecKey.getPubKeyHash())
-                    .op(OP_EQUALVERIFY)
-                    .op(OP_CHECKSIG)
-                    .build();
-        } catch (Exception e) {
-            throw new UnsupportedOperationException();
-        }
+        long start = metrics().start();
+        Script lockingScript = LOCKING_SCRIPT.instantiate(ecKey.getPubKey(), ecKey.getPubKeyHash());
+        metrics().stop(ScriptMetrics.Phase.CREATE_LOCKING_SCRIPT, start);
+        return lockingScript;
+    }
 
+    private static Script lockingScript(byte[] pubKey, byte[] pubKeyHash) {
+        return new ScriptBuilder()
+                .data(pubKey)
+                .op(OP_DUP)
+                .op(OP_HASH160)
+                .data(pubKeyHash)
+                .op(OP_EQUALVERIFY)
+                .op(OP_CHECKSIG)
+                .build();
     }
 
     @Override
-    public Script createUnlockingScript(Transaction unsignedTransaction) {
-        try {
-            return new ScriptBuilder()
-                    .data(sign(unsignedTransaction, ecKey).encodeToBitcoin())
-                    .build();
-        } catch (Exception e) {
-            throw new UnsupportedOperationException();
-        }
+    public Script createUnlockingScript(Transaction unsignedTransaction, int inputIndex) {
+        return new ScriptBuilder()
+                .data(sign(unsignedTransaction, inputIndex, ecKey).encodeToBitcoin())
+                .build();
+    }
 
+    @Override
+    protected int getMaxUnlockingScriptSize() {
+        return MAX_SIGNATURE_PUSH;
     }
 }
@@ -0,0 +1,17 @@
+package hr.fer.rgkk.transactions;
+
+import org.bitcoinj.core.PeerAddress;
+
+/**
+ * Source of the peers a {@link WalletKit} connects to.
+ */
+public interface PeerBackend extends AutoCloseable {
+
+    /**
+     * @return addresses to connect to, empty if none could be resolved
+     */
+    PeerAddress[] getPeerAddresses();
+
+    @Override
+    void close();
+}
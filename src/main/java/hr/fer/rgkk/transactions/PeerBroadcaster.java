@@ -0,0 +1,448 @@
+package hr.fer.rgkk.transactions;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import org.bitcoinj.core.Peer;
+import org.bitcoinj.core.PeerAddress;
+import org.bitcoinj.core.PeerGroup;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Broadcasts transactions to the fastest few connected peers instead of through {@link PeerGroup}, which waits
+ * for half of its peers to announce the transaction back.
+ * <p>
+ * A broadcast sends the transactions over each chosen connection and pings after them. Peers handle messages in
+ * order, so the pong acknowledges the transactions. Peers are ranked by their average acknowledgement latency,
+ * or by their ping time until they've acknowledged something. Peers with neither rank last and are pinged, so
+ * the next broadcast can place them. A peer that doesn't answer in time, or disconnects, counts as acknowledging
+ * at the timeout and is replaced by the next one in line.
+ */
+public final class PeerBroadcaster implements AutoCloseable {
+
+    private final static Logger LOGGER = LoggerFactory.getLogger(PeerBroadcaster.class);
+
+    private static final int DEFAULT_FANOUT = Integer.getInteger("rgkk.broadcast.peers", 2);
+    private static final long DEFAULT_TIMEOUT_MILLIS = Long.getLong("rgkk.broadcast.timeoutMillis", 10000);
+    // Weight of the latest acknowledgement in the average
+    private static final double SMOOTHING = 0.3;
+
+    private final PeerGroup peerGroup;
+    private final int fanout;
+    private final long timeoutMillis;
+    private final ScheduledExecutorService timeouts;
+    // Guarded by this
+    private final Map<PeerAddress, PeerStats> stats = new HashMap<>();
+    private final Set<Broadcast> broadcasts = new HashSet<>();
+    private boolean closed;
+
+    /**
+     * Broadcasts to {@code rgkk.broadcast.peers} peers, 2 by default, and gives each
+     * {@code rgkk.broadcast.timeoutMillis} to answer.
+     */
+    public PeerBroadcaster(PeerGroup peerGroup) {
+        this(peerGroup, DEFAULT_FANOUT, DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param fanout how many peers every broadcast goes to, fewer if fewer are connected
+     */
+    public PeerBroadcaster(PeerGroup peerGroup, int fanout, long timeoutMillis) {
+        checkArgument(fanout > 0, "Fanout must be positive, got %s", fanout);
+        checkArgument(timeoutMillis > 0, "Timeout must be positive, got %s", timeoutMillis);
+        this.peerGroup = peerGroup;
+        this.fanout = fanout;
+        this.timeoutMillis = timeoutMillis;
+        this.timeouts = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "peer-broadcaster-timeouts");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Sends {@code transactions} in order, so a peer sees a parent before the children spending it.
+     *
+     * @return completes with {@code transactions} once the chosen peers have acknowledged them, or once at least
+     * one has after the others failed and there was no peer left to fail over to
+     */
+    public ListenableFuture<List<Transaction>> broadcast(Transaction... transactions) {
+        checkArgument(transactions.length > 0, "Nothing to broadcast");
+        if (isClosed()) {
+            return Futures.immediateFailedFuture(new IllegalStateException("Broadcaster is closed"));
+        }
+        final List<Transaction> broadcast = ImmutableList.copyOf(transactions);
+        for (Transaction transaction : broadcast) {
+            TransactionConfidence confidence = transaction.getConfidence();
+            if (confidence.getSource() == TransactionConfidence.Source.UNKNOWN) {
+                confidence.setSource(TransactionConfidence.Source.SELF);
+            }
+        }
+        if (!peerGroup.getConnectedPeers().isEmpty()) {
+            return new Broadcast(broadcast).start();
+        }
+        return Futures.transform(peerGroup.waitForPeers(1), new AsyncFunction<List<Peer>, List<Transaction>>() {
+            @Override
+            public ListenableFuture<List<Transaction>> apply(List<Peer> peers) {
+                return new Broadcast(broadcast).start();
+            }
+        });
+    }
+
+    /**
+     * @return the statistics of every peer a broadcast went to, and of every connected peer
+     */
+    public synchronized Map<PeerAddress, PeerStats.Snapshot> getStats() {
+        for (Peer peer : peerGroup.getConnectedPeers()) {
+            stats(peer);
+        }
+        Map<PeerAddress, PeerStats.Snapshot> snapshot = new HashMap<>();
+        for (Map.Entry<PeerAddress, PeerStats> entry : stats.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return Collections.unmodifiableMap(snapshot);
+    }
+
+    public int getFanout() {
+        return fanout;
+    }
+
+    /**
+     * Stops the timeouts and fails the broadcasts that haven't completed yet.
+     */
+    @Override
+    public void close() {
+        List<Broadcast> outstanding;
+        synchronized (this) {
+            closed = true;
+            outstanding = new ArrayList<>(broadcasts);
+        }
+        timeouts.shutdownNow();
+        for (Broadcast broadcast : outstanding) {
+            broadcast.future.setException(new IllegalStateException("Broadcaster closed"));
+        }
+    }
+
+    private synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return connected peers, fastest first
+     */
+    private synchronized List<Peer> rankPeers() {
+        List<Peer> peers = new ArrayList<>(peerGroup.getConnectedPeers());
+        final Map<Peer, Long> scores = new HashMap<>();
+        for (Peer peer : peers) {
+            PeerStats peerStats = stats(peer);
+            scores.put(peer, peerStats.score());
+            if (peerStats.score() == Long.MAX_VALUE && !peerStats.probed) {
+                peerStats.probed = true;
+                probe(peer);
+            }
+        }
+        Collections.sort(peers, new Comparator<Peer>() {
+            @Override
+            public int compare(Peer a, Peer b) {
+                return Long.compare(scores.get(a), scores.get(b));
+            }
+        });
+        return peers;
+    }
+
+    // Guarded by this
+    private PeerStats stats(Peer peer) {
+        PeerStats peerStats = stats.get(peer.getAddress());
+        if (peerStats == null) {
+            peerStats = new PeerStats();
+            stats.put(peer.getAddress(), peerStats);
+        }
+        peerStats.pingMillis = peer.getPingTime();
+        return peerStats;
+    }
+
+    // Measures a peer that hasn't answered a ping yet
+    private static void probe(Peer peer) {
+        try {
+            peer.ping();
+        } catch (RuntimeException e) {
+            LOGGER.debug("Could not ping {}: {}", peer, e.toString());
+        }
+    }
+
+    private synchronized void sent(Peer peer) {
+        stats(peer).broadcasts++;
+    }
+
+    private synchronized void acknowledged(Peer peer, long nanos) {
+        stats(peer).acknowledged(nanos, false);
+    }
+
+    private synchronized void failed(Peer peer) {
+        stats(peer).acknowledged(TimeUnit.MILLISECONDS.toNanos(timeoutMillis), true);
+    }
+
+    /**
+     * One broadcast, with the peers it can still fail over to.
+     */
+    private final class Broadcast {
+
+        private final List<Transaction> transactions;
+        private final SettableFuture<List<Transaction>> future = SettableFuture.create();
+        // Guarded by this
+        private final List<Peer> spares;
+        private int pending;
+        private int acknowledged;
+        private final int wanted;
+
+        Broadcast(List<Transaction> transactions) {
+            this.transactions = transactions;
+            this.spares = rankPeers();
+            this.wanted = Math.min(fanout, spares.size());
+        }
+
+        ListenableFuture<List<Transaction>> start() {
+            if (wanted == 0) {
+                future.setException(new IllegalStateException("No peers to broadcast to"));
+                return future;
+            }
+            synchronized (PeerBroadcaster.this) {
+                if (closed) {
+                    future.setException(new IllegalStateException("Broadcaster is closed"));
+                    return future;
+                }
+                broadcasts.add(this);
+            }
+            future.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (PeerBroadcaster.this) {
+                        broadcasts.remove(Broadcast.this);
+                    }
+                }
+            }, MoreExecutors.directExecutor());
+            for (int i = 0; i < wanted; i++) {
+                next();
+            }
+            return future;
+        }
+
+        private void next() {
+            if (isClosed()) {
+                future.setException(new IllegalStateException("Broadcaster closed"));
+                return;
+            }
+            Peer peer;
+            synchronized (this) {
+                if (spares.isEmpty()) {
+                    finishIfDone();
+                    return;
+                }
+                peer = spares.remove(0);
+                pending++;
+            }
+            sendTo(peer);
+        }
+
+        private void sendTo(final Peer peer) {
+            final long start = System.nanoTime();
+            final SettableFuture<Long> answer = SettableFuture.create();
+            try {
+                for (Transaction transaction : transactions) {
+                    peer.sendMessage(transaction);
+                }
+                Futures.addCallback(peer.ping(), new FutureCallback<Long>() {
+                    @Override
+                    public void onSuccess(Long millis) {
+                        answer.set(millis);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable failure) {
+                        answer.setException(failure);
+                    }
+                });
+            } catch (RuntimeException e) {
+                // Too old to answer pings, or no longer connected
+                answer.setException(e);
+            }
+            sent(peer);
+            ScheduledFuture<?> scheduled = null;
+            try {
+                scheduled = timeouts.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        answer.setException(new TimeoutException(
+                                "No answer from " + peer + " in " + timeoutMillis + " ms"
+                        ));
+                    }
+                }, timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Closed meanwhile
+                answer.setException(e);
+            }
+            final ScheduledFuture<?> timeout = scheduled;
+            Futures.addCallback(answer, new FutureCallback<Long>() {
+                @Override
+                public void onSuccess(Long ignore) {
+                    if (timeout != null) {
+                        timeout.cancel(false);
+                    }
+                    acknowledged(peer, System.nanoTime() - start);
+                    for (Transaction transaction : transactions) {
+                        if (transaction.getConfidence().markBroadcastBy(peer.getAddress())) {
+                            transaction.getConfidence().queueListeners(
+                                    TransactionConfidence.Listener.ChangeReason.SEEN_PEERS
+                            );
+                        }
+                    }
+                    synchronized (Broadcast.this) {
+                        pending--;
+                        acknowledged++;
+                        finishIfDone();
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable failure) {
+                    if (timeout != null) {
+                        timeout.cancel(false);
+                    }
+                    LOGGER.info("Failing over from {}: {}", peer, failure.toString());
+                    failed(peer);
+                    synchronized (Broadcast.this) {
+                        pending--;
+                    }
+                    next();
+                }
+            });
+        }
+
+        // Guarded by this
+        private void finishIfDone() {
+            if (acknowledged >= wanted || (pending == 0 && spares.isEmpty() && acknowledged > 0)) {
+                future.set(transactions);
+            } else if (pending == 0 && spares.isEmpty()) {
+                future.setException(new IllegalStateException(
+                        "No peer acknowledged " + transactions.get(0).getHash()
+                ));
+            }
+        }
+    }
+
+    /**
+     * What one peer's broadcasts took.
+     */
+    public static final class PeerStats {
+
+        private long pingMillis = Long.MAX_VALUE;
+        // Moving average, 0 until the first acknowledgement
+        private double acknowledgementNanos;
+        private long broadcasts;
+        private long acknowledgements;
+        private long failures;
+        // Pinged once to get it ranked
+        private boolean probed;
+
+        private void acknowledged(long nanos, boolean failed) {
+            acknowledgementNanos = acknowledgementNanos == 0
+                    ? nanos
+                    : SMOOTHING * nanos + (1 - SMOOTHING) * acknowledgementNanos;
+            if (failed) {
+                failures++;
+            } else {
+                acknowledgements++;
+            }
+        }
+
+        // Lower is faster, peers never broadcast to rank by their ping time and unmeasured ones last
+        private long score() {
+            if (acknowledgementNanos != 0) {
+                return (long) acknowledgementNanos;
+            }
+            return pingMillis == Long.MAX_VALUE ? Long.MAX_VALUE : TimeUnit.MILLISECONDS.toNanos(pingMillis);
+        }
+
+        private Snapshot snapshot() {
+            return new Snapshot(pingMillis, (long) acknowledgementNanos, broadcasts, acknowledgements, failures);
+        }
+
+        public static final class Snapshot {
+
+            private final long pingMillis;
+            private final long acknowledgementNanos;
+            private final long broadcasts;
+            private final long acknowledgements;
+            private final long failures;
+
+            private Snapshot(long pingMillis, long acknowledgementNanos, long broadcasts, long acknowledgements,
+                             long failures) {
+                this.pingMillis = pingMillis;
+                this.acknowledgementNanos = acknowledgementNanos;
+                this.broadcasts = broadcasts;
+                this.acknowledgements = acknowledgements;
+                this.failures = failures;
+            }
+
+            /**
+             * @return average round trip of the peer's last pings, {@link Long#MAX_VALUE} if it hasn't answered one
+             */
+            public long getPingMillis() {
+                return pingMillis;
+            }
+
+            /**
+             * @return moving average of how long the peer took to acknowledge a broadcast, counting failures as the
+             * timeout, 0 if it hasn't been broadcast to
+             */
+            public long getAcknowledgementNanos() {
+                return acknowledgementNanos;
+            }
+
+            public long getBroadcasts() {
+                return broadcasts;
+            }
+
+            public long getAcknowledgements() {
+                return acknowledgements;
+            }
+
+            /**
+             * @return broadcasts the peer didn't acknowledge in time
+             */
+            public long getFailures() {
+                return failures;
+            }
+
+            @Override
+            public String toString() {
+                return "ping " + pingMillis + " ms, acknowledgement " + acknowledgementNanos / 1000 + " us, "
+                        + acknowledgements + "/" + broadcasts + " acknowledged, " + failures + " failed";
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package hr.fer.rgkk.transactions;
+
+import com.google.common.collect.ImmutableList;
+import org.bitcoinj.core.PeerAddress;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Several peers a {@link WalletKit} connects to at once, so that it doesn't depend on a single node.
+ */
+public class PeerSet implements PeerBackend {
+
+    private final List<PeerBackend> peers;
+
+    public PeerSet(PeerBackend... peers) {
+        checkArgument(peers.length > 0, "At least one peer is needed");
+        this.peers = ImmutableList.copyOf(peers);
+    }
+
+    /**
+     * @param hosts comma separated {@code host:port} pairs, the port defaults to {@link RemotePeer#DEFAULT_PORT}
+     */
+    public static PeerSet parse(String hosts) {
+        List<PeerBackend> peers = new ArrayList<>();
+        for (String host : hosts.split(",")) {
+            host = host.trim();
+            if (host.isEmpty()) {
+                continue;
+            }
+            int colon = host.lastIndexOf(':');
+            peers.add(colon < 0
+                    ? new RemotePeer(host, RemotePeer.DEFAULT_PORT)
+                    : new RemotePeer(host.substring(0, colon), Integer.parseInt(host.substring(colon + 1))));
+        }
+        return new PeerSet(peers.toArray(new PeerBackend[peers.size()]));
+    }
+
+    /**
+     * @return the addresses of every peer that could be resolved
+     */
+    @Override
+    public PeerAddress[] getPeerAddresses() {
+        List<PeerAddress> addresses = new ArrayList<>();
+        for (PeerBackend peer : peers) {
+            for (PeerAddress address : peer.getPeerAddresses()) {
+                addresses.add(address);
+            }
+        }
+        return addresses.toArray(new PeerAddress[addresses.size()]);
+    }
+
+    @Override
+    public void close() {
+        for (PeerBackend peer : peers) {
+            peer.close();
+        }
+    }
+}
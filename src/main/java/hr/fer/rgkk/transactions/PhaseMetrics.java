@@ -0,0 +1,87 @@
+package hr.fer.rgkk.transactions;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latencies and failures of one {@link ScriptMetrics.Phase} of one script type.
+ */
+public final class PhaseMetrics implements PhaseMetricsMBean {
+
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final AtomicLong errors = new AtomicLong();
+
+    void record(long nanos) {
+        latencies.record(nanos);
+    }
+
+    void recordError(long nanos) {
+        latencies.record(nanos);
+        errors.incrementAndGet();
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(latencies.snapshot(), errors.get());
+    }
+
+    @Override
+    public long getCount() {
+        return latencies.snapshot().getCount();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.get();
+    }
+
+    @Override
+    public double getMean() {
+        return latencies.snapshot().getMean();
+    }
+
+    @Override
+    public long getMax() {
+        return latencies.snapshot().getMax();
+    }
+
+    @Override
+    public long get50thPercentile() {
+        return latencies.snapshot().getValueAtPercentile(50);
+    }
+
+    @Override
+    public long get90thPercentile() {
+        return latencies.snapshot().getValueAtPercentile(90);
+    }
+
+    @Override
+    public long get99thPercentile() {
+        return latencies.snapshot().getValueAtPercentile(99);
+    }
+
+    @Override
+    public long get999thPercentile() {
+        return latencies.snapshot().getValueAtPercentile(99.9);
+    }
+
+    public static final class Snapshot {
+
+        private final LatencyHistogram.Snapshot latencies;
+        private final long errors;
+
+        private Snapshot(LatencyHistogram.Snapshot latencies, long errors) {
+            this.latencies = latencies;
+            this.errors = errors;
+        }
+
+        /**
+         * @return latencies of all calls, failed ones included
+         */
+        public LatencyHistogram.Snapshot getLatencies() {
+            return latencies;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+    }
+}
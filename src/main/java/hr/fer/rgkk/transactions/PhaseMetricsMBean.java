@@ -0,0 +1,23 @@
+package hr.fer.rgkk.transactions;
+
+/**
+ * JMX view of one phase of one script type, latencies are in nanoseconds.
+ */
+public interface PhaseMetricsMBean {
+
+    long getCount();
+
+    long getErrors();
+
+    double getMean();
+
+    long getMax();
+
+    long get50thPercentile();
+
+    long get90thPercentile();
+
+    long get99thPercentile();
+
+    long get999thPercentile();
+}
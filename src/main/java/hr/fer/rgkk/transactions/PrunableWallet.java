@@ -0,0 +1,165 @@
+package hr.fer.rgkk.transactions;
+
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.ScriptException;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.wallet.KeyChainGroup;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.WalletProtobufSerializer;
+import org.bitcoinj.wallet.WalletTransaction;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A wallet that can forget transactions that are settled: confirmed at least a given depth, with every output it
+ * owns or watches and every contract output spent by transactions confirmed that deep as well. Contract outputs
+ * are those not paying to an address, such as the locking scripts of the contracts in this package, which the
+ * wallet neither owns nor watches but which still have to be redeemed. Only outputs paying to someone else's
+ * address are left out. No reorg short of that depth can bring the outputs back, so only the history is lost. See
+ * {@link WalletPruner} for archiving them first.
+ * <p>
+ * A contract output redeemed by a transaction the wallet never saw keeps its transaction forever.
+ */
+public class PrunableWallet extends Wallet {
+
+    /**
+     * Creates wallets of this class when loading them or starting a kit.
+     */
+    public static final WalletProtobufSerializer.WalletFactory FACTORY = new WalletProtobufSerializer.WalletFactory() {
+        @Override
+        public Wallet create(NetworkParameters params, KeyChainGroup keyChainGroup) {
+            return new PrunableWallet(params, keyChainGroup);
+        }
+    };
+
+    public PrunableWallet(NetworkParameters params) {
+        super(params);
+    }
+
+    public PrunableWallet(NetworkParameters params, KeyChainGroup keyChainGroup) {
+        super(params, keyChainGroup);
+    }
+
+    /**
+     * @return settled transactions, the one that confirmed first first
+     */
+    public List<Transaction> getSettledTransactions(int minDepth) {
+        lock.lock();
+        try {
+            List<Transaction> settled = new ArrayList<>();
+            for (Transaction transaction : getTransactionPool(WalletTransaction.Pool.SPENT).values()) {
+                if (isSettled(transaction, minDepth)) {
+                    settled.add(transaction);
+                }
+            }
+            Collections.sort(settled, new Comparator<Transaction>() {
+                @Override
+                public int compare(Transaction a, Transaction b) {
+                    return Integer.compare(
+                            a.getConfidence().getAppearedAtChainHeight(), b.getConfidence().getAppearedAtChainHeight()
+                    );
+                }
+            });
+            return settled;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes those of {@code transactions} that are still settled. Inputs of the remaining transactions that
+     * spent them are disconnected, so their fees and values sent are no longer known.
+     * <p>
+     * A removed transaction stays reachable through the outputs it spent until those transactions are removed too.
+     *
+     * @return the transactions removed
+     */
+    public List<Transaction> removeSettledTransactions(Collection<Transaction> transactions, int minDepth) {
+        lock.lock();
+        try {
+            Map<Sha256Hash, Transaction> spent = getTransactionPool(WalletTransaction.Pool.SPENT);
+            List<Transaction> removed = new ArrayList<>();
+            for (Transaction transaction : transactions) {
+                if (spent.get(transaction.getHash()) != transaction || !isSettled(transaction, minDepth)) {
+                    continue;
+                }
+                for (TransactionOutput output : transaction.getOutputs()) {
+                    TransactionInput spentBy = output.getSpentBy();
+                    if (spentBy != null) {
+                        spentBy.disconnect();
+                    }
+                }
+                spent.remove(transaction.getHash());
+                this.transactions.remove(transaction.getHash());
+                removed.add(transaction);
+            }
+            if (!removed.isEmpty()) {
+                saveLater();
+                maybeQueueOnWalletChanged();
+            }
+            return removed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return serialized size of every transaction in the wallet, from the sizes the transactions keep
+     */
+    public long getTransactionBytes() {
+        lock.lock();
+        try {
+            long bytes = 0;
+            for (Transaction transaction : this.transactions.values()) {
+                bytes += transaction.getMessageSize();
+            }
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Guarded by lock
+    private boolean isSettled(Transaction transaction, int minDepth) {
+        if (!isDeep(transaction, minDepth)) {
+            return false;
+        }
+        for (TransactionOutput output : transaction.getOutputs()) {
+            if (!output.isMineOrWatched(this) && isPayment(output)) {
+                continue;
+            }
+            TransactionInput spentBy = output.getSpentBy();
+            if (spentBy == null || spentBy.getParentTransaction() == null
+                    || !isDeep(spentBy.getParentTransaction(), minDepth)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Pays to someone else's address rather than locking a contract
+    private static boolean isPayment(TransactionOutput output) {
+        try {
+            Script script = output.getScriptPubKey();
+            return script.isSentToAddress() || script.isPayToScriptHash();
+        } catch (ScriptException e) {
+            return false;
+        }
+    }
+
+    private static boolean isDeep(Transaction transaction, int minDepth) {
+        TransactionConfidence confidence = transaction.getConfidence();
+        return confidence.getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING
+                && confidence.getDepthInBlocks() >= minDepth;
+    }
+}
@@ -0,0 +1,414 @@
+package hr.fer.rgkk.transactions;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptChunk;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A regtest node running inside the JVM, listening on a loopback port.
+ * <p>
+ * It keeps its own chain, serves headers, blocks and filtered blocks to SPV clients, accepts broadcast
+ * transactions into a memory pool and mines them into a block on demand, or right away if auto mining is on.
+ * Nothing is validated, the peer only exists so that wallets can be synced and tested without a real node.
+ */
+public class RegTestPeer implements PeerBackend {
+
+    private final static Logger LOGGER = LoggerFactory.getLogger(RegTestPeer.class);
+
+    private static final int MAX_HEADERS = 2000;
+    private static final int MAX_BLOCKS = 500;
+    private static final int HEADER_LENGTH = 24;
+    private static final byte[] EMPTY_BYTES = new byte[0];
+
+    private final NetworkParameters parameters;
+    private final ServerSocket serverSocket;
+    private final Set<Connection> connections = new CopyOnWriteArraySet<>();
+    private final byte[] coinbasePubKey = new ECKey().getPubKey();
+
+    // Guarded by this
+    private final List<Block> chain = new ArrayList<>();
+    private final Map<Sha256Hash, Integer> heights = new HashMap<>();
+    private final Map<Sha256Hash, Transaction> memoryPool = new LinkedHashMap<>();
+
+    private volatile boolean autoMine = true;
+    private volatile long delayMillis;
+
+    public RegTestPeer(NetworkParameters parameters) throws IOException {
+        this(parameters, Collections.singletonList(parameters.getGenesisBlock()), Collections.<Transaction>emptyList());
+    }
+
+    private RegTestPeer(NetworkParameters parameters, List<Block> chain, Collection<Transaction> memoryPool)
+            throws IOException {
+        this.parameters = parameters;
+        for (Block block : chain) {
+            heights.put(block.getHash(), this.chain.size());
+            this.chain.add(block);
+        }
+        for (Transaction transaction : memoryPool) {
+            // Mining adopts pooled transactions into a block, so forks must not share them
+            Transaction copy = new Transaction(parameters, transaction.bitcoinSerialize());
+            this.memoryPool.put(copy.getHash(), copy);
+        }
+
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(this::accept, "regtest-peer-" + serverSocket.getLocalPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * @return a new peer, listening on its own port, that starts with this peer's chain and memory pool
+     * and then goes its own way
+     */
+    public synchronized RegTestPeer fork() throws IOException {
+        return new RegTestPeer(parameters, chain, memoryPool.values());
+    }
+
+    @Override
+    public PeerAddress[] getPeerAddresses() {
+        return new PeerAddress[]{new PeerAddress(serverSocket.getInetAddress(), serverSocket.getLocalPort())};
+    }
+
+    /**
+     * @param autoMine whether every accepted transaction is mined into a block immediately
+     */
+    public void setAutoMine(boolean autoMine) {
+        this.autoMine = autoMine;
+    }
+
+    /**
+     * @param delayMillis how long the peer waits before handling each message it receives, as if it were far away
+     */
+    public void setDelay(long delayMillis) {
+        this.delayMillis = delayMillis;
+    }
+
+    public synchronized int getChainHeight() {
+        return chain.size() - 1;
+    }
+
+    public synchronized Set<Sha256Hash> getMemoryPool() {
+        return new HashSet<>(memoryPool.keySet());
+    }
+
+    /**
+     * Mines a block paying {@code value} to {@code address} out of thin air, the output isn't a coinbase
+     * so it can be spent right away.
+     */
+    public Transaction fund(Address address, Coin value) {
+        Transaction transaction = new Transaction(parameters);
+        TransactionInput input = new TransactionInput(
+                parameters, transaction, EMPTY_BYTES,
+                new TransactionOutPoint(parameters, 0, Sha256Hash.of(new ECKey().getPubKey()))
+        );
+        transaction.addInput(input);
+        transaction.addOutput(value, address);
+        synchronized (this) {
+            memoryPool.put(transaction.getHash(), transaction);
+        }
+        mineBlock();
+        return transaction;
+    }
+
+    /**
+     * Mines the memory pool into a new block and announces it to every connected client.
+     */
+    public Block mineBlock() {
+        Block block;
+        synchronized (this) {
+            Block tip = chain.get(chain.size() - 1);
+            block = tip.createNextBlockWithCoinbase(
+                    Block.BLOCK_VERSION_BIP65, coinbasePubKey, Coin.FIFTY_COINS, chain.size()
+            );
+            if (!memoryPool.isEmpty()) {
+                for (Transaction transaction : memoryPool.values()) {
+                    block.addTransaction(transaction);
+                }
+                memoryPool.clear();
+                block.solve();
+            }
+            heights.put(block.getHash(), chain.size());
+            chain.add(block);
+        }
+        InventoryMessage inventory = new InventoryMessage(parameters);
+        inventory.addBlock(block);
+        for (Connection connection : connections) {
+            connection.send(inventory);
+        }
+        return block;
+    }
+
+    @Override
+    public void close() {
+        try {
+            serverSocket.close();
+        } catch (IOException ignore) {}
+        for (Connection connection : connections) {
+            connection.close();
+        }
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Connection connection = new Connection(serverSocket.accept());
+                connections.add(connection);
+                Thread reader = new Thread(connection, "regtest-peer-connection-" + connection.socket.getPort());
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    LOGGER.warn("Failed to accept a connection", e);
+                }
+            }
+        }
+    }
+
+    private synchronized List<Block> blocksAfter(List<Sha256Hash> locator, Sha256Hash stopHash, int limit) {
+        int from = 1;
+        for (Sha256Hash hash : locator) {
+            Integer height = heights.get(hash);
+            if (height != null) {
+                from = height + 1;
+                break;
+            }
+        }
+        List<Block> blocks = new ArrayList<>();
+        for (int height = from; height < chain.size() && blocks.size() < limit; height++) {
+            Block block = chain.get(height);
+            blocks.add(block);
+            if (block.getHash().equals(stopHash)) {
+                break;
+            }
+        }
+        return blocks;
+    }
+
+    private synchronized Block block(Sha256Hash hash) {
+        Integer height = heights.get(hash);
+        return height == null ? null : chain.get(height);
+    }
+
+    private synchronized Transaction pooledTransaction(Sha256Hash hash) {
+        return memoryPool.get(hash);
+    }
+
+    private void receive(Transaction transaction) {
+        synchronized (this) {
+            memoryPool.put(transaction.getHash(), transaction);
+        }
+        LOGGER.debug("Accepted {}", transaction.getHash());
+        if (autoMine) {
+            mineBlock();
+        }
+    }
+
+    private class Connection implements Runnable {
+
+        private final Socket socket;
+        private final MessageSerializer serializer = parameters.getSerializer(false);
+        private volatile BloomFilter filter;
+
+        Connection(Socket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public void run() {
+            try {
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                byte[] header = new byte[HEADER_LENGTH];
+                while (true) {
+                    in.readFully(header);
+                    // magic (4), command (12), payload length (4), checksum (4)
+                    int length = (int) Utils.readUint32(header, 16);
+                    checkArgument(length >= 0 && length <= Message.MAX_SIZE, "Message too large");
+                    byte[] message = Arrays.copyOf(header, HEADER_LENGTH + length);
+                    in.readFully(message, HEADER_LENGTH, length);
+                    long delay = delayMillis;
+                    if (delay > 0) {
+                        Thread.sleep(delay);
+                    }
+                    handle(serializer.deserialize(ByteBuffer.wrap(message)));
+                }
+            } catch (EOFException | SocketException e) {
+                LOGGER.debug("Client disconnected");
+            } catch (Exception e) {
+                LOGGER.warn("Dropping client", e);
+            } finally {
+                close();
+            }
+        }
+
+        private void handle(Message message) {
+            if (message instanceof VersionMessage) {
+                VersionMessage version = new VersionMessage(parameters, getChainHeight());
+                version.localServices = VersionMessage.NODE_NETWORK;
+                send(version);
+                send(new VersionAck());
+            } else if (message instanceof Ping) {
+                send(new Pong(((Ping) message).getNonce()));
+            } else if (message instanceof BloomFilter) {
+                // Replaced whenever the client's keys change
+                filter = (BloomFilter) message;
+            } else if (message instanceof GetHeadersMessage) {
+                GetHeadersMessage request = (GetHeadersMessage) message;
+                List<Block> headers = new ArrayList<>();
+                for (Block block : blocksAfter(request.getLocator(), request.getStopHash(), MAX_HEADERS)) {
+                    headers.add(block.cloneAsHeader());
+                }
+                send(new HeadersMessage(parameters, headers));
+            } else if (message instanceof GetBlocksMessage) {
+                GetBlocksMessage request = (GetBlocksMessage) message;
+                InventoryMessage inventory = new InventoryMessage(parameters);
+                for (Block block : blocksAfter(request.getLocator(), request.getStopHash(), MAX_BLOCKS)) {
+                    inventory.addBlock(block);
+                }
+                send(inventory);
+            } else if (message instanceof GetDataMessage) {
+                serve((GetDataMessage) message);
+            } else if (message instanceof MemoryPoolMessage) {
+                InventoryMessage inventory = new InventoryMessage(parameters);
+                for (Sha256Hash hash : getMemoryPool()) {
+                    Transaction transaction = pooledTransaction(hash);
+                    if (transaction != null && matches(transaction)) {
+                        inventory.addTransaction(transaction);
+                    }
+                }
+                send(inventory);
+            } else if (message instanceof Transaction) {
+                receive((Transaction) message);
+            }
+        }
+
+        private void serve(GetDataMessage request) {
+            List<InventoryItem> missing = new ArrayList<>();
+            for (InventoryItem item : request.getItems()) {
+                if (item.type == InventoryItem.Type.Transaction) {
+                    Transaction transaction = pooledTransaction(item.hash);
+                    if (transaction == null) {
+                        missing.add(item);
+                    } else {
+                        send(transaction);
+                    }
+                    continue;
+                }
+                Block block = block(item.hash);
+                if (block == null) {
+                    missing.add(item);
+                } else if (item.type == InventoryItem.Type.FilteredBlock && filter != null) {
+                    // Matched transactions follow the merkle block, as a full node would send them
+                    FilteredBlock filteredBlock = filter(block);
+                    send(filteredBlock);
+                    for (Transaction transaction : filteredBlock.getAssociatedTransactions().values()) {
+                        send(transaction);
+                    }
+                } else {
+                    send(block);
+                }
+            }
+            if (!missing.isEmpty()) {
+                send(new NotFoundMessage(parameters, missing));
+            }
+        }
+
+        /**
+         * Same as {@link BloomFilter#applyAndUpdate(Block)}, which fails on small number pushes
+         * found in the contract scripts.
+         */
+        private FilteredBlock filter(Block block) {
+            List<Transaction> transactions = block.getTransactions();
+            List<Sha256Hash> hashes = new ArrayList<>(transactions.size());
+            List<Transaction> matched = new ArrayList<>();
+            byte[] bits = new byte[(transactions.size() + 7) / 8];
+            for (int i = 0; i < transactions.size(); i++) {
+                Transaction transaction = transactions.get(i);
+                hashes.add(transaction.getHash());
+                if (matches(transaction)) {
+                    Utils.setBitLE(bits, i);
+                    matched.add(transaction);
+                }
+            }
+            FilteredBlock filteredBlock = new FilteredBlock(
+                    parameters, block.cloneAsHeader(), PartialMerkleTree.buildFromLeaves(parameters, bits, hashes)
+            );
+            for (Transaction transaction : matched) {
+                filteredBlock.provideTransaction(transaction);
+            }
+            return filteredBlock;
+        }
+
+        private boolean matches(Transaction transaction) {
+            BloomFilter filter = this.filter;
+            if (filter == null || filter.contains(transaction.getHash().getBytes())) {
+                return true;
+            }
+            boolean found = false;
+            for (TransactionOutput output : transaction.getOutputs()) {
+                Script script = output.getScriptPubKey();
+                if (containsAny(filter, script)) {
+                    found = true;
+                    // Spends of a matched output should match too
+                    if (filter.getUpdateFlag() == BloomFilter.BloomUpdate.UPDATE_ALL
+                            || (filter.getUpdateFlag() == BloomFilter.BloomUpdate.UPDATE_P2PUBKEY_ONLY
+                            && (script.isSentToRawPubKey() || script.isSentToMultiSig()))) {
+                        filter.insert(output.getOutPointFor().unsafeBitcoinSerialize());
+                    }
+                }
+            }
+            if (found) {
+                return true;
+            }
+            for (TransactionInput input : transaction.getInputs()) {
+                if (filter.contains(input.getOutpoint().unsafeBitcoinSerialize())
+                        || containsAny(filter, input.getScriptSig())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean containsAny(BloomFilter filter, Script script) {
+            for (ScriptChunk chunk : script.getChunks()) {
+                if (chunk.data != null && filter.contains(chunk.data)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        synchronized void send(Message message) {
+            try {
+                OutputStream out = socket.getOutputStream();
+                serializer.serialize(message, out);
+                out.flush();
+            } catch (IOException e) {
+                LOGGER.debug("Failed to send {}", message.getClass().getSimpleName(), e);
+                close();
+            }
+        }
+
+        void close() {
+            connections.remove(this);
+            try {
+                socket.close();
+            } catch (IOException ignore) {}
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package hr.fer.rgkk.transactions;
+
+import org.bitcoinj.core.PeerAddress;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * A node running somewhere else, resolved over DNS when the kit starts.
+ */
+public class RemotePeer implements PeerBackend {
+
+    private final static Logger LOGGER = LoggerFactory.getLogger(RemotePeer.class);
+
+    // NOTE change the address of the server
+    static final String DEFAULT_HOST = "bujica.zemris.fer.hr";
+    static final int DEFAULT_PORT = 8080;
+
+    private final String host;
+    private final int port;
+
+    public RemotePeer() {
+        this(DEFAULT_HOST, DEFAULT_PORT);
+    }
+
+    public RemotePeer(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    @Override
+    public PeerAddress[] getPeerAddresses() {
+        try {
+            return new PeerAddress[]{new PeerAddress(InetAddress.getByName(host), port)};
+        } catch (UnknownHostException e) {
+            LOGGER.warn("Could not resolve {}", host, e);
+            return new PeerAddress[0];
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+}
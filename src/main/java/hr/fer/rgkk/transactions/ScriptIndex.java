@@ -0,0 +1,375 @@
+package hr.fer.rgkk.transactions;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.utils.Threading;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.listeners.WalletCoinsReceivedEventListener;
+import org.bitcoinj.wallet.listeners.WalletCoinsSentEventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unspent outputs of committed transactions by the SHA-256 of their locking script, so that the output funding a
+ * contract is found from its locking script alone, also after a restart.
+ * <p>
+ * Every change is appended to an index file: a funded record per output and a spent record per input spending an
+ * indexed output. Lookups see a change right away, a background thread writes whatever has queued up with one
+ * fsync, see {@link #sync()}. The file is replayed on start and compacted once most of it is spent.
+ */
+public final class ScriptIndex implements AutoCloseable {
+
+    private final static Logger LOGGER = LoggerFactory.getLogger(ScriptIndex.class);
+
+    private static final byte FUNDED = 1;
+    // Kind, script hash, outpoint and value
+    private static final int FUNDED_SIZE = 1 + 32 + 32 + 4 + 8;
+    private static final byte SPENT = 2;
+    // Kind and outpoint
+    private static final int SPENT_SIZE = 1 + 32 + 4;
+
+    private final NetworkParameters parameters;
+    private final File indexFile;
+    private final RandomAccessFile index;
+    private final Map<Sha256Hash, FundedOutput> byScript = new HashMap<>();
+    private final Map<TransactionOutPoint, Sha256Hash> byOutPoint = new HashMap<>();
+    private final List<Wallet> watched = new ArrayList<>();
+    private final Listener listener = new Listener();
+    private final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private final Object progress = new Object();
+    // Guarded by progress
+    private long enqueued;
+    private long synced;
+    private IOException failure;
+    private volatile boolean closed;
+
+    /**
+     * @param indexFile created if missing
+     */
+    public ScriptIndex(NetworkParameters parameters, File indexFile) throws IOException {
+        this.parameters = parameters;
+        this.indexFile = indexFile;
+        RandomAccessFile index = new RandomAccessFile(indexFile, "rw");
+        int spent = replay(index);
+        this.index = spent > byScript.size() ? compact(index) : index;
+        this.writer = new Thread(this::write, "script-index");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Records every transaction {@code wallet} commits or receives from now on, before the call committing it
+     * returns. Only queueing the records happens under the wallet's lock, not writing them.
+     */
+    public synchronized void watch(Wallet wallet) {
+        wallet.addCoinsReceivedEventListener(Threading.SAME_THREAD, listener);
+        wallet.addCoinsSentEventListener(Threading.SAME_THREAD, listener);
+        watched.add(wallet);
+    }
+
+    /**
+     * Indexes the outputs of {@code transaction} and drops the indexed outputs it spends. Recording the same
+     * transaction again changes nothing.
+     *
+     * @throws IOException if writing earlier records failed, nothing is recorded from then on
+     */
+    public synchronized void record(Transaction transaction) throws IOException {
+        synchronized (progress) {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+        ByteBuffer records = ByteBuffer.allocate(
+                transaction.getInputs().size() * SPENT_SIZE + transaction.getOutputs().size() * FUNDED_SIZE
+        );
+        for (TransactionInput input : transaction.getInputs()) {
+            TransactionOutPoint outPoint = input.getOutpoint();
+            if (spend(outPoint)) {
+                records.put(SPENT).put(outPoint.getHash().getBytes()).putInt((int) outPoint.getIndex());
+            }
+        }
+        for (TransactionOutput output : transaction.getOutputs()) {
+            Sha256Hash scriptHash = Sha256Hash.of(output.getScriptBytes());
+            TransactionOutPoint outPoint = output.getOutPointFor();
+            if (fund(scriptHash, outPoint, output.getValue())) {
+                records.put(FUNDED).put(scriptHash.getBytes())
+                        .put(outPoint.getHash().getBytes()).putInt((int) outPoint.getIndex())
+                        .putLong(output.getValue().value);
+            }
+        }
+        if (records.position() == 0) {
+            return;
+        }
+        synchronized (progress) {
+            enqueued++;
+            queue.add(Arrays.copyOf(records.array(), records.position()));
+        }
+    }
+
+    /**
+     * Blocks until every transaction recorded so far is on disk. Must not be called from a wallet listener.
+     */
+    public void sync() throws IOException, InterruptedException {
+        synchronized (progress) {
+            long target = enqueued;
+            while (synced < target && failure == null) {
+                progress.wait();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * @return the unspent output locked by {@code lockingScript}, the latest one if it was funded more than once,
+     * or null if there is none
+     */
+    public synchronized FundedOutput lookup(Script lockingScript) {
+        return byScript.get(Sha256Hash.of(lockingScript.getProgram()));
+    }
+
+    /**
+     * @return the output locked by {@code lockingScript} in the transaction of {@code wallet} that funded it, or null
+     * if it isn't indexed or the wallet doesn't have that transaction
+     */
+    public TransactionOutput findOutput(Script lockingScript, Wallet wallet) {
+        FundedOutput funded = lookup(lockingScript);
+        if (funded == null) {
+            return null;
+        }
+        Transaction transaction = wallet.getTransaction(funded.getOutPoint().getHash());
+        return transaction == null ? null : transaction.getOutput(funded.getOutPoint().getIndex());
+    }
+
+    public synchronized int size() {
+        return byScript.size();
+    }
+
+    /**
+     * Writes the remaining records and stops watching.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            for (Wallet wallet : watched) {
+                wallet.removeCoinsReceivedEventListener(listener);
+                wallet.removeCoinsSentEventListener(listener);
+            }
+            watched.clear();
+        }
+        closed = true;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while closing " + indexFile, e);
+        }
+        index.close();
+        synchronized (progress) {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    private void write() {
+        List<byte[]> group = new ArrayList<>();
+        while (!closed || !queue.isEmpty()) {
+            try {
+                byte[] first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                group.add(first);
+                queue.drainTo(group);
+                int size = 0;
+                for (byte[] record : group) {
+                    size += record.length;
+                }
+                ByteBuffer records = ByteBuffer.allocate(size);
+                for (byte[] record : group) {
+                    records.put(record);
+                }
+                index.seek(index.length());
+                index.write(records.array());
+                index.getFD().sync();
+                synchronized (progress) {
+                    synced += group.size();
+                    progress.notifyAll();
+                }
+                group.clear();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException e) {
+                LOGGER.error("Failed to write script index {}", indexFile, e);
+                synchronized (progress) {
+                    failure = e;
+                    progress.notifyAll();
+                }
+                return;
+            }
+        }
+    }
+
+    private boolean fund(Sha256Hash scriptHash, TransactionOutPoint outPoint, Coin value) {
+        FundedOutput previous = byScript.get(scriptHash);
+        if (previous != null && previous.getOutPoint().equals(outPoint)) {
+            return false;
+        }
+        byScript.put(scriptHash, new FundedOutput(outPoint, value));
+        byOutPoint.put(outPoint, scriptHash);
+        return true;
+    }
+
+    private boolean spend(TransactionOutPoint outPoint) {
+        Sha256Hash scriptHash = byOutPoint.remove(outPoint);
+        if (scriptHash == null) {
+            return false;
+        }
+        FundedOutput funded = byScript.get(scriptHash);
+        // The script may have been funded again since
+        if (funded != null && funded.getOutPoint().equals(outPoint)) {
+            byScript.remove(scriptHash);
+        }
+        return true;
+    }
+
+    /**
+     * Rebuilds the maps from the index file, dropping a record cut short by a crash.
+     *
+     * @return number of spent records
+     */
+    private int replay(RandomAccessFile index) throws IOException {
+        int spent = 0;
+        long end = 0;
+        byte[] hash = new byte[32];
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            while (true) {
+                byte kind = in.readByte();
+                if (kind == FUNDED) {
+                    in.readFully(hash);
+                    Sha256Hash scriptHash = Sha256Hash.wrap(hash.clone());
+                    TransactionOutPoint outPoint = readOutPoint(in, hash);
+                    fund(scriptHash, outPoint, Coin.valueOf(in.readLong()));
+                    end += FUNDED_SIZE;
+                } else if (kind == SPENT) {
+                    spend(readOutPoint(in, hash));
+                    spent++;
+                    end += SPENT_SIZE;
+                } else {
+                    throw new IOException("Corrupt script index " + indexFile + " at " + end);
+                }
+            }
+        } catch (EOFException ignore) {
+            // Whatever follows the last complete record was never synced
+        }
+        index.setLength(end);
+        LOGGER.info("Restored {} funded scripts from {}", byScript.size(), indexFile);
+        return spent;
+    }
+
+    private TransactionOutPoint readOutPoint(DataInputStream in, byte[] hash) throws IOException {
+        in.readFully(hash);
+        Sha256Hash transactionHash = Sha256Hash.wrap(hash.clone());
+        return new TransactionOutPoint(parameters, in.readInt() & 0xFFFFFFFFL, transactionHash);
+    }
+
+    /**
+     * Rewrites the index file with a funded record per unspent output.
+     */
+    private RandomAccessFile compact(RandomAccessFile index) throws IOException {
+        File compacted = new File(indexFile.getPath() + ".compact");
+        ByteBuffer records = ByteBuffer.allocate(byScript.size() * FUNDED_SIZE);
+        for (Map.Entry<Sha256Hash, FundedOutput> entry : byScript.entrySet()) {
+            TransactionOutPoint outPoint = entry.getValue().getOutPoint();
+            records.put(FUNDED).put(entry.getKey().getBytes())
+                    .put(outPoint.getHash().getBytes()).putInt((int) outPoint.getIndex())
+                    .putLong(entry.getValue().getValue().value);
+        }
+        try (RandomAccessFile out = new RandomAccessFile(compacted, "rw")) {
+            out.setLength(0);
+            out.write(records.array());
+            out.getFD().sync();
+        }
+        index.close();
+        Files.move(compacted.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // Outputs overwritten by a later funding of their script are gone from the file
+        byOutPoint.clear();
+        for (Map.Entry<Sha256Hash, FundedOutput> entry : byScript.entrySet()) {
+            byOutPoint.put(entry.getValue().getOutPoint(), entry.getKey());
+        }
+        LOGGER.info("Compacted {} to {} funded scripts", indexFile, byScript.size());
+        return new RandomAccessFile(indexFile, "rw");
+    }
+
+    /**
+     * An unspent output and the amount it locks.
+     */
+    public static final class FundedOutput {
+
+        private final TransactionOutPoint outPoint;
+        private final Coin value;
+
+        FundedOutput(TransactionOutPoint outPoint, Coin value) {
+            this.outPoint = outPoint;
+            this.value = value;
+        }
+
+        public TransactionOutPoint getOutPoint() {
+            return outPoint;
+        }
+
+        public Coin getValue() {
+            return value;
+        }
+    }
+
+    private final class Listener implements WalletCoinsReceivedEventListener, WalletCoinsSentEventListener {
+
+        @Override
+        public void onCoinsReceived(Wallet wallet, Transaction tx, Coin prevBalance, Coin newBalance) {
+            recordQuietly(tx);
+        }
+
+        @Override
+        public void onCoinsSent(Wallet wallet, Transaction tx, Coin prevBalance, Coin newBalance) {
+            recordQuietly(tx);
+        }
+
+        private void recordQuietly(Transaction transaction) {
+            try {
+                record(transaction);
+            } catch (IOException e) {
+                LOGGER.warn("Failed to index transaction: {}", transaction.getHashAsString(), e);
+            }
+        }
+    }
+}
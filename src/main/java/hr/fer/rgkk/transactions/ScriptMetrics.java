@@ -0,0 +1,169 @@
+package hr.fer.rgkk.transactions;
+
+import org.bitcoinj.core.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Latency of every phase of a script round trip, per script type.
+ * <p>
+ * Off by default, enable it with {@link #setEnabled(boolean)} or the {@code rgkk.metrics} system property.
+ * While disabled a phase costs one volatile read. While enabled the metrics can be pulled with
+ * {@link #snapshot()} and are registered over JMX as
+ * {@code hr.fer.rgkk.transactions:type=ScriptMetrics,script=<type>,phase=<phase>}. Every phase is also
+ * recorded into the {@link EventJournal} if there is one.
+ */
+public final class ScriptMetrics {
+
+    private final static Logger LOGGER = LoggerFactory.getLogger(ScriptMetrics.class);
+
+    private static final String DOMAIN = "hr.fer.rgkk.transactions";
+
+    public enum Phase {
+        CREATE_LOCKING_SCRIPT,
+        // Includes coin selection
+        CREATE_OUTGOING_TRANSACTION,
+        SIGN,
+        TEST_SCRIPT,
+        // Until the peers have the transaction
+        SEND_TRANSACTION
+    }
+
+    private static final ConcurrentMap<Class<?>, Recorder> RECORDERS = new ConcurrentHashMap<>();
+    private static volatile boolean enabled = Boolean.getBoolean("rgkk.metrics");
+
+    private ScriptMetrics() {
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static synchronized void setEnabled(boolean enabled) {
+        ScriptMetrics.enabled = enabled;
+        if (enabled) {
+            for (Recorder recorder : RECORDERS.values()) {
+                recorder.register();
+            }
+        }
+    }
+
+    /**
+     * @return for every script type that has been used, a snapshot of each of its phases
+     */
+    public static Map<String, Map<Phase, PhaseMetrics.Snapshot>> snapshot() {
+        Map<String, Map<Phase, PhaseMetrics.Snapshot>> snapshot = new TreeMap<>();
+        for (Recorder recorder : RECORDERS.values()) {
+            Map<Phase, PhaseMetrics.Snapshot> phases = new EnumMap<>(Phase.class);
+            for (Map.Entry<Phase, PhaseMetrics> phase : recorder.phases.entrySet()) {
+                phases.put(phase.getKey(), phase.getValue().snapshot());
+            }
+            snapshot.put(recorder.scriptType, Collections.unmodifiableMap(phases));
+        }
+        return Collections.unmodifiableMap(snapshot);
+    }
+
+    static Recorder recorder(Class<?> scriptType) {
+        Recorder recorder = RECORDERS.get(scriptType);
+        if (recorder == null) {
+            Recorder created = new Recorder(scriptType);
+            recorder = RECORDERS.putIfAbsent(scriptType, created);
+            if (recorder == null) {
+                recorder = created;
+                if (enabled) {
+                    recorder.register();
+                }
+            }
+        }
+        return recorder;
+    }
+
+    /**
+     * Times the phases of one script type:
+     * <pre>
+     * long start = recorder.start();
+     * ...
+     * recorder.stop(phase, start);
+     * </pre>
+     */
+    static final class Recorder {
+
+        private final String scriptType;
+        private final Map<Phase, PhaseMetrics> phases = new EnumMap<>(Phase.class);
+
+        private Recorder(Class<?> scriptType) {
+            this.scriptType = scriptType.getSimpleName().isEmpty() ? scriptType.getName() : scriptType.getSimpleName();
+            for (Phase phase : Phase.values()) {
+                phases.put(phase, new PhaseMetrics());
+            }
+        }
+
+        /**
+         * @return start time, or 0 if neither metrics nor the {@link EventJournal} are enabled
+         */
+        long start() {
+            return enabled || EventJournal.getDefault() != null ? System.nanoTime() : 0;
+        }
+
+        void stop(Phase phase, long start) {
+            stop(phase, start, null);
+        }
+
+        /**
+         * @param transaction made or handled by the phase, it mustn't change afterwards
+         */
+        void stop(Phase phase, long start, Transaction transaction) {
+            if (start != 0) {
+                long nanos = System.nanoTime() - start;
+                if (enabled) {
+                    phases.get(phase).record(nanos);
+                }
+                journal(transaction, phase, false, nanos);
+            }
+        }
+
+        void fail(Phase phase, long start) {
+            if (start != 0) {
+                long nanos = System.nanoTime() - start;
+                if (enabled) {
+                    phases.get(phase).recordError(nanos);
+                }
+                journal(null, phase, true, nanos);
+            }
+        }
+
+        private void journal(Transaction transaction, Phase phase, boolean failed, long nanos) {
+            EventJournal journal = EventJournal.getDefault();
+            if (journal != null) {
+                journal.record(transaction, scriptType, phase, failed, nanos);
+            }
+        }
+
+        private void register() {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            for (Map.Entry<Phase, PhaseMetrics> phase : phases.entrySet()) {
+                try {
+                    ObjectName name = new ObjectName(DOMAIN + ":type=ScriptMetrics,script="
+                            + scriptType + ",phase=" + phase.getKey());
+                    server.registerMBean(phase.getValue(), name);
+                } catch (InstanceAlreadyExistsException ignore) {
+                    // Enabled before
+                } catch (JMException e) {
+                    LOGGER.warn("Failed to register metrics of {}", scriptType, e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package hr.fer.rgkk.transactions;
+
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptChunk;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static org.bitcoinj.script.ScriptOpCodes.*;
+
+/**
+ * A locking script serialized once, with the offsets of its variable parts (slots) recorded.
+ * <p>
+ * The template is compiled by running the {@link org.bitcoinj.script.ScriptBuilder} shape with placeholder data,
+ * so an instantiated program is byte-identical to what the builder would produce, but costs one array copy
+ * and one write per slot occurrence instead of building and re-encoding every chunk.
+ */
+final class ScriptTemplate {
+
+    private static final int MAX_SLOTS = 4;
+
+    private final byte[] template;
+    private final int[] slotLengths;
+    // slotOffsets[i] holds every offset at which slot i is written, a slot may appear several times
+    private final int[][] slotOffsets;
+
+    private ScriptTemplate(byte[] template, int[] slotLengths, int[][] slotOffsets) {
+        this.template = template;
+        this.slotLengths = slotLengths;
+        this.slotOffsets = slotOffsets;
+    }
+
+    /**
+     * @param shape       builds the script from its slot values, in the order given by {@code slotLengths}
+     * @param slotLengths length of each slot, every slot must be longer than one byte so that the builder
+     *                    doesn't encode it as a small number opcode
+     */
+    static ScriptTemplate compile(Function<byte[][], Script> shape, int... slotLengths) {
+        checkArgument(slotLengths.length <= MAX_SLOTS, "At most %s slots are supported", MAX_SLOTS);
+        byte[][] placeholders = new byte[slotLengths.length][];
+        for (int i = 0; i < slotLengths.length; i++) {
+            checkArgument(slotLengths[i] > 1, "Slots must be longer than one byte");
+            placeholders[i] = new byte[slotLengths[i]];
+            // Distinct placeholders so repeated slots can be told apart
+            Arrays.fill(placeholders[i], (byte) (0xA0 + i));
+        }
+        byte[] program = shape.apply(placeholders).getProgram();
+
+        List<List<Integer>> offsets = new ArrayList<>();
+        for (int i = 0; i < slotLengths.length; i++) {
+            offsets.add(new ArrayList<Integer>());
+        }
+        for (ScriptChunk chunk : new Script(program).getChunks()) {
+            if (chunk.data == null) {
+                continue;
+            }
+            for (int i = 0; i < placeholders.length; i++) {
+                if (Arrays.equals(chunk.data, placeholders[i])) {
+                    offsets.get(i).add(chunk.getStartLocationInProgram() + pushHeaderLength(chunk.opcode));
+                }
+            }
+        }
+
+        int[][] slotOffsets = new int[slotLengths.length][];
+        for (int i = 0; i < slotLengths.length; i++) {
+            List<Integer> slot = offsets.get(i);
+            checkArgument(!slot.isEmpty(), "Slot %s does not appear in the script", i);
+            slotOffsets[i] = new int[slot.size()];
+            for (int j = 0; j < slot.size(); j++) {
+                slotOffsets[i][j] = slot.get(j);
+            }
+        }
+        return new ScriptTemplate(program, slotLengths.clone(), slotOffsets);
+    }
+
+    private static int pushHeaderLength(int opcode) {
+        if (opcode < OP_PUSHDATA1) return 1;
+        if (opcode == OP_PUSHDATA1) return 2;
+        if (opcode == OP_PUSHDATA2) return 3;
+        return 5;
+    }
+
+    byte[] instantiateProgram(byte[]... slots) {
+        checkArgument(slots.length == slotLengths.length, "Expected %s slots", slotLengths.length);
+        byte[] program = Arrays.copyOf(template, template.length);
+        for (int i = 0; i < slots.length; i++) {
+            checkArgument(slots[i].length == slotLengths[i], "Slot %s must be %s bytes", i, slotLengths[i]);
+            for (int offset : slotOffsets[i]) {
+                System.arraycopy(slots[i], 0, program, offset, slotLengths[i]);
+            }
+        }
+        return program;
+    }
+
+    Script instantiate(byte[]... slots) {
+        return new Script(instantiateProgram(slots));
+    }
+
+    /**
+     * Templates of one script shape, compiled lazily for each combination of slot lengths
+     * (compressed and uncompressed keys, nonces of different sizes).
+     */
+    static final class Family {
+
+        private final Function<byte[][], Script> shape;
+        private final ConcurrentMap<Long, ScriptTemplate> templates = new ConcurrentHashMap<>();
+
+        Family(Function<byte[][], Script> shape) {
+            this.shape = shape;
+        }
+
+        Script instantiate(byte[]... slots) {
+            return template(slots).instantiate(slots);
+        }
+
+        ScriptTemplate template(byte[]... slots) {
+            final int[] lengths = new int[slots.length];
+            long key = 0;
+            for (int i = 0; i < slots.length; i++) {
+                lengths[i] = slots[i].length;
+                key = (key << 16) | lengths[i];
+            }
+            ScriptTemplate template = templates.get(key);
+            if (template == null) {
+                template = compile(shape, lengths);
+                ScriptTemplate existing = templates.putIfAbsent(key, template);
+                if (existing != null) {
+                    template = existing;
+                }
+            }
+            return template;
+        }
+    }
+}
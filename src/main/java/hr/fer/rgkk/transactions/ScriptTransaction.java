@@ -1,6 +1,9 @@
 package hr.fer.rgkk.transactions;
 
 import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import org.bitcoinj.core.*;
 import org.bitcoinj.crypto.TransactionSignature;
 import org.bitcoinj.script.Script;
@@ -11,13 +14,29 @@ import org.slf4j.LoggerFactory;
 import org.spongycastle.util.encoders.Hex;
 
 import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkState;
 
 public abstract class ScriptTransaction implements AutoCloseable {
 
     private final static Logger LOGGER = LoggerFactory.getLogger(ScriptTransaction.class);
 
+    // Flags used when checking a redemption before it is broadcast
+    static final Set<Script.VerifyFlag> VERIFY_FLAGS = ImmutableSet.of(Script.VerifyFlag.P2SH);
+
+    // Largest DER signature plus the sighash byte, with its push opcode
+    protected static final int MAX_SIGNATURE_PUSH = 1 + 73;
+    // Compressed public key with its push opcode
+    protected static final int PUB_KEY_PUSH = 1 + 33;
+
     private final WalletKit walletKit;
     private final NetworkParameters parameters;
+    // Multi-signer scripts sign the same input with several keys
+    private final SighashCache sighashCache = new SighashCache(16);
+    private final ScriptMetrics.Recorder metrics = ScriptMetrics.recorder(getClass());
 
     private long nLockTime = 0;
     // 0xFFFFFFFF
@@ -34,25 +53,93 @@ public abstract class ScriptTransaction implements AutoCloseable {
 
     public abstract Script createLockingScript();
 
-    public abstract Script createUnlockingScript(Transaction unsignedTransaction);
+    public Script createUnlockingScript(Transaction unsignedTransaction) {
+        return createUnlockingScript(unsignedTransaction, 0);
+    }
+
+    /**
+     * @param inputIndex the input of {@code unsignedTransaction} spending this contract's output
+     */
+    public abstract Script createUnlockingScript(Transaction unsignedTransaction, int inputIndex);
+
+    /**
+     * @return an upper bound on the size of {@link #createUnlockingScript(Transaction, int)}, used to keep
+     * sweeps under the standard transaction size
+     */
+    protected abstract int getMaxUnlockingScriptSize();
 
     protected TransactionSignature sign(Transaction transaction, ECKey key) {
-        Script script = transaction.getInput(0).getConnectedOutput().getScriptPubKey();
-        return transaction.calculateSignature(0, key, script, Transaction.SigHash.ALL, false);
+        return sign(transaction, 0, key);
+    }
+
+    /**
+     * Signs {@code inputIndex} over the script of the output it spends, which must be connected.
+     */
+    protected TransactionSignature sign(Transaction transaction, int inputIndex, ECKey key) {
+        long start = metrics.start();
+        Script script = transaction.getInput(inputIndex).getConnectedOutput().getScriptPubKey();
+        Sha256Hash hash = sighashCache.hashForSignature(
+                transaction, inputIndex, script.getProgram(), Transaction.SigHash.ALL, false
+        );
+        TransactionSignature signature = new TransactionSignature(key.sign(hash), Transaction.SigHash.ALL, false);
+        // Our own signature, checking the spend later doesn't need to verify it
+        SignatureCache.getDefault().add(hash, signature, key.getPubKey());
+        metrics.stop(ScriptMetrics.Phase.SIGN, start);
+        return signature;
     }
 
     public void testScript(Script inputScript, Script spendingScript,Transaction redemptionTransaction) {
-        spendingScript.correctlySpends(redemptionTransaction, 0, inputScript, ImmutableSet.of(Script.VerifyFlag.P2SH));
+        long start = metrics.start();
+        try {
+            TemplateInterpreter.correctlySpends(spendingScript, redemptionTransaction, 0, inputScript, VERIFY_FLAGS);
+        } catch (ScriptException e) {
+            metrics.fail(ScriptMetrics.Phase.TEST_SCRIPT, start);
+            throw e;
+        }
+        metrics.stop(ScriptMetrics.Phase.TEST_SCRIPT, start);
+    }
+
+    /**
+     * Same check as {@link #testScript(Script, Script, Transaction)}, packaged for {@link BatchVerifier}.
+     */
+    public SpendJob createSpendJob(Script inputScript, Script spendingScript, Transaction redemptionTransaction) {
+        return new SpendJob(inputScript, spendingScript, redemptionTransaction);
     }
 
     public Transaction createOutgoingTransaction(Script script, Coin amount) throws InsufficientMoneyException {
+        long start = metrics.start();
         Transaction transaction = new Transaction(parameters);
         transaction.addOutput(amount, script);
         SendRequest request = SendRequest.forTx(transaction);
-        walletKit.getWallet().completeTx(request);
+        try {
+            walletKit.getWallet().completeTx(request);
+        } catch (InsufficientMoneyException e) {
+            metrics.fail(ScriptMetrics.Phase.CREATE_OUTGOING_TRANSACTION, start);
+            throw e;
+        }
+        metrics.stop(ScriptMetrics.Phase.CREATE_OUTGOING_TRANSACTION, start, transaction);
         return transaction;
     }
 
+    /**
+     * Funds every script of {@code batch} from this contract's wallet, in as few transactions as the batch allows.
+     *
+     * @return the output paying each script
+     */
+    public Map<Script, TransactionOutput> createOutgoingTransactions(FundingBatch batch)
+            throws InsufficientMoneyException {
+        long start = metrics.start();
+        Map<Script, TransactionOutput> outputs;
+        try {
+            outputs = batch.fund(walletKit.getWallet());
+        } catch (InsufficientMoneyException e) {
+            metrics.fail(ScriptMetrics.Phase.CREATE_OUTGOING_TRANSACTION, start);
+            throw e;
+        }
+        metrics.stop(ScriptMetrics.Phase.CREATE_OUTGOING_TRANSACTION, start);
+        return outputs;
+    }
+
 
     public Transaction createUnsignedRedemptionTransaction(TransactionOutput output, Address receiveAddress) {
         Transaction newTransaction = new Transaction(parameters);
@@ -61,18 +148,81 @@ public abstract class ScriptTransaction implements AutoCloseable {
         return newTransaction;
     }
 
-    public void sendTransaction(Transaction transaction) {
+    /**
+     * Same as {@link #createUnsignedRedemptionTransaction(TransactionOutput, Address)}, spending the output that
+     * {@code index} has for {@code lockingScript}.
+     *
+     * @throws IllegalStateException if no output of this contract's wallet is locked by {@code lockingScript}
+     */
+    public Transaction createUnsignedRedemptionTransaction(ScriptIndex index, Script lockingScript,
+                                                           Address receiveAddress) {
+        TransactionOutput output = index.findOutput(lockingScript, getWallet());
+        checkState(output != null, "No unspent output locked by %s", lockingScript);
+        return createUnsignedRedemptionTransaction(output, receiveAddress);
+    }
+
+    /**
+     * Commits {@code transaction} to the wallet and broadcasts it, a failed broadcast is logged.
+     */
+    public void sendTransaction(final Transaction transaction) {
+        final long start = metrics.start();
         walletKit.getWallet().commitTx(transaction);
-        walletKit.getPeerGroup().broadcastTransaction(transaction);
-        LOGGER.info("Broadcasted transaction: {}", transaction.getHashAsString());
+        ListenableFuture<List<Transaction>> sent = walletKit.getBroadcaster().broadcast(transaction);
+        LOGGER.debug("Broadcasting transaction: {}", transaction.getHash());
+        Futures.addCallback(sent, new FutureCallback<List<Transaction>>() {
+            @Override
+            public void onSuccess(List<Transaction> ignore) {
+                metrics.stop(ScriptMetrics.Phase.SEND_TRANSACTION, start, transaction);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                LOGGER.warn("Failed to broadcast transaction {}", transaction.getHash(), t);
+                metrics.fail(ScriptMetrics.Phase.SEND_TRANSACTION, start);
+            }
+        });
+    }
+
+    /**
+     * Broadcasts {@code parent} followed by the {@code children} spending its outputs. They go over the same
+     * connections in order, so that no peer sees a child before its parent.
+     * <p>
+     * All transactions are committed to the wallet right away.
+     *
+     * @return completes with the parent followed by the children once the peers have acknowledged them
+     */
+    public ListenableFuture<List<Transaction>> sendPackage(Transaction parent, Transaction... children) {
+        final long start = metrics.start();
+        final Transaction[] transactions = new Transaction[children.length + 1];
+        transactions[0] = parent;
+        System.arraycopy(children, 0, transactions, 1, children.length);
+        for (Transaction transaction : transactions) {
+            walletKit.getWallet().commitTx(transaction);
+        }
+        ListenableFuture<List<Transaction>> sent = walletKit.getBroadcaster().broadcast(transactions);
+        LOGGER.debug("Broadcasting transaction: {}", parent.getHash());
+        Futures.addCallback(sent, new FutureCallback<List<Transaction>>() {
+            @Override
+            public void onSuccess(List<Transaction> ignore) {
+                for (Transaction transaction : transactions) {
+                    metrics.stop(ScriptMetrics.Phase.SEND_TRANSACTION, start, transaction);
+                }
+            }
 
+            @Override
+            public void onFailure(Throwable t) {
+                LOGGER.warn("Failed to broadcast package {}", transactions[0].getHash(), t);
+                metrics.fail(ScriptMetrics.Phase.SEND_TRANSACTION, start);
+            }
+        });
+        return sent;
     }
 
     /**
-     * @return a random ECKey that hasn't yet been added to the wallet
+     * @return a random ECKey that hasn't yet been added to the wallet, taken from {@link KeyPool#getDefault()}
      */
     public static ECKey randKey() {
-        return new ECKey();
+        return KeyPool.getDefault().take();
     }
 
     public void importKey(ECKey key) {
@@ -85,6 +235,10 @@ public abstract class ScriptTransaction implements AutoCloseable {
 
     protected NetworkParameters getParameters() { return parameters; }
 
+    ScriptMetrics.Recorder metrics() {
+        return metrics;
+    }
+
     protected long getNLockTime() {
         return nLockTime;
     }
@@ -0,0 +1,83 @@
+package hr.fer.rgkk.transactions;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.crypto.TransactionSignature;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers signature hashes so that several keys signing the same input only pay for
+ * {@link SighashEngine#hashForSignature(int, byte[], byte)} once.
+ * <p>
+ * Entries are keyed by the transaction hash, which bitcoinj drops and recomputes whenever the transaction
+ * is modified, so a changed transaction never hits a stale digest.
+ */
+class SighashCache {
+
+    private final Map<Key, Sha256Hash> digests;
+
+    SighashCache(final int capacity) {
+        this.digests = new LinkedHashMap<Key, Sha256Hash>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Sha256Hash> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    Sha256Hash hashForSignature(
+            Transaction transaction, int inputIndex, byte[] scriptCode,
+            Transaction.SigHash type, boolean anyoneCanPay
+    ) {
+        byte sigHashType = (byte) TransactionSignature.calcSigHashValue(type, anyoneCanPay);
+        Key key = new Key(transaction.getHash(), inputIndex, scriptCode, sigHashType);
+        synchronized (digests) {
+            Sha256Hash digest = digests.get(key);
+            if (digest != null) {
+                return digest;
+            }
+        }
+        Sha256Hash digest = SighashEngine.of(transaction).hashForSignature(inputIndex, scriptCode, sigHashType);
+        synchronized (digests) {
+            digests.put(key, digest);
+        }
+        return digest;
+    }
+
+    private static final class Key {
+
+        private final Sha256Hash transactionHash;
+        private final int inputIndex;
+        private final byte[] scriptCode;
+        private final byte sigHashType;
+        private final int hashCode;
+
+        Key(Sha256Hash transactionHash, int inputIndex, byte[] scriptCode, byte sigHashType) {
+            this.transactionHash = transactionHash;
+            this.inputIndex = inputIndex;
+            this.scriptCode = scriptCode;
+            this.sigHashType = sigHashType;
+            this.hashCode = 31 * (31 * (31 * transactionHash.hashCode() + inputIndex) + Arrays.hashCode(scriptCode))
+                    + sigHashType;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return inputIndex == other.inputIndex
+                    && sigHashType == other.sigHashType
+                    && transactionHash.equals(other.transactionHash)
+                    && Arrays.equals(scriptCode, other.scriptCode);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
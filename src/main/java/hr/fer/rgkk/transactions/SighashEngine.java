@@ -0,0 +1,181 @@
+package hr.fer.rgkk.transactions;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.core.VarInt;
+import org.bitcoinj.script.Script;
+
+import java.io.ByteArrayOutputStream;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import static org.bitcoinj.script.ScriptOpCodes.OP_CODESEPARATOR;
+
+/**
+ * Legacy signature hashes for every input of one transaction, without the copy and reserialization
+ * {@link Transaction#hashForSignature(int, byte[], byte)} makes for each of them.
+ * <p>
+ * For {@link Transaction.SigHash#ALL} the signed data of input {@code i} is the transaction with every unlocking
+ * script blanked, except for the scriptCode in input {@code i}. The blanked inputs are serialized once, and the
+ * SHA-256 state after the inputs before {@code i} is kept, so each digest only hashes the rest of the transaction.
+ * Other sighash types are rare enough to go through bitcoinj.
+ * <p>
+ * The rest of the transaction still holds every blank input after {@code i}, so signing all inputs hashes
+ * O(n<sup>2</sup>) bytes like bitcoinj does, only about half as many and without the copying. The gain is a
+ * constant factor. Only a BIP 143 digest, which legacy scripts can't use, hashes O(1) extra bytes per input.
+ * <p>
+ * An engine is a snapshot, it has to be created again once the transaction changes.
+ */
+public final class SighashEngine {
+
+    // Outpoint, empty script and sequence number
+    private static final int BLANK_INPUT_SIZE = 32 + 4 + 1 + 4;
+    private static final int OUTPOINT_SIZE = 32 + 4;
+
+    // Enough for a few transactions signed at once, sweeps pin all of theirs
+    private static final Cache<Sha256Hash, SighashEngine> ENGINES = CacheBuilder.newBuilder()
+            .maximumSize(16)
+            .build();
+    private static final Map<Sha256Hash, SighashEngine> PINNED = new ConcurrentHashMap<>();
+
+    private final Transaction transaction;
+    private final byte[] blankInputs;
+    // Output count, outputs and lock time
+    private final byte[] tail;
+    // State after the version, the input count and every blank input before the index
+    private final MessageDigest[] midstates;
+
+    SighashEngine(Transaction transaction) {
+        this.transaction = transaction;
+        int inputs = transaction.getInputs().size();
+        this.blankInputs = new byte[inputs * BLANK_INPUT_SIZE];
+        for (int i = 0; i < inputs; i++) {
+            TransactionInput input = transaction.getInput(i);
+            int offset = i * BLANK_INPUT_SIZE;
+            System.arraycopy(input.getOutpoint().getHash().getReversedBytes(), 0, blankInputs, offset, 32);
+            Utils.uint32ToByteArrayLE(input.getOutpoint().getIndex(), blankInputs, offset + 32);
+            Utils.uint32ToByteArrayLE(input.getSequenceNumber(), blankInputs, offset + OUTPOINT_SIZE + 1);
+        }
+
+        ByteArrayOutputStream tail = new ByteArrayOutputStream();
+        byte[] outputCount = new VarInt(transaction.getOutputs().size()).encode();
+        tail.write(outputCount, 0, outputCount.length);
+        for (TransactionOutput output : transaction.getOutputs()) {
+            byte[] serialized = output.bitcoinSerialize();
+            tail.write(serialized, 0, serialized.length);
+        }
+        byte[] lockTime = new byte[4];
+        Utils.uint32ToByteArrayLE(transaction.getLockTime(), lockTime, 0);
+        tail.write(lockTime, 0, lockTime.length);
+        this.tail = tail.toByteArray();
+
+        this.midstates = new MessageDigest[inputs];
+        MessageDigest digest = Sha256Hash.newDigest();
+        byte[] version = new byte[4];
+        Utils.uint32ToByteArrayLE(transaction.getVersion(), version, 0);
+        digest.update(version);
+        digest.update(new VarInt(inputs).encode());
+        for (int i = 0; i < inputs; i++) {
+            midstates[i] = copy(digest);
+            digest.update(blankInputs, i * BLANK_INPUT_SIZE, BLANK_INPUT_SIZE);
+        }
+    }
+
+    /**
+     * @return the engine for the current state of {@code transaction}, shared with other signers of it
+     */
+    public static SighashEngine of(final Transaction transaction) {
+        Sha256Hash hash = transaction.getHash();
+        SighashEngine engine = PINNED.get(hash);
+        if (engine != null) {
+            return engine;
+        }
+        try {
+            // Concurrent signers of a new transaction wait for one of them to build it
+            return ENGINES.get(hash, new Callable<SighashEngine>() {
+                @Override
+                public SighashEngine call() {
+                    return new SighashEngine(transaction);
+                }
+            });
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            throw new IllegalStateException("Failed to lay out " + hash, e.getCause());
+        }
+    }
+
+    /**
+     * Builds the engines of {@code transactions} and keeps them, however many there are, until the returned
+     * pin is closed.
+     */
+    static Pin pin(Collection<Transaction> transactions) {
+        Map<Sha256Hash, SighashEngine> engines = new HashMap<>();
+        for (Transaction transaction : transactions) {
+            SighashEngine engine = new SighashEngine(transaction);
+            engines.put(transaction.getHash(), engine);
+            PINNED.put(transaction.getHash(), engine);
+        }
+        return new Pin(engines);
+    }
+
+    /**
+     * Same digest as {@link Transaction#hashForSignature(int, byte[], byte)}.
+     */
+    public Sha256Hash hashForSignature(int inputIndex, byte[] scriptCode, byte sigHashType) {
+        if (sigHashType != Transaction.SigHash.ALL.value) {
+            return transaction.hashForSignature(inputIndex, scriptCode, sigHashType);
+        }
+        byte[] script = Script.removeAllInstancesOfOp(scriptCode, OP_CODESEPARATOR);
+        int offset = inputIndex * BLANK_INPUT_SIZE;
+        int next = offset + BLANK_INPUT_SIZE;
+        MessageDigest digest = copy(midstates[inputIndex]);
+        digest.update(blankInputs, offset, OUTPOINT_SIZE);
+        digest.update(new VarInt(script.length).encode());
+        digest.update(script);
+        digest.update(blankInputs, next - 4, 4);
+        digest.update(blankInputs, next, blankInputs.length - next);
+        digest.update(tail);
+        byte[] type = new byte[4];
+        Utils.uint32ToByteArrayLE(0xff & sigHashType, type, 0);
+        digest.update(type);
+        return Sha256Hash.wrap(Sha256Hash.hash(digest.digest()));
+    }
+
+    /**
+     * Engines kept by {@link #pin(Collection)}.
+     */
+    static final class Pin implements AutoCloseable {
+
+        private final Map<Sha256Hash, SighashEngine> engines;
+
+        private Pin(Map<Sha256Hash, SighashEngine> engines) {
+            this.engines = engines;
+        }
+
+        @Override
+        public void close() {
+            for (Map.Entry<Sha256Hash, SighashEngine> entry : engines.entrySet()) {
+                PINNED.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private static MessageDigest copy(MessageDigest digest) {
+        try {
+            return (MessageDigest) digest.clone();
+        } catch (CloneNotSupportedException e) {
+            // Every SHA-256 provider shipped with the JDK supports it
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package hr.fer.rgkk.transactions;
+
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Signatures known to be valid, so that a signature verified once, or made by us, is never verified again
+ * when the same spend is checked before commit, on relay or after a reorg.
+ * <p>
+ * A signature is remembered by a 128 bit fingerprint of (salt, signature hash, public key, signature) in a fixed
+ * table of 4-way buckets, so memory doesn't grow with use: 16 bytes per entry. When a bucket is full its entries
+ * are replaced in turn. The table is split into stripes guarded by their own lock. The salt is random per cache,
+ * so nobody can pick signatures that collide in it.
+ * <p>
+ * The default cache holds {@code rgkk.signatureCache.entries} signatures, 65536 if not set, 0 turns it off.
+ */
+public final class SignatureCache {
+
+    private static final int DEFAULT_ENTRIES = Integer.getInteger("rgkk.signatureCache.entries", 1 << 16);
+    private static final int WAYS = 4;
+    private static final int STRIPES = 64;
+
+    private final byte[] salt = new byte[32];
+    private final int bucketMask;
+    private final long[] high;
+    private final long[] low;
+    // Way to replace next in each full bucket
+    private final byte[] next;
+    private final Object[] locks = new Object[STRIPES];
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param entries rounded up to a power of two, 0 remembers nothing
+     */
+    public SignatureCache(int entries) {
+        checkArgument(entries >= 0 && entries <= 1 << 30, "Entries must be between 0 and 2^30, got %s", entries);
+        int buckets = entries == 0 ? 0 : Integer.highestOneBit(Math.max(WAYS, entries) * 2 - 1) / WAYS;
+        this.bucketMask = buckets - 1;
+        this.high = new long[buckets * WAYS];
+        this.low = new long[buckets * WAYS];
+        this.next = new byte[buckets];
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new Object();
+        }
+        new SecureRandom().nextBytes(salt);
+    }
+
+    /**
+     * @return the cache consulted by every signature check and filled by every signature made in this package
+     */
+    public static SignatureCache getDefault() {
+        return DefaultHolder.CACHE;
+    }
+
+    /**
+     * Same as {@link ECKey#verify(byte[], ECKey.ECDSASignature, byte[])}, but answered from the cache when
+     * possible. Valid signatures are added to it.
+     */
+    public boolean verify(Sha256Hash hash, ECKey.ECDSASignature signature, byte[] pubKey) {
+        if (next.length == 0) {
+            misses.incrementAndGet();
+            return ECKey.verify(hash.getBytes(), signature, pubKey);
+        }
+        byte[] fingerprint = fingerprint(hash, signature, pubKey);
+        if (contains(fingerprint)) {
+            hits.incrementAndGet();
+            return true;
+        }
+        misses.incrementAndGet();
+        boolean valid = ECKey.verify(hash.getBytes(), signature, pubKey);
+        if (valid) {
+            add(fingerprint);
+        }
+        return valid;
+    }
+
+    /**
+     * Remembers a signature without verifying it, for signatures that were just made.
+     */
+    public void add(Sha256Hash hash, ECKey.ECDSASignature signature, byte[] pubKey) {
+        add(fingerprint(hash, signature, pubKey));
+    }
+
+    public boolean contains(Sha256Hash hash, ECKey.ECDSASignature signature, byte[] pubKey) {
+        return contains(fingerprint(hash, signature, pubKey));
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return how many signatures fit, the table never takes more memory than this
+     */
+    public int getCapacity() {
+        return high.length;
+    }
+
+    private boolean contains(byte[] fingerprint) {
+        if (next.length == 0) {
+            return false;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(fingerprint);
+        long h = buffer.getLong(0);
+        long l = buffer.getLong(8);
+        int bucket = buffer.getInt(16) & bucketMask;
+        synchronized (locks[bucket & (STRIPES - 1)]) {
+            for (int i = bucket * WAYS; i < (bucket + 1) * WAYS; i++) {
+                if (high[i] == h && low[i] == l) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void add(byte[] fingerprint) {
+        if (next.length == 0) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(fingerprint);
+        long h = buffer.getLong(0);
+        long l = buffer.getLong(8);
+        int bucket = buffer.getInt(16) & bucketMask;
+        synchronized (locks[bucket & (STRIPES - 1)]) {
+            int free = -1;
+            for (int i = bucket * WAYS; i < (bucket + 1) * WAYS; i++) {
+                if (high[i] == h && low[i] == l) {
+                    return;
+                }
+                if (free < 0 && high[i] == 0 && low[i] == 0) {
+                    free = i;
+                }
+            }
+            if (free < 0) {
+                free = bucket * WAYS + next[bucket];
+                next[bucket] = (byte) ((next[bucket] + 1) % WAYS);
+            }
+            high[free] = h;
+            low[free] = l;
+        }
+    }
+
+    private byte[] fingerprint(Sha256Hash hash, ECKey.ECDSASignature signature, byte[] pubKey) {
+        MessageDigest digest = Sha256Hash.newDigest();
+        digest.update(salt);
+        digest.update(hash.getBytes());
+        digest.update((byte) pubKey.length);
+        digest.update(pubKey);
+        digest.update(signature.encodeToDER());
+        return digest.digest();
+    }
+
+    private static final class DefaultHolder {
+        private static final SignatureCache CACHE = new SignatureCache(DEFAULT_ENTRIES);
+    }
+}
@@ -0,0 +1,55 @@
+package hr.fer.rgkk.transactions;
+
+import com.google.common.collect.ImmutableSet;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.script.Script;
+
+import java.util.Set;
+
+/**
+ * One (locking script, unlocking script, redemption transaction) triple to be verified,
+ * the same arguments {@link ScriptTransaction#testScript(Script, Script, Transaction)} takes.
+ */
+public final class SpendJob {
+
+    private final Script lockingScript;
+    private final Script unlockingScript;
+    private final Transaction transaction;
+    private final int inputIndex;
+    private final Set<Script.VerifyFlag> verifyFlags;
+
+    public SpendJob(Script lockingScript, Script unlockingScript, Transaction transaction) {
+        this(lockingScript, unlockingScript, transaction, 0, ScriptTransaction.VERIFY_FLAGS);
+    }
+
+    public SpendJob(
+            Script lockingScript, Script unlockingScript, Transaction transaction,
+            int inputIndex, Set<Script.VerifyFlag> verifyFlags
+    ) {
+        this.lockingScript = lockingScript;
+        this.unlockingScript = unlockingScript;
+        this.transaction = transaction;
+        this.inputIndex = inputIndex;
+        this.verifyFlags = ImmutableSet.copyOf(verifyFlags);
+    }
+
+    public Script getLockingScript() {
+        return lockingScript;
+    }
+
+    public Script getUnlockingScript() {
+        return unlockingScript;
+    }
+
+    public Transaction getTransaction() {
+        return transaction;
+    }
+
+    public int getInputIndex() {
+        return inputIndex;
+    }
+
+    public Set<Script.VerifyFlag> getVerifyFlags() {
+        return verifyFlags;
+    }
+}
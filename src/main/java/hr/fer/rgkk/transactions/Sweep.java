@@ -0,0 +1,201 @@
+package hr.fer.rgkk.transactions;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.core.VarInt;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Redeems many contract outputs, of any mix of script types, with as few transactions as possible.
+ * <p>
+ * Inputs are packed in the order they were added into transactions that stay under the standard size and
+ * signature operation limits, each paying everything it spends minus the fee to a single address. Once every
+ * transaction is laid out the unlocking scripts of all inputs are computed in parallel, each signing its own
+ * input over the script of the output it spends.
+ * <p>
+ * A sweep takes the largest lock time of its contracts, so contracts locked by height and by time can't be mixed,
+ * {@link #add} rejects the second kind.
+ */
+public final class Sweep {
+
+    private final static Logger LOGGER = LoggerFactory.getLogger(Sweep.class);
+
+    // What Bitcoin Core relays, counting every CHECKMULTISIG as 20 like the consensus limit does
+    static final int MAX_STANDARD_SIGOPS = Block.MAX_BLOCK_SIGOPS / 5;
+    // Version and lock time, plus input and output counts at their largest
+    private static final int FIXED_SIZE = 4 + 4 + 5 + 1;
+    // Previous output and sequence number
+    private static final int INPUT_SIZE = 32 + 4 + 4;
+
+    private final NetworkParameters parameters;
+    private final int maxSize;
+    private final int maxSigOps;
+    private final List<Spend> spends = new ArrayList<>();
+    // Lock time of the first contract with one
+    private long lockTime;
+
+    public Sweep(NetworkParameters parameters) {
+        this(parameters, Transaction.MAX_STANDARD_TX_SIZE, MAX_STANDARD_SIGOPS);
+    }
+
+    Sweep(NetworkParameters parameters, int maxSize, int maxSigOps) {
+        this.parameters = parameters;
+        this.maxSize = maxSize;
+        this.maxSigOps = maxSigOps;
+    }
+
+    /**
+     * @param output an output locked by {@code contract}'s locking script
+     * @throws IllegalArgumentException if {@code contract} is locked by height and an added one by time, or the
+     *                                  other way around
+     */
+    public Sweep add(ScriptTransaction contract, TransactionOutput output) {
+        long contractLockTime = contract.getNLockTime();
+        if (contractLockTime != 0) {
+            checkArgument(lockTime == 0 || isTimeLocked(lockTime) == isTimeLocked(contractLockTime),
+                    "Can't sweep lock time %s together with %s", contractLockTime, lockTime);
+            if (lockTime == 0) {
+                lockTime = contractLockTime;
+            }
+        }
+        int unlockingSize = contract.getMaxUnlockingScriptSize();
+        Spend spend = new Spend(
+                contract, output,
+                INPUT_SIZE + VarInt.sizeOf(unlockingSize) + unlockingSize,
+                Script.getSigOpCount(output.getScriptBytes())
+        );
+        checkArgument(spend.sigOps <= maxSigOps, "Output alone exceeds %s sigops", maxSigOps);
+        spends.add(spend);
+        return this;
+    }
+
+    public int size() {
+        return spends.size();
+    }
+
+    public List<Transaction> build(Address destination) {
+        return build(destination, Transaction.DEFAULT_TX_FEE);
+    }
+
+    /**
+     * @param feePerKb paid on the largest size each transaction could have
+     * @return signed transactions that together spend every added output
+     */
+    public List<Transaction> build(Address destination, Coin feePerKb) {
+        byte[] destinationScript = ScriptBuilder.createOutputScript(destination).getProgram();
+        int baseSize = FIXED_SIZE + 8 + VarInt.sizeOf(destinationScript.length) + destinationScript.length;
+
+        List<Transaction> transactions = new ArrayList<>();
+        List<Spend> inputs = new ArrayList<>();
+        int size = baseSize;
+        int sigOps = 0;
+        for (Spend spend : spends) {
+            if (!inputs.isEmpty() && (size + spend.size > maxSize || sigOps + spend.sigOps > maxSigOps)) {
+                transactions.add(unsigned(inputs, destination, feePerKb, size));
+                inputs = new ArrayList<>();
+                size = baseSize;
+                sigOps = 0;
+            }
+            checkArgument(baseSize + spend.size <= maxSize, "Output alone exceeds %s bytes", maxSize);
+            inputs.add(spend);
+            size += spend.size;
+            sigOps += spend.sigOps;
+        }
+        if (!inputs.isEmpty()) {
+            transactions.add(unsigned(inputs, destination, feePerKb, size));
+        }
+
+        sign(transactions);
+        LOGGER.info("Swept {} outputs with {} transactions", spends.size(), transactions.size());
+        return transactions;
+    }
+
+    private Transaction unsigned(List<Spend> inputs, Address destination, Coin feePerKb, int size) {
+        Transaction transaction = new Transaction(parameters);
+        Coin value = Coin.ZERO;
+        long lockTime = 0;
+        for (Spend spend : inputs) {
+            TransactionInput input = transaction.addInput(spend.output);
+            input.setSequenceNumber(spend.contract.getNSequence());
+            lockTime = Math.max(lockTime, spend.contract.getNLockTime());
+            value = value.add(spend.output.getValue());
+        }
+        transaction.setLockTime(lockTime);
+        Coin fee = feePerKb.multiply(size).divide(1000);
+        Coin swept = value.subtract(fee);
+        checkState(!swept.isLessThan(Transaction.MIN_NONDUST_OUTPUT),
+                "Sweeping %s inputs worth %s leaves dust after a fee of %s", inputs.size(), value, fee);
+        transaction.addOutput(swept, destination);
+        return transaction;
+    }
+
+    /**
+     * Every signature hash is taken over the transaction without any unlocking scripts, so all of them are
+     * computed before the first one is set. Inputs are laid out in the order of {@link #spends}.
+     */
+    private void sign(final List<Transaction> transactions) {
+        // Transaction and input index of every spend
+        final List<int[]> inputs = new ArrayList<>(spends.size());
+        for (int i = 0; i < transactions.size(); i++) {
+            for (int j = 0; j < transactions.get(i).getInputs().size(); j++) {
+                inputs.add(new int[]{i, j});
+            }
+        }
+        final Context context = Context.getOrCreate(parameters);
+        Script[] unlockingScripts;
+        // Every transaction is laid out once and kept while signing, however many the sweep has
+        SighashEngine.Pin pin = SighashEngine.pin(transactions);
+        try {
+            unlockingScripts = IntStream.range(0, inputs.size())
+                    .parallel()
+                    .mapToObj(k -> {
+                        Context.propagate(context);
+                        int[] input = inputs.get(k);
+                        return spends.get(k).contract.createUnlockingScript(transactions.get(input[0]), input[1]);
+                    })
+                    .toArray(Script[]::new);
+        } finally {
+            pin.close();
+        }
+        for (int k = 0; k < inputs.size(); k++) {
+            int[] input = inputs.get(k);
+            transactions.get(input[0]).getInput(input[1]).setScriptSig(unlockingScripts[k]);
+        }
+    }
+
+    private static boolean isTimeLocked(long lockTime) {
+        return lockTime >= Transaction.LOCKTIME_THRESHOLD;
+    }
+
+    private static final class Spend {
+
+        private final ScriptTransaction contract;
+        private final TransactionOutput output;
+        // Upper bound of the input's serialized size
+        private final int size;
+        private final int sigOps;
+
+        Spend(ScriptTransaction contract, TransactionOutput output, int size, int sigOps) {
+            this.contract = contract;
+            this.output = output;
+            this.size = size;
+            this.sigOps = sigOps;
+        }
+    }
+}
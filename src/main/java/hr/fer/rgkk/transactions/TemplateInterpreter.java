@@ -0,0 +1,791 @@
+package hr.fer.rgkk.transactions;
+
+import org.bitcoinj.core.ScriptException;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.crypto.TransactionSignature;
+import org.bitcoinj.script.Script;
+import org.spongycastle.crypto.digests.RIPEMD160Digest;
+import org.spongycastle.crypto.digests.SHA256Digest;
+
+import java.util.Arrays;
+import java.util.Set;
+
+import static org.bitcoinj.script.ScriptOpCodes.*;
+
+/**
+ * Verifies spends of the locking scripts built in this package (pay to pub key, pay to pub key hash,
+ * time lock and coin toss) without bitcoinj's general interpreter.
+ * <p>
+ * The locking script is matched against the opcode layout of each contract, and a recognized spend is
+ * evaluated by straight-line code over a per-thread stack of (array, offset, length) views, so no chunk
+ * lists or stack copies are created. Semantics, including failure cases, follow
+ * {@link Script#correctlySpends(Transaction, long, Script, Set)}; anything that isn't recognized, or
+ * uses features this evaluator doesn't model, is handed to bitcoinj.
+ */
+final class TemplateInterpreter {
+
+    enum Shape {
+        PAY_TO_PUB_KEY, PAY_TO_PUB_KEY_HASH, TIME_LOCK, COIN_TOSS
+    }
+
+    // Matches any data push in a layout
+    private static final int PUSH = -1;
+
+    private static final int[] PAY_TO_PUB_KEY = {PUSH, OP_CHECKSIG};
+
+    private static final int[] PAY_TO_PUB_KEY_HASH = {PUSH, OP_DUP, OP_HASH160, PUSH, OP_EQUALVERIFY, OP_CHECKSIG};
+
+    private static final int[] TIME_LOCK = {
+            OP_NOTIF, OP_2, PUSH, PUSH, OP_2, OP_CHECKMULTISIG,
+            OP_ELSE, PUSH, OP_CHECKLOCKTIMEVERIFY, OP_DROP, OP_DUP, OP_HASH160, PUSH, OP_EQUALVERIFY, OP_CHECKSIG,
+            PUSH, PUSH, OP_2, OP_CHECKMULTISIG,
+            OP_ENDIF
+    };
+
+    private static final int[] COIN_TOSS = {
+            OP_HASH160, PUSH, OP_HASH160, OP_EQUALVERIFY,
+            OP_HASH160, PUSH, OP_HASH160, OP_EQUALVERIFY,
+            PUSH, OP_SIZE, OP_16, OP_EQUAL, OP_NOT, OP_SWAP, OP_DROP,
+            PUSH, OP_SIZE, OP_16, OP_EQUAL, OP_NOT, OP_SWAP, OP_DROP,
+            OP_BOOLOR,
+            OP_NOTIF, PUSH, OP_CHECKSIG, OP_ELSE, PUSH, OP_CHECKSIG, OP_ENDIF
+    };
+
+    private static final byte[] FALSE = {};
+    private static final byte[] TRUE = {1};
+    private static final byte[] NEGATIVE_ONE = {(byte) 0x81};
+    private static final byte[][] SMALL_NUMBERS = new byte[17][];
+
+    static {
+        SMALL_NUMBERS[0] = FALSE;
+        for (int i = 1; i <= 16; i++) {
+            SMALL_NUMBERS[i] = new byte[]{(byte) i};
+        }
+    }
+
+    private static final ThreadLocal<Frame> FRAMES = new ThreadLocal<Frame>() {
+        @Override
+        protected Frame initialValue() {
+            return new Frame();
+        }
+    };
+
+    private TemplateInterpreter() {
+    }
+
+    /**
+     * Drop-in replacement for {@link Script#correctlySpends(Transaction, long, Script, Set)}, spends that already
+     * passed are answered from {@link ValidationCache#getDefault()} and signatures from
+     * {@link SignatureCache#getDefault()}.
+     *
+     * @throws ScriptException if the unlocking script doesn't spend the locking script
+     */
+    static void correctlySpends(
+            Script unlockingScript, Transaction transaction, int inputIndex,
+            Script lockingScript, Set<Script.VerifyFlag> verifyFlags
+    ) throws ScriptException {
+        correctlySpends(unlockingScript, transaction, inputIndex, lockingScript, verifyFlags, ValidationCache.getDefault());
+    }
+
+    static void correctlySpends(
+            Script unlockingScript, Transaction transaction, int inputIndex,
+            Script lockingScript, Set<Script.VerifyFlag> verifyFlags, ValidationCache cache
+    ) throws ScriptException {
+        ValidationCache.Key key = ValidationCache.key(unlockingScript, transaction, inputIndex, lockingScript, verifyFlags);
+        if (cache.isValid(key)) {
+            return;
+        }
+        Frame frame = FRAMES.get();
+        if (!frame.evaluate(unlockingScript.getProgram(), transaction, inputIndex, lockingScript.getProgram(), verifyFlags)) {
+            unlockingScript.correctlySpends(transaction, inputIndex, lockingScript, verifyFlags);
+        }
+        cache.putValid(key);
+    }
+
+    /**
+     * @return the contract layout of {@code lockingProgram}, or null if it is not one of them
+     */
+    static Shape recognize(byte[] lockingProgram) {
+        Frame frame = FRAMES.get();
+        return frame.tokenize(lockingProgram) ? frame.shape() : null;
+    }
+
+    private static final class Frame {
+
+        private static final int MAX_TOKENS = 32;
+        private static final int MAX_STACK = 64;
+        // Room for what the contracts push on top of the unlocking script's items
+        private static final int HEADROOM = 16;
+        private static final int MAX_KEYS = 20;
+        private static final int HASH_BUFFERS = 8;
+        private static final int NUMBER_BUFFERS = 4;
+
+        // Locking script tokens: opcode, start of the chunk, start and length of pushed data
+        private final int[] ops = new int[MAX_TOKENS];
+        private final int[] starts = new int[MAX_TOKENS];
+        private final int[] dataOffsets = new int[MAX_TOKENS];
+        private final int[] dataLengths = new int[MAX_TOKENS];
+        private int tokenCount;
+
+        private final byte[][] stackData = new byte[MAX_STACK][];
+        private final int[] stackOffsets = new int[MAX_STACK];
+        private final int[] stackLengths = new int[MAX_STACK];
+        private int size;
+
+        // Operands of OP_CHECKMULTISIG, index 0 is the one popped first
+        private final byte[][] keyData = new byte[MAX_KEYS][];
+        private final int[] keyOffsets = new int[MAX_KEYS];
+        private final int[] keyLengths = new int[MAX_KEYS];
+        private final byte[][] sigData = new byte[MAX_KEYS][];
+        private final int[] sigOffsets = new int[MAX_KEYS];
+        private final int[] sigLengths = new int[MAX_KEYS];
+
+        private final SHA256Digest sha256 = new SHA256Digest();
+        private final RIPEMD160Digest ripemd160 = new RIPEMD160Digest();
+        private final byte[] sha256Output = new byte[32];
+        private final byte[][] hashes = new byte[HASH_BUFFERS][20];
+        private int hashesUsed;
+        private final byte[][] numbers = new byte[NUMBER_BUFFERS][];
+        private int numbersUsed;
+
+        private Transaction transaction;
+        private int inputIndex;
+        private byte[] program;
+        private Set<Script.VerifyFlag> verifyFlags;
+
+        // Last signature hash, multisig checks the same digest against several keys
+        private byte[] digestScript;
+        private int digestType;
+        private Sha256Hash digest;
+
+        /**
+         * @return false if the spend must be verified by bitcoinj instead
+         */
+        boolean evaluate(
+                byte[] unlockingProgram, Transaction transaction, int inputIndex,
+                byte[] lockingProgram, Set<Script.VerifyFlag> verifyFlags
+        ) {
+            if (unlockingProgram.length > 10000 || lockingProgram.length > 10000) {
+                return false;
+            }
+            if (!tokenize(lockingProgram)) {
+                return false;
+            }
+            Shape shape = shape();
+            if (shape == null) {
+                return false;
+            }
+            this.transaction = transaction;
+            this.inputIndex = inputIndex;
+            this.program = lockingProgram;
+            this.verifyFlags = verifyFlags;
+            this.digestScript = null;
+            this.digest = null;
+            this.hashesUsed = 0;
+            this.numbersUsed = 0;
+            try {
+                if (!load(unlockingProgram)) {
+                    return false;
+                }
+                switch (shape) {
+                    case PAY_TO_PUB_KEY:
+                        payToPubKey();
+                        break;
+                    case PAY_TO_PUB_KEY_HASH:
+                        payToPubKeyHash();
+                        break;
+                    case TIME_LOCK:
+                        timeLock();
+                        break;
+                    case COIN_TOSS:
+                        coinToss();
+                        break;
+                }
+                if (size == 0) {
+                    throw new ScriptException("Stack empty at end of script execution.");
+                }
+                if (!castToBool(size - 1)) {
+                    throw new ScriptException("Script resulted in a non-true stack");
+                }
+                return true;
+            } finally {
+                // Don't keep the caller's data reachable from the thread
+                Arrays.fill(stackData, 0, MAX_STACK, null);
+                Arrays.fill(keyData, null);
+                Arrays.fill(sigData, null);
+                this.transaction = null;
+                this.program = null;
+                this.digestScript = null;
+                this.digest = null;
+            }
+        }
+
+        boolean tokenize(byte[] lockingProgram) {
+            tokenCount = 0;
+            int position = 0;
+            while (position < lockingProgram.length) {
+                if (tokenCount == MAX_TOKENS) {
+                    return false;
+                }
+                int start = position;
+                int opcode = lockingProgram[position++] & 0xFF;
+                int length = -1;
+                if (opcode < OP_PUSHDATA1) {
+                    length = opcode;
+                } else if (opcode == OP_PUSHDATA1) {
+                    if (position + 1 > lockingProgram.length) return false;
+                    length = lockingProgram[position] & 0xFF;
+                    position += 1;
+                } else if (opcode == OP_PUSHDATA2) {
+                    if (position + 2 > lockingProgram.length) return false;
+                    length = (lockingProgram[position] & 0xFF) | (lockingProgram[position + 1] & 0xFF) << 8;
+                    position += 2;
+                } else if (opcode == OP_PUSHDATA4) {
+                    // Never produced by the contracts in this package
+                    return false;
+                }
+                ops[tokenCount] = opcode;
+                starts[tokenCount] = start;
+                if (length >= 0) {
+                    if (length > Script.MAX_SCRIPT_ELEMENT_SIZE || position + length > lockingProgram.length) {
+                        return false;
+                    }
+                    dataOffsets[tokenCount] = position;
+                    dataLengths[tokenCount] = length;
+                    position += length;
+                } else {
+                    dataOffsets[tokenCount] = -1;
+                    dataLengths[tokenCount] = 0;
+                }
+                tokenCount++;
+            }
+            return true;
+        }
+
+        Shape shape() {
+            if (layoutIs(PAY_TO_PUB_KEY)) return Shape.PAY_TO_PUB_KEY;
+            if (layoutIs(PAY_TO_PUB_KEY_HASH)) return Shape.PAY_TO_PUB_KEY_HASH;
+            if (layoutIs(TIME_LOCK)) return Shape.TIME_LOCK;
+            if (layoutIs(COIN_TOSS)) return Shape.COIN_TOSS;
+            return null;
+        }
+
+        private boolean layoutIs(int[] layout) {
+            if (layout.length != tokenCount) {
+                return false;
+            }
+            for (int i = 0; i < tokenCount; i++) {
+                if (layout[i] == PUSH) {
+                    if (ops[i] == OP_0 || ops[i] > OP_PUSHDATA2) return false;
+                } else if (layout[i] != ops[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Runs the unlocking script, which has to be push only to be handled here.
+         */
+        private boolean load(byte[] unlockingProgram) {
+            size = 0;
+            int position = 0;
+            while (position < unlockingProgram.length) {
+                if (size == MAX_STACK - HEADROOM) {
+                    return false;
+                }
+                int opcode = unlockingProgram[position++] & 0xFF;
+                int length;
+                if (opcode < OP_PUSHDATA1) {
+                    length = opcode;
+                } else if (opcode == OP_PUSHDATA1) {
+                    if (position + 1 > unlockingProgram.length) return false;
+                    length = unlockingProgram[position] & 0xFF;
+                    position += 1;
+                } else if (opcode == OP_PUSHDATA2) {
+                    if (position + 2 > unlockingProgram.length) return false;
+                    length = (unlockingProgram[position] & 0xFF) | (unlockingProgram[position + 1] & 0xFF) << 8;
+                    position += 2;
+                } else if (opcode == OP_1NEGATE) {
+                    push(NEGATIVE_ONE);
+                    continue;
+                } else if (opcode >= OP_1 && opcode <= OP_16) {
+                    push(SMALL_NUMBERS[opcode - OP_1 + 1]);
+                    continue;
+                } else {
+                    return false;
+                }
+                if (length > Script.MAX_SCRIPT_ELEMENT_SIZE || position + length > unlockingProgram.length) {
+                    return false;
+                }
+                push(unlockingProgram, position, length);
+                position += length;
+            }
+            return true;
+        }
+
+        // Contracts
+
+        private void payToPubKey() {
+            pushToken(0);
+            checkSig();
+        }
+
+        private void payToPubKeyHash() {
+            pushToken(0);
+            dup();
+            hash160();
+            pushToken(3);
+            equalVerify();
+            checkSig();
+        }
+
+        private void timeLock() {
+            if (notIf()) {
+                push(SMALL_NUMBERS[2]);
+                pushToken(2);
+                pushToken(3);
+                push(SMALL_NUMBERS[2]);
+                checkMultiSig();
+            } else {
+                pushToken(7);
+                checkLockTimeVerify();
+                drop();
+                dup();
+                hash160();
+                pushToken(12);
+                equalVerify();
+                checkSig();
+                pushToken(15);
+                pushToken(16);
+                push(SMALL_NUMBERS[2]);
+                checkMultiSig();
+            }
+        }
+
+        private void coinToss() {
+            hash160();
+            pushToken(1);
+            hash160();
+            equalVerify();
+            hash160();
+            pushToken(5);
+            hash160();
+            equalVerify();
+            pushToken(8);
+            size();
+            push(SMALL_NUMBERS[16]);
+            equal();
+            not();
+            swap();
+            drop();
+            pushToken(15);
+            size();
+            push(SMALL_NUMBERS[16]);
+            equal();
+            not();
+            swap();
+            drop();
+            boolOr();
+            if (notIf()) {
+                pushToken(24);
+                checkSig();
+            } else {
+                pushToken(27);
+                checkSig();
+            }
+        }
+
+        // Stack
+
+        private void push(byte[] data) {
+            push(data, 0, data.length);
+        }
+
+        private void push(byte[] data, int offset, int length) {
+            if (size == MAX_STACK) {
+                throw new ScriptException("Stack size exceeded range");
+            }
+            stackData[size] = data;
+            stackOffsets[size] = offset;
+            stackLengths[size] = length;
+            size++;
+        }
+
+        private void pushToken(int token) {
+            push(program, dataOffsets[token], dataLengths[token]);
+        }
+
+        private void require(int items, String opcode) {
+            if (size < items) {
+                throw new ScriptException("Attempted " + opcode + " on a stack with size < " + items);
+            }
+        }
+
+        private boolean castToBool(int item) {
+            byte[] data = stackData[item];
+            int offset = stackOffsets[item];
+            int length = stackLengths[item];
+            for (int i = 0; i < length; i++) {
+                if (data[offset + i] != 0) {
+                    // Negative zero is false
+                    return !(i == length - 1 && (data[offset + i] & 0xFF) == 0x80);
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Script number of at most {@code maxLength} bytes, little endian sign and magnitude.
+         */
+        private long castToNumber(int item, int maxLength, String opcode) {
+            int length = stackLengths[item];
+            if (length > maxLength) {
+                throw new ScriptException(opcode + ": Script attempted to use an integer larger than "
+                        + maxLength + " bytes");
+            }
+            if (length == 0) {
+                return 0;
+            }
+            byte[] data = stackData[item];
+            int offset = stackOffsets[item];
+            long result = 0;
+            for (int i = 0; i < length; i++) {
+                result |= (long) (data[offset + i] & 0xFF) << (8 * i);
+            }
+            long signBit = 0x80L << (8 * (length - 1));
+            if ((result & signBit) != 0) {
+                return -(result & ~signBit);
+            }
+            return result;
+        }
+
+        private byte[] encodeNumber(long value) {
+            // Only used for OP_SIZE, values are small and never negative
+            int length = 0;
+            for (long rest = value; rest != 0; rest >>= 8) {
+                length++;
+            }
+            if (length > 0 && ((value >> (8 * (length - 1))) & 0x80) != 0) {
+                length++;
+            }
+            byte[] buffer = numbers[numbersUsed % NUMBER_BUFFERS];
+            if (buffer == null || buffer.length != length) {
+                buffer = new byte[length];
+                numbers[numbersUsed % NUMBER_BUFFERS] = buffer;
+            }
+            numbersUsed++;
+            for (int i = 0; i < length; i++) {
+                buffer[i] = (byte) (value >> (8 * i));
+            }
+            return buffer;
+        }
+
+        private boolean equalItems(int first, int second) {
+            int length = stackLengths[first];
+            if (length != stackLengths[second]) {
+                return false;
+            }
+            byte[] firstData = stackData[first];
+            byte[] secondData = stackData[second];
+            int firstOffset = stackOffsets[first];
+            int secondOffset = stackOffsets[second];
+            for (int i = 0; i < length; i++) {
+                if (firstData[firstOffset + i] != secondData[secondOffset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static byte[] copy(byte[] data, int offset, int length) {
+            if (offset == 0 && length == data.length) {
+                return data;
+            }
+            return Arrays.copyOfRange(data, offset, offset + length);
+        }
+
+        // Operations
+
+        private boolean notIf() {
+            if (size < 1) {
+                throw new ScriptException("Attempted OP_NOTIF on an empty stack");
+            }
+            size--;
+            return !castToBool(size);
+        }
+
+        private void drop() {
+            if (size < 1) {
+                throw new ScriptException("Attempted OP_DROP on an empty stack");
+            }
+            size--;
+        }
+
+        private void dup() {
+            if (size < 1) {
+                throw new ScriptException("Attempted OP_DUP on an empty stack");
+            }
+            push(stackData[size - 1], stackOffsets[size - 1], stackLengths[size - 1]);
+        }
+
+        private void swap() {
+            require(2, "OP_SWAP");
+            int top = size - 1;
+            int below = size - 2;
+            byte[] data = stackData[top];
+            int offset = stackOffsets[top];
+            int length = stackLengths[top];
+            stackData[top] = stackData[below];
+            stackOffsets[top] = stackOffsets[below];
+            stackLengths[top] = stackLengths[below];
+            stackData[below] = data;
+            stackOffsets[below] = offset;
+            stackLengths[below] = length;
+        }
+
+        private void size() {
+            if (size < 1) {
+                throw new ScriptException("Attempted OP_SIZE on an empty stack");
+            }
+            push(encodeNumber(stackLengths[size - 1]));
+        }
+
+        private void hash160() {
+            if (size < 1) {
+                throw new ScriptException("Attempted OP_HASH160 on an empty stack");
+            }
+            size--;
+            sha256.update(stackData[size], stackOffsets[size], stackLengths[size]);
+            sha256.doFinal(sha256Output, 0);
+            ripemd160.update(sha256Output, 0, sha256Output.length);
+            byte[] hash = hashes[hashesUsed++ % HASH_BUFFERS];
+            ripemd160.doFinal(hash, 0);
+            push(hash);
+        }
+
+        private void equal() {
+            require(2, "OP_EQUAL");
+            boolean equal = equalItems(size - 1, size - 2);
+            size -= 2;
+            push(equal ? TRUE : FALSE);
+        }
+
+        private void equalVerify() {
+            require(2, "OP_EQUALVERIFY");
+            boolean equal = equalItems(size - 1, size - 2);
+            size -= 2;
+            if (!equal) {
+                throw new ScriptException("OP_EQUALVERIFY: non-equal data");
+            }
+        }
+
+        private void not() {
+            if (size < 1) {
+                throw new ScriptException("Attempted a numeric op OP_NOT on an empty stack");
+            }
+            long value = castToNumber(size - 1, 4, "OP_NOT");
+            size--;
+            push(value == 0 ? TRUE : FALSE);
+        }
+
+        private void boolOr() {
+            require(2, "OP_BOOLOR");
+            long second = castToNumber(size - 1, 4, "OP_BOOLOR");
+            long first = castToNumber(size - 2, 4, "OP_BOOLOR");
+            size -= 2;
+            push(first != 0 || second != 0 ? TRUE : FALSE);
+        }
+
+        private void checkLockTimeVerify() {
+            if (!verifyFlags.contains(Script.VerifyFlag.CHECKLOCKTIMEVERIFY)) {
+                // Not enabled, a NOP2
+                if (verifyFlags.contains(Script.VerifyFlag.DISCOURAGE_UPGRADABLE_NOPS)) {
+                    throw new ScriptException("Script used OP_CHECKLOCKTIMEVERIFY as a reserved opcode");
+                }
+                return;
+            }
+            require(1, "OP_CHECKLOCKTIMEVERIFY");
+            // Five bytes to avoid the year 2038 issue
+            long lockTime = castToNumber(size - 1, 5, "OP_CHECKLOCKTIMEVERIFY");
+            if (lockTime < 0) {
+                throw new ScriptException("OP_CHECKLOCKTIMEVERIFY: Negative locktime");
+            }
+            long transactionLockTime = transaction.getLockTime();
+            boolean sameKind = (transactionLockTime < Transaction.LOCKTIME_THRESHOLD) == (lockTime < Transaction.LOCKTIME_THRESHOLD);
+            if (!sameKind) {
+                throw new ScriptException("OP_CHECKLOCKTIMEVERIFY: Locktime requirement type mismatch");
+            }
+            if (lockTime > transactionLockTime) {
+                throw new ScriptException("OP_CHECKLOCKTIMEVERIFY: Locktime requirement not satisfied");
+            }
+            if (!transaction.getInput(inputIndex).hasSequence()) {
+                throw new ScriptException("OP_CHECKLOCKTIMEVERIFY: Transaction contains a final transaction input");
+            }
+        }
+
+        private boolean requireCanonical() {
+            return verifyFlags.contains(Script.VerifyFlag.STRICTENC)
+                    || verifyFlags.contains(Script.VerifyFlag.DERSIG)
+                    || verifyFlags.contains(Script.VerifyFlag.LOW_S);
+        }
+
+        private void checkSig() {
+            require(2, "OP_CHECKSIG(VERIFY)");
+            size--;
+            byte[] pubKey = copy(stackData[size], stackOffsets[size], stackLengths[size]);
+            size--;
+            byte[] sigData = stackData[size];
+            int sigOffset = stackOffsets[size];
+            int sigLength = stackLengths[size];
+
+            byte[] connectedScript = withoutSignature(program, sigData, sigOffset, sigLength);
+            boolean valid = false;
+            try {
+                TransactionSignature signature = TransactionSignature.decodeFromBitcoin(
+                        copy(sigData, sigOffset, sigLength), requireCanonical(),
+                        verifyFlags.contains(Script.VerifyFlag.LOW_S)
+                );
+                valid = SignatureCache.getDefault().verify(
+                        hashForSignature(connectedScript, signature.sighashFlags), signature, pubKey
+                );
+            } catch (Exception ignore) {
+                // Malformed signatures and keys simply don't verify
+            }
+            push(valid ? TRUE : FALSE);
+        }
+
+        private void checkMultiSig() {
+            require(2, "OP_CHECKMULTISIG(VERIFY)");
+            int pubKeyCount = (int) castToNumber(size - 1, 4, "OP_CHECKMULTISIG(VERIFY)");
+            size--;
+            if (pubKeyCount < 0 || pubKeyCount > MAX_KEYS) {
+                throw new ScriptException("OP_CHECKMULTISIG(VERIFY) with pubkey count out of range");
+            }
+            if (size < pubKeyCount + 1) {
+                throw new ScriptException("Attempted OP_CHECKMULTISIG(VERIFY) on a stack with size < num_of_pubkeys + 2");
+            }
+            for (int i = 0; i < pubKeyCount; i++) {
+                size--;
+                keyData[i] = stackData[size];
+                keyOffsets[i] = stackOffsets[size];
+                keyLengths[i] = stackLengths[size];
+            }
+            int sigCount = (int) castToNumber(size - 1, 4, "OP_CHECKMULTISIG(VERIFY)");
+            size--;
+            if (sigCount < 0 || sigCount > pubKeyCount) {
+                throw new ScriptException("OP_CHECKMULTISIG(VERIFY) with sig count out of range");
+            }
+            if (size < sigCount + 1) {
+                throw new ScriptException("Attempted OP_CHECKMULTISIG(VERIFY) on a stack with size < num_of_pubkeys + num_of_signatures + 3");
+            }
+            for (int i = 0; i < sigCount; i++) {
+                size--;
+                sigData[i] = stackData[size];
+                sigOffsets[i] = stackOffsets[size];
+                sigLengths[i] = stackLengths[size];
+            }
+
+            byte[] connectedScript = program;
+            for (int i = 0; i < sigCount; i++) {
+                connectedScript = withoutSignature(connectedScript, sigData[i], sigOffsets[i], sigLengths[i]);
+            }
+
+            boolean valid = true;
+            int sig = 0;
+            int key = 0;
+            while (sig < sigCount) {
+                try {
+                    TransactionSignature signature = TransactionSignature.decodeFromBitcoin(
+                            copy(sigData[sig], sigOffsets[sig], sigLengths[sig]), requireCanonical(),
+                            // bitcoinj only enforces LOW_S in CHECKSIG
+                            false
+                    );
+                    Sha256Hash hash = hashForSignature(connectedScript, signature.sighashFlags);
+                    byte[] pubKey = copy(keyData[key], keyOffsets[key], keyLengths[key]);
+                    if (SignatureCache.getDefault().verify(hash, signature, pubKey)) {
+                        sig++;
+                    }
+                } catch (Exception ignore) {
+                    // Malformed signatures and keys simply don't verify
+                }
+                key++;
+                if (sigCount - sig > pubKeyCount - key) {
+                    valid = false;
+                    break;
+                }
+            }
+
+            // The extra item consumed because of the Bitcoin Core off-by-one bug
+            size--;
+            if (verifyFlags.contains(Script.VerifyFlag.NULLDUMMY) && stackLengths[size] > 0) {
+                throw new ScriptException("OP_CHECKMULTISIG(VERIFY) with non-null nulldummy");
+            }
+            push(valid ? TRUE : FALSE);
+        }
+
+        /**
+         * Removes pushes of the signature from the script being signed, like {@link Script#removeAllInstancesOf}.
+         * The contracts never contain such a push, so the script is normally returned as is.
+         */
+        private byte[] withoutSignature(byte[] script, byte[] data, int offset, int length) {
+            if (script == program && !containsPush(data, offset, length)) {
+                return script;
+            }
+            byte[] signature = copy(data, offset, length);
+            byte[] encoded;
+            if (length < OP_PUSHDATA1) {
+                encoded = new byte[1 + length];
+                encoded[0] = (byte) length;
+                System.arraycopy(signature, 0, encoded, 1, length);
+            } else if (length < 256) {
+                encoded = new byte[2 + length];
+                encoded[0] = (byte) OP_PUSHDATA1;
+                encoded[1] = (byte) length;
+                System.arraycopy(signature, 0, encoded, 2, length);
+            } else {
+                encoded = new byte[3 + length];
+                encoded[0] = (byte) OP_PUSHDATA2;
+                encoded[1] = (byte) length;
+                encoded[2] = (byte) (length >> 8);
+                System.arraycopy(signature, 0, encoded, 3, length);
+            }
+            return Script.removeAllInstancesOf(script, encoded);
+        }
+
+        private boolean containsPush(byte[] data, int offset, int length) {
+            int header = length < OP_PUSHDATA1 ? 1 : length < 256 ? 2 : 3;
+            for (int token = 0; token < tokenCount; token++) {
+                int chunkLength = (token + 1 < tokenCount ? starts[token + 1] : program.length) - starts[token];
+                if (chunkLength != header + length) {
+                    continue;
+                }
+                if (length == 0 ? ops[token] == OP_0 : dataLengths[token] == length
+                        && ops[token] == (header == 1 ? length : header == 2 ? OP_PUSHDATA1 : OP_PUSHDATA2)
+                        && regionEquals(program, dataOffsets[token], data, offset, length)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static boolean regionEquals(byte[] first, int firstOffset, byte[] second, int secondOffset, int length) {
+            for (int i = 0; i < length; i++) {
+                if (first[firstOffset + i] != second[secondOffset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private Sha256Hash hashForSignature(byte[] connectedScript, int sighashFlags) {
+            if (digest == null || digestScript != connectedScript || digestType != sighashFlags) {
+                digest = transaction.hashForSignature(inputIndex, connectedScript, (byte) sighashFlags);
+                digestScript = connectedScript;
+                digestType = sighashFlags;
+            }
+            return digest;
+        }
+    }
+}
@@ -11,9 +11,12 @@ import static org.bitcoinj.script.ScriptOpCodes.*;
 
 public class TimeLock extends ScriptTransaction {
 
-    private final ECKey aliceSecretKey = new ECKey();
-    private final ECKey bobSecretKey = new ECKey();
-    private final ECKey eveSecretKey = new ECKey();
+    private static final ScriptTemplate.Family LOCKING_SCRIPT =
+            new ScriptTemplate.Family(slots -> lockingScript(slots[0], slots[1], slots[2]));
+
+    private final ECKey aliceSecretKey = randKey();
+    private final ECKey bobSecretKey = randKey();
+    private final ECKey eveSecretKey = randKey();
 
     public enum ScriptSigType {
         ALICE_AND_EVE, BOB_AND_EVE, ALICE_AND_BOB
@@ -28,61 +31,72 @@ public class TimeLock extends ScriptTransaction {
 
     @Override
     public Script createLockingScript() {
-        try {
-            return new ScriptBuilder()
-                    .op(OP_NOTIF)
-                    .op(OP_2)
-                    .data(aliceSecretKey.getPubKey())
-                    .data(bobSecretKey.getPubKey())
-                    .op(OP_2)
-                    .op(OP_CHECKMULTISIG)
-                    .op(OP_ELSE)
-                    .number(1412121600)
-                    .op(OP_CHECKLOCKTIMEVERIFY)
-                    .op(OP_DROP)
-                    .op(OP_DUP)
-                    .op(OP_HASH160)
-                    .data(eveSecretKey.getPubKeyHash())
-                    .op(OP_EQUALVERIFY)
-                    .op(OP_CHECKSIG)
-                    .data(aliceSecretKey.getPubKey())
-                    .data(bobSecretKey.getPubKey())
-                    .op(OP_2)
-                    .op(OP_CHECKMULTISIG)
-                    .op(OP_ENDIF)
-                    .build();
-        }  catch (Exception e) {
-            throw new UnsupportedOperationException();
-        }
+        long start = metrics().start();
+        Script lockingScript = LOCKING_SCRIPT.instantiate(
+                aliceSecretKey.getPubKey(), bobSecretKey.getPubKey(), eveSecretKey.getPubKeyHash()
+        );
+        metrics().stop(ScriptMetrics.Phase.CREATE_LOCKING_SCRIPT, start);
+        return lockingScript;
+    }
+
+    private static Script lockingScript(byte[] alicePubKey, byte[] bobPubKey, byte[] evePubKeyHash) {
+        return new ScriptBuilder()
+                .op(OP_NOTIF)
+                .op(OP_2)
+                .data(alicePubKey)
+                .data(bobPubKey)
+                .op(OP_2)
+                .op(OP_CHECKMULTISIG)
+                .op(OP_ELSE)
+                .number(1412121600)
+                .op(OP_CHECKLOCKTIMEVERIFY)
+                .op(OP_DROP)
+                .op(OP_DUP)
+                .op(OP_HASH160)
+                .data(evePubKeyHash)
+                .op(OP_EQUALVERIFY)
+                .op(OP_CHECKSIG)
+                .data(alicePubKey)
+                .data(bobPubKey)
+                .op(OP_2)
+                .op(OP_CHECKMULTISIG)
+                .op(OP_ENDIF)
+                .build();
     }
 
     @Override
-    public Script createUnlockingScript(Transaction unsignedScript) {
+    public Script createUnlockingScript(Transaction unsignedScript, int inputIndex) {
         ScriptBuilder scriptBuilder = new ScriptBuilder();
         switch (this.scriptSigType) {
             case ALICE_AND_BOB:
                 scriptBuilder
                         .smallNum(0)
-                        .data(sign(unsignedScript, aliceSecretKey).encodeToBitcoin())
-                        .data(sign(unsignedScript, bobSecretKey).encodeToBitcoin())
+                        .data(sign(unsignedScript, inputIndex, aliceSecretKey).encodeToBitcoin())
+                        .data(sign(unsignedScript, inputIndex, bobSecretKey).encodeToBitcoin())
                         .smallNum(0);
                 break;
             case ALICE_AND_EVE:
                 scriptBuilder
                         .smallNum(0)
-                        .data(sign(unsignedScript, aliceSecretKey).encodeToBitcoin())
-                        .data(sign(unsignedScript, eveSecretKey).encodeToBitcoin())
+                        .data(sign(unsignedScript, inputIndex, aliceSecretKey).encodeToBitcoin())
+                        .data(sign(unsignedScript, inputIndex, eveSecretKey).encodeToBitcoin())
                         .data(eveSecretKey.getPubKey())
                         .smallNum(1);
                 break;
             case BOB_AND_EVE:
                 scriptBuilder
                         .smallNum(0)
-                        .data(sign(unsignedScript, bobSecretKey).encodeToBitcoin())
-                        .data(sign(unsignedScript, eveSecretKey).encodeToBitcoin())
+                        .data(sign(unsignedScript, inputIndex, bobSecretKey).encodeToBitcoin())
+                        .data(sign(unsignedScript, inputIndex, eveSecretKey).encodeToBitcoin())
                         .data(eveSecretKey.getPubKey())
                         .smallNum(1);
         }
         return scriptBuilder.build();
     }
+
+    @Override
+    protected int getMaxUnlockingScriptSize() {
+        // Dummy element, two signatures, Eve's key and the branch selector
+        return 1 + 2 * MAX_SIGNATURE_PUSH + PUB_KEY_PUSH + 1;
+    }
 }
@@ -0,0 +1,159 @@
+package hr.fer.rgkk.transactions;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.script.Script;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Spends that have already passed verification, so that checking the same redemption again, before it is
+ * committed, when it is rebroadcast or when it comes back in a reorg, costs a lookup instead of an
+ * interpreter run.
+ * <p>
+ * A spend is identified by the transaction hash, the input index, the hashes of the locking and the unlocking
+ * script and the verify flags. The unlocking script is part of the key because it is usually checked before it
+ * is set on the input, when the transaction hash doesn't cover it yet. Failures are never cached.
+ * <p>
+ * The cache is bounded and evicts the least recently used spends. The default one sizes itself from the
+ * {@code rgkk.validationCache.size} system property, 0 turns it off, and is registered over JMX as
+ * {@code hr.fer.rgkk.transactions:type=ValidationCache}.
+ */
+public final class ValidationCache implements ValidationCacheMBean {
+
+    private final static Logger LOGGER = LoggerFactory.getLogger(ValidationCache.class);
+
+    private static final int DEFAULT_SIZE = Integer.getInteger("rgkk.validationCache.size", 10000);
+
+    private final Cache<Key, Boolean> valid;
+
+    public ValidationCache(int maximumSize) {
+        checkArgument(maximumSize >= 0, "Size must not be negative, got %s", maximumSize);
+        this.valid = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * @return the cache in front of every script check in this package
+     */
+    public static ValidationCache getDefault() {
+        return DefaultHolder.CACHE;
+    }
+
+    boolean isValid(Key key) {
+        return valid.getIfPresent(key) != null;
+    }
+
+    void putValid(Key key) {
+        valid.put(key, Boolean.TRUE);
+    }
+
+    static Key key(
+            Script unlockingScript, Transaction transaction, int inputIndex,
+            Script lockingScript, Set<Script.VerifyFlag> verifyFlags
+    ) {
+        int flags = 0;
+        for (Script.VerifyFlag flag : verifyFlags) {
+            flags |= 1 << flag.ordinal();
+        }
+        return new Key(
+                transaction.getHash(), inputIndex,
+                Sha256Hash.of(lockingScript.getProgram()), Sha256Hash.of(unlockingScript.getProgram()), flags
+        );
+    }
+
+    public void clear() {
+        valid.invalidateAll();
+    }
+
+    @Override
+    public long getSize() {
+        return valid.size();
+    }
+
+    @Override
+    public long getHits() {
+        return valid.stats().hitCount();
+    }
+
+    @Override
+    public long getMisses() {
+        return valid.stats().missCount();
+    }
+
+    @Override
+    public double getHitRate() {
+        return valid.stats().hitRate();
+    }
+
+    private void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    this, new ObjectName("hr.fer.rgkk.transactions:type=ValidationCache")
+            );
+        } catch (InstanceAlreadyExistsException ignore) {
+            // Registered by another class loader
+        } catch (JMException e) {
+            LOGGER.warn("Failed to register the validation cache", e);
+        }
+    }
+
+    static final class Key {
+
+        private final Sha256Hash transactionHash;
+        private final int inputIndex;
+        private final Sha256Hash lockingScriptHash;
+        private final Sha256Hash unlockingScriptHash;
+        private final int flags;
+
+        private Key(
+                Sha256Hash transactionHash, int inputIndex,
+                Sha256Hash lockingScriptHash, Sha256Hash unlockingScriptHash, int flags
+        ) {
+            this.transactionHash = transactionHash;
+            this.inputIndex = inputIndex;
+            this.lockingScriptHash = lockingScriptHash;
+            this.unlockingScriptHash = unlockingScriptHash;
+            this.flags = flags;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return inputIndex == other.inputIndex
+                    && flags == other.flags
+                    && transactionHash.equals(other.transactionHash)
+                    && lockingScriptHash.equals(other.lockingScriptHash)
+                    && unlockingScriptHash.equals(other.unlockingScriptHash);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * (31 * (31 * transactionHash.hashCode() + inputIndex) + lockingScriptHash.hashCode())
+                    + unlockingScriptHash.hashCode()) + flags;
+        }
+    }
+
+    private static final class DefaultHolder {
+
+        private static final ValidationCache CACHE = new ValidationCache(DEFAULT_SIZE);
+
+        static {
+            CACHE.register();
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package hr.fer.rgkk.transactions;
+
+/**
+ * JMX view of a {@link ValidationCache}.
+ */
+public interface ValidationCacheMBean {
+
+    long getSize();
+
+    long getHits();
+
+    long getMisses();
+
+    double getHitRate();
+}
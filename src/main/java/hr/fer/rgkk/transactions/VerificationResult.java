@@ -0,0 +1,58 @@
+package hr.fer.rgkk.transactions;
+
+import org.bitcoinj.script.ScriptOpCodes;
+
+/**
+ * Outcome of verifying a single {@link SpendJob}.
+ */
+public final class VerificationResult {
+
+    private final SpendJob job;
+    private final boolean valid;
+    // OP_INVALIDOPCODE when valid or when the failure can't be tied to an opcode
+    private final int failingOpcode;
+    private final String message;
+
+    private VerificationResult(SpendJob job, boolean valid, int failingOpcode, String message) {
+        this.job = job;
+        this.valid = valid;
+        this.failingOpcode = failingOpcode;
+        this.message = message;
+    }
+
+    static VerificationResult valid(SpendJob job) {
+        return new VerificationResult(job, true, ScriptOpCodes.OP_INVALIDOPCODE, null);
+    }
+
+    static VerificationResult invalid(SpendJob job, int failingOpcode, String message) {
+        return new VerificationResult(job, false, failingOpcode, message);
+    }
+
+    public SpendJob getJob() {
+        return job;
+    }
+
+    public boolean isValid() {
+        return valid;
+    }
+
+    public int getFailingOpcode() {
+        return failingOpcode;
+    }
+
+    /**
+     * @return name of the failing opcode, e.g. "CHECKSIG", or null if the job is valid
+     */
+    public String getFailingOpcodeName() {
+        return valid ? null : ScriptOpCodes.getOpCodeName(failingOpcode);
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return valid ? "VALID" : "INVALID at " + getFailingOpcodeName() + ": " + message;
+    }
+}
@@ -0,0 +1,636 @@
+package hr.fer.rgkk.transactions;
+
+import com.google.protobuf.ByteString;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.core.listeners.TransactionConfidenceEventListener;
+import org.bitcoinj.crypto.ChildNumber;
+import org.bitcoinj.crypto.DeterministicKey;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.utils.Threading;
+import org.bitcoinj.wallet.DeterministicKeyChain;
+import org.bitcoinj.wallet.Protos;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.WalletProtobufSerializer;
+import org.bitcoinj.wallet.WalletTransaction;
+import org.bitcoinj.wallet.listeners.KeyChainEventListener;
+import org.bitcoinj.wallet.listeners.ScriptsChangeEventListener;
+import org.bitcoinj.wallet.listeners.WalletChangeEventListener;
+import org.bitcoinj.wallet.listeners.WalletCoinsReceivedEventListener;
+import org.bitcoinj.wallet.listeners.WalletCoinsSentEventListener;
+import org.bitcoinj.wallet.listeners.WalletReorganizeEventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Persists a wallet as a protobuf snapshot plus an append-only journal of what changed since, instead of
+ * rewriting the whole wallet file on every change.
+ * <p>
+ * Changed transactions, imported keys, watched scripts, the last block seen and the number of issued HD keys are
+ * appended as records. A background thread writes whatever has queued up with one fsync. Once the journal is
+ * larger than {@code rgkk.walletJournal.compactBytes}, 4 MiB if not set, the same thread saves a new snapshot
+ * and starts an empty journal.
+ * <p>
+ * Snapshot and journal carry an epoch, so a journal left behind by a crash during compaction is never replayed
+ * over the newer snapshot. {@link #recover} folds the journal into the snapshot and has to run before the
+ * wallet is loaded from it.
+ */
+public final class WalletJournal implements AutoCloseable {
+
+    private final static Logger LOGGER = LoggerFactory.getLogger(WalletJournal.class);
+
+    static final String EPOCH_TAG = "rgkk.walletJournal.epoch";
+    private static final int DEFAULT_COMPACT_BYTES = Integer.getInteger("rgkk.walletJournal.compactBytes", 4 << 20);
+
+    private static final byte TRANSACTION = 1;
+    private static final byte KEY = 2;
+    private static final byte WATCH = 3;
+    private static final byte UNWATCH = 4;
+    private static final byte LAST_BLOCK = 5;
+    private static final byte ISSUED = 6;
+    // Epoch
+    private static final int HEADER = 8;
+    private static final WalletTransaction.Pool[] POOLS = {
+            WalletTransaction.Pool.PENDING, WalletTransaction.Pool.UNSPENT,
+            WalletTransaction.Pool.SPENT, WalletTransaction.Pool.DEAD
+    };
+
+    private final Wallet wallet;
+    private final Context context;
+    private final File snapshotFile;
+    private final File journalFile;
+    private final int compactBytes;
+    private final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>();
+    // What was last written for each transaction, so that depth changes alone aren't journaled
+    private final Map<Sha256Hash, Integer> written = new ConcurrentHashMap<>();
+    private final Listener listener = new Listener();
+    private final Thread writer;
+    private final Object progress = new Object();
+    private RandomAccessFile journal;
+    private long epoch;
+    // Guarded by progress
+    private long enqueued;
+    private long synced;
+    private IOException failure;
+    // Only touched by the wallet's thread while it notifies
+    private Sha256Hash lastBlock;
+    private int issuedExternal;
+    private int issuedInternal;
+    private volatile boolean closed;
+
+    /**
+     * Starts journaling changes of {@code wallet}, which was loaded from {@code snapshotFile} after {@link #recover}.
+     */
+    public WalletJournal(Wallet wallet, File snapshotFile, File journalFile) throws IOException {
+        this(wallet, snapshotFile, journalFile, DEFAULT_COMPACT_BYTES);
+    }
+
+    WalletJournal(Wallet wallet, File snapshotFile, File journalFile, int compactBytes) throws IOException {
+        checkArgument(!wallet.isEncrypted(), "Journaling encrypted wallets is not supported");
+        checkArgument(compactBytes > 0, "Compaction threshold must be positive, got %s", compactBytes);
+        this.wallet = wallet;
+        this.context = wallet.getContext();
+        this.snapshotFile = snapshotFile;
+        this.journalFile = journalFile;
+        this.compactBytes = compactBytes;
+        this.epoch = epochOf(wallet.maybeGetTag(EPOCH_TAG));
+        if (journalFile.exists() && journalFile.length() > HEADER && readEpoch(journalFile) == epoch) {
+            throw new IllegalStateException("Journal " + journalFile + " has not been recovered into " + snapshotFile);
+        }
+        this.journal = reset(journalFile, epoch);
+        this.lastBlock = wallet.getLastBlockSeenHash();
+        this.issuedExternal = wallet.getActiveKeyChain().getIssuedExternalKeys();
+        this.issuedInternal = wallet.getActiveKeyChain().getIssuedInternalKeys();
+
+        wallet.addCoinsReceivedEventListener(Threading.SAME_THREAD, listener);
+        wallet.addCoinsSentEventListener(Threading.SAME_THREAD, listener);
+        wallet.addTransactionConfidenceEventListener(Threading.SAME_THREAD, listener);
+        wallet.addReorganizeEventListener(Threading.SAME_THREAD, listener);
+        wallet.addKeyChainEventListener(Threading.SAME_THREAD, listener);
+        wallet.addScriptChangeEventListener(Threading.SAME_THREAD, listener);
+        wallet.addChangeEventListener(Threading.SAME_THREAD, listener);
+
+        this.writer = new Thread(this::write, "wallet-journal");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Blocks until every change journaled so far is on disk. Must not be called from a wallet listener.
+     */
+    public void sync() throws IOException, InterruptedException {
+        synchronized (progress) {
+            long target = enqueued;
+            while (synced < target && failure == null) {
+                progress.wait();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Writes the remaining changes, saves a final snapshot and stops journaling.
+     */
+    @Override
+    public void close() throws IOException {
+        wallet.removeCoinsReceivedEventListener(listener);
+        wallet.removeCoinsSentEventListener(listener);
+        wallet.removeTransactionConfidenceEventListener(listener);
+        wallet.removeReorganizeEventListener(listener);
+        wallet.removeKeyChainEventListener(listener);
+        wallet.removeScriptChangeEventListener(listener);
+        wallet.removeChangeEventListener(listener);
+        closed = true;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while closing " + journalFile, e);
+        }
+        compact();
+        journal.close();
+    }
+
+    /**
+     * Folds the records of {@code journalFile} into {@code snapshotFile} and empties the journal. Does nothing if
+     * either is missing or the journal belongs to an older snapshot.
+     */
+    public static void recover(NetworkParameters parameters, File snapshotFile, File journalFile) throws IOException {
+        if (!snapshotFile.exists() || !journalFile.exists() || journalFile.length() < HEADER) {
+            return;
+        }
+        Protos.Wallet snapshot;
+        try (InputStream in = new FileInputStream(snapshotFile)) {
+            snapshot = WalletProtobufSerializer.parseToProto(in);
+        }
+        checkArgument(parameters.getId().equals(snapshot.getNetworkIdentifier()),
+                "Wallet %s is for %s", snapshotFile, snapshot.getNetworkIdentifier());
+        long epoch = epochOf(tagOf(snapshot));
+        if (readEpoch(journalFile) != epoch) {
+            LOGGER.info("Ignoring {}, its records are already in {}", journalFile, snapshotFile);
+            return;
+        }
+
+        Protos.Wallet.Builder builder = snapshot.toBuilder();
+        Map<ByteString, Protos.Transaction> transactions = new LinkedHashMap<>();
+        for (Protos.Transaction transaction : snapshot.getTransactionList()) {
+            transactions.put(transaction.getHash(), transaction);
+        }
+        Set<ByteString> keys = new HashSet<>();
+        for (Protos.Key key : snapshot.getKeyList()) {
+            keys.add(key.getPublicKey());
+        }
+        Map<ByteString, Protos.Script> watched = new LinkedHashMap<>();
+        for (Protos.Script script : snapshot.getWatchedScriptList()) {
+            watched.put(script.getProgram(), script);
+        }
+        int records = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+            in.readLong();
+            while (true) {
+                byte kind = in.readByte();
+                byte[] body = new byte[in.readInt()];
+                in.readFully(body);
+                if (kind == TRANSACTION) {
+                    Protos.Transaction transaction = Protos.Transaction.parseFrom(body);
+                    transactions.put(transaction.getHash(), transaction);
+                } else if (kind == KEY) {
+                    Protos.Key key = Protos.Key.parseFrom(body);
+                    if (keys.add(key.getPublicKey())) {
+                        builder.addKey(key);
+                    }
+                } else if (kind == WATCH) {
+                    Protos.Script script = Protos.Script.parseFrom(body);
+                    watched.put(script.getProgram(), script);
+                } else if (kind == UNWATCH) {
+                    watched.remove(ByteString.copyFrom(body));
+                } else if (kind == LAST_BLOCK) {
+                    ByteBuffer buffer = ByteBuffer.wrap(body);
+                    builder.setLastSeenBlockHash(ByteString.copyFrom(body, 0, 32));
+                    builder.setLastSeenBlockHeight(buffer.getInt(32));
+                    builder.setLastSeenBlockTimeSecs(buffer.getLong(36));
+                } else if (kind == ISSUED) {
+                    issue(builder, ByteBuffer.wrap(body));
+                } else {
+                    throw new IOException("Corrupt wallet journal " + journalFile + " after " + records + " records");
+                }
+                records++;
+            }
+        } catch (EOFException ignore) {
+            // Whatever follows the last complete record was never synced
+        }
+
+        builder.clearTransaction();
+        for (Protos.Transaction transaction : transactions.values()) {
+            builder.addTransaction(withDepth(transaction, builder.getLastSeenBlockHeight()));
+        }
+        builder.clearWatchedScript().addAllWatchedScript(watched.values());
+        setEpoch(builder, epoch + 1);
+
+        File temp = new File(snapshotFile.getPath() + ".recover");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            builder.build().writeTo(out);
+            out.getFD().sync();
+        }
+        Files.move(temp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        reset(journalFile, epoch + 1).close();
+        LOGGER.info("Recovered {} journal records into {}", records, snapshotFile);
+    }
+
+    private void write() {
+        // Saving the wallet during compaction needs its context
+        Context.propagate(context);
+        List<byte[]> group = new ArrayList<>();
+        while (!closed || !queue.isEmpty()) {
+            try {
+                byte[] first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                group.add(first);
+                queue.drainTo(group);
+                ByteArrayOutputStream records = new ByteArrayOutputStream();
+                for (byte[] record : group) {
+                    records.write(record);
+                }
+                journal.seek(journal.length());
+                journal.write(records.toByteArray());
+                journal.getFD().sync();
+                synchronized (progress) {
+                    synced += group.size();
+                    progress.notifyAll();
+                }
+                group.clear();
+                if (journal.length() > compactBytes) {
+                    compact();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException e) {
+                LOGGER.error("Failed to write wallet journal {}", journalFile, e);
+                synchronized (progress) {
+                    failure = e;
+                    progress.notifyAll();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Saves the wallet under the next epoch and starts an empty journal. Changes queued meanwhile go to the new
+     * journal, replaying them over a snapshot that already has them changes nothing.
+     */
+    private void compact() throws IOException {
+        long next = epoch + 1;
+        wallet.setTag(EPOCH_TAG, epochTag(next));
+        wallet.saveToFile(snapshotFile);
+        journal.close();
+        journal = reset(journalFile, next);
+        epoch = next;
+        LOGGER.info("Compacted wallet journal into {}", snapshotFile);
+    }
+
+    private void append(byte kind, byte[] body) {
+        byte[] record = ByteBuffer.allocate(1 + 4 + body.length).put(kind).putInt(body.length).put(body).array();
+        synchronized (progress) {
+            enqueued++;
+            queue.add(record);
+        }
+    }
+
+    private void journal(Transaction transaction) {
+        WalletTransaction.Pool pool = poolOf(transaction);
+        if (pool == null) {
+            return;
+        }
+        int fingerprint = fingerprint(transaction, pool);
+        Integer previous = written.put(transaction.getHash(), fingerprint);
+        if (previous == null || previous != fingerprint) {
+            append(TRANSACTION, txProto(transaction, pool).toByteArray());
+        }
+    }
+
+    /**
+     * Also journals the wallet's transactions spent by {@code transaction}, their outputs are now spent.
+     */
+    private void journalWithParents(Transaction transaction) {
+        journal(transaction);
+        for (TransactionInput input : transaction.getInputs()) {
+            Transaction parent = wallet.getTransaction(input.getOutpoint().getHash());
+            if (parent != null) {
+                journal(parent);
+            }
+        }
+    }
+
+    private void journalChain() {
+        Sha256Hash block = wallet.getLastBlockSeenHash();
+        if (block != null && !block.equals(lastBlock)) {
+            lastBlock = block;
+            append(LAST_BLOCK, ByteBuffer.allocate(32 + 4 + 8)
+                    .put(block.getBytes())
+                    .putInt(wallet.getLastBlockSeenHeight())
+                    .putLong(wallet.getLastBlockSeenTimeSecs())
+                    .array());
+        }
+        DeterministicKeyChain chain = wallet.getActiveKeyChain();
+        if (chain.getIssuedExternalKeys() != issuedExternal || chain.getIssuedInternalKeys() != issuedInternal) {
+            issuedExternal = chain.getIssuedExternalKeys();
+            issuedInternal = chain.getIssuedInternalKeys();
+            List<ChildNumber> accountPath = chain.getWatchingKey().getPath();
+            ByteBuffer body = ByteBuffer.allocate(4 + 4 * accountPath.size() + 4 + 4).putInt(accountPath.size());
+            for (ChildNumber number : accountPath) {
+                body.putInt(number.i());
+            }
+            append(ISSUED, body.putInt(issuedExternal).putInt(issuedInternal).array());
+        }
+    }
+
+    private WalletTransaction.Pool poolOf(Transaction transaction) {
+        for (WalletTransaction.Pool pool : POOLS) {
+            if (wallet.getTransactionPool(pool).containsKey(transaction.getHash())) {
+                return pool;
+            }
+        }
+        return null;
+    }
+
+    private static int fingerprint(Transaction transaction, WalletTransaction.Pool pool) {
+        TransactionConfidence confidence = transaction.getConfidence();
+        int spent = 0;
+        for (TransactionOutput output : transaction.getOutputs()) {
+            if (output.getSpentBy() != null) {
+                spent++;
+            }
+        }
+        TransactionConfidence.ConfidenceType type = confidence.getConfidenceType();
+        Transaction overriding = type == TransactionConfidence.ConfidenceType.DEAD
+                ? confidence.getOverridingTransaction() : null;
+        return Objects.hash(
+                pool, type, spent, transaction.getUpdateTime(),
+                type == TransactionConfidence.ConfidenceType.BUILDING ? confidence.getAppearedAtChainHeight() : -1,
+                overriding == null ? null : overriding.getHash()
+        );
+    }
+
+    /**
+     * The fields of {@link WalletProtobufSerializer}'s transaction record that the wallet needs to load it back.
+     */
+    private static Protos.Transaction txProto(Transaction transaction, WalletTransaction.Pool pool) {
+        Protos.Transaction.Builder builder = Protos.Transaction.newBuilder()
+                .setPool(Protos.Transaction.Pool.valueOf(pool.name()))
+                .setHash(ByteString.copyFrom(transaction.getHash().getBytes()))
+                .setVersion((int) transaction.getVersion())
+                .setPurpose(Protos.Transaction.Purpose.valueOf(transaction.getPurpose().name()));
+        if (transaction.getUpdateTime() != null) {
+            builder.setUpdatedAt(transaction.getUpdateTime().getTime());
+        }
+        if (transaction.getLockTime() > 0) {
+            builder.setLockTime((int) transaction.getLockTime());
+        }
+        for (TransactionInput input : transaction.getInputs()) {
+            Protos.TransactionInput.Builder inputBuilder = Protos.TransactionInput.newBuilder()
+                    .setScriptBytes(ByteString.copyFrom(input.getScriptBytes()))
+                    .setTransactionOutPointHash(ByteString.copyFrom(input.getOutpoint().getHash().getBytes()))
+                    .setTransactionOutPointIndex((int) input.getOutpoint().getIndex());
+            if (input.hasSequence()) {
+                inputBuilder.setSequence((int) input.getSequenceNumber());
+            }
+            if (input.getValue() != null) {
+                inputBuilder.setValue(input.getValue().value);
+            }
+            builder.addTransactionInput(inputBuilder);
+        }
+        for (TransactionOutput output : transaction.getOutputs()) {
+            Protos.TransactionOutput.Builder outputBuilder = Protos.TransactionOutput.newBuilder()
+                    .setScriptBytes(ByteString.copyFrom(output.getScriptBytes()))
+                    .setValue(output.getValue().value);
+            TransactionInput spentBy = output.getSpentBy();
+            if (spentBy != null) {
+                Transaction spending = spentBy.getParentTransaction();
+                outputBuilder.setSpentByTransactionHash(ByteString.copyFrom(spending.getHash().getBytes()))
+                        .setSpentByTransactionIndex(spending.getInputs().indexOf(spentBy));
+            }
+            builder.addTransactionOutput(outputBuilder);
+        }
+        Map<Sha256Hash, Integer> appearsIn = transaction.getAppearsInHashes();
+        if (appearsIn != null) {
+            for (Map.Entry<Sha256Hash, Integer> entry : appearsIn.entrySet()) {
+                builder.addBlockHash(ByteString.copyFrom(entry.getKey().getBytes()));
+                builder.addBlockRelativityOffsets(entry.getValue());
+            }
+        }
+        TransactionConfidence confidence = transaction.getConfidence();
+        Protos.TransactionConfidence.Builder confidenceBuilder = Protos.TransactionConfidence.newBuilder();
+        synchronized (confidence) {
+            confidenceBuilder.setType(Protos.TransactionConfidence.Type.valueOf(
+                    confidence.getConfidenceType().getValue()
+            ));
+            if (confidence.getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING) {
+                confidenceBuilder.setAppearedAtHeight(confidence.getAppearedAtChainHeight());
+                confidenceBuilder.setDepth(confidence.getDepthInBlocks());
+            }
+            if (confidence.getConfidenceType() == TransactionConfidence.ConfidenceType.DEAD
+                    && confidence.getOverridingTransaction() != null) {
+                Sha256Hash overriding = confidence.getOverridingTransaction().getHash();
+                confidenceBuilder.setOverridingTransaction(ByteString.copyFrom(overriding.getBytes()));
+            }
+            confidenceBuilder.setSource(Protos.TransactionConfidence.Source.valueOf(
+                    "SOURCE_" + confidence.getSource().name()
+            ));
+        }
+        builder.setConfidence(confidenceBuilder);
+        if (transaction.getMemo() != null) {
+            builder.setMemo(transaction.getMemo());
+        }
+        return builder.build();
+    }
+
+    private static Protos.Key keyProto(ECKey key) {
+        return Protos.Key.newBuilder()
+                .setType(Protos.Key.Type.ORIGINAL)
+                .setSecretBytes(ByteString.copyFrom(key.getPrivKeyBytes()))
+                .setPublicKey(ByteString.copyFrom(key.getPubKey()))
+                .setCreationTimestamp(key.getCreationTimeSeconds() * 1000)
+                .build();
+    }
+
+    /**
+     * Depth is only journaled when something else about a transaction changes, so it is worked out again from
+     * the last block seen.
+     */
+    private static Protos.Transaction withDepth(Protos.Transaction transaction, int lastSeenHeight) {
+        Protos.TransactionConfidence confidence = transaction.getConfidence();
+        if (confidence.getType() != Protos.TransactionConfidence.Type.BUILDING || !confidence.hasAppearedAtHeight()) {
+            return transaction;
+        }
+        int depth = Math.max(1, lastSeenHeight - confidence.getAppearedAtHeight() + 1);
+        return transaction.toBuilder().setConfidence(confidence.toBuilder().setDepth(depth)).build();
+    }
+
+    /**
+     * Sets the issued key counts on the external and internal parent keys of the account in {@code body}.
+     */
+    private static void issue(Protos.Wallet.Builder builder, ByteBuffer body) {
+        List<Integer> accountPath = new ArrayList<>();
+        for (int i = body.getInt(); i > 0; i--) {
+            accountPath.add(body.getInt());
+        }
+        int external = body.getInt();
+        int internal = body.getInt();
+        for (Protos.Key.Builder key : builder.getKeyBuilderList()) {
+            if (!key.hasDeterministicKey()) {
+                continue;
+            }
+            Protos.DeterministicKey.Builder deterministic = key.getDeterministicKeyBuilder();
+            List<Integer> path = deterministic.getPathList();
+            if (path.size() != accountPath.size() + 1 || !path.subList(0, accountPath.size()).equals(accountPath)) {
+                continue;
+            }
+            int child = path.get(accountPath.size());
+            if (child == DeterministicKeyChain.EXTERNAL_SUBPATH.get(0).i()) {
+                deterministic.setIssuedSubkeys(Math.max(deterministic.getIssuedSubkeys(), external));
+            } else if (child == DeterministicKeyChain.INTERNAL_SUBPATH.get(0).i()) {
+                deterministic.setIssuedSubkeys(Math.max(deterministic.getIssuedSubkeys(), internal));
+            }
+        }
+    }
+
+    private static RandomAccessFile reset(File journalFile, long epoch) throws IOException {
+        RandomAccessFile journal = new RandomAccessFile(journalFile, "rw");
+        journal.setLength(0);
+        journal.writeLong(epoch);
+        journal.getFD().sync();
+        return journal;
+    }
+
+    private static long readEpoch(File journalFile) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(journalFile))) {
+            return in.readLong();
+        }
+    }
+
+    private static ByteString tagOf(Protos.Wallet wallet) {
+        for (Protos.Tag tag : wallet.getTagsList()) {
+            if (EPOCH_TAG.equals(tag.getTag())) {
+                return tag.getData();
+            }
+        }
+        return null;
+    }
+
+    private static void setEpoch(Protos.Wallet.Builder builder, long epoch) {
+        List<Protos.Tag> tags = new ArrayList<>();
+        for (Protos.Tag tag : builder.getTagsList()) {
+            if (!EPOCH_TAG.equals(tag.getTag())) {
+                tags.add(tag);
+            }
+        }
+        tags.add(Protos.Tag.newBuilder().setTag(EPOCH_TAG).setData(epochTag(epoch)).build());
+        builder.clearTags().addAllTags(tags);
+    }
+
+    private static long epochOf(ByteString tag) {
+        // Snapshots written before the first journal
+        return tag == null ? 0 : ByteBuffer.wrap(tag.toByteArray()).getLong();
+    }
+
+    private static ByteString epochTag(long epoch) {
+        return ByteString.copyFrom(ByteBuffer.allocate(8).putLong(epoch).array());
+    }
+
+    private final class Listener implements WalletCoinsReceivedEventListener, WalletCoinsSentEventListener,
+            TransactionConfidenceEventListener, WalletReorganizeEventListener, KeyChainEventListener,
+            ScriptsChangeEventListener, WalletChangeEventListener {
+
+        @Override
+        public void onCoinsReceived(Wallet wallet, Transaction tx, Coin prevBalance, Coin newBalance) {
+            journalWithParents(tx);
+        }
+
+        @Override
+        public void onCoinsSent(Wallet wallet, Transaction tx, Coin prevBalance, Coin newBalance) {
+            journalWithParents(tx);
+        }
+
+        @Override
+        public void onTransactionConfidenceChanged(Wallet wallet, Transaction tx) {
+            journal(tx);
+        }
+
+        @Override
+        public void onReorganize(Wallet wallet) {
+            for (Transaction transaction : wallet.getTransactions(true)) {
+                journal(transaction);
+            }
+        }
+
+        @Override
+        public void onKeysAdded(List<ECKey> keys) {
+            for (ECKey key : keys) {
+                // HD keys are derived again from the seed
+                if (!(key instanceof DeterministicKey)) {
+                    append(KEY, keyProto(key).toByteArray());
+                }
+            }
+        }
+
+        @Override
+        public void onScriptsChanged(Wallet wallet, List<Script> scripts, boolean isAddingScripts) {
+            for (Script script : scripts) {
+                if (isAddingScripts) {
+                    append(WATCH, Protos.Script.newBuilder()
+                            .setProgram(ByteString.copyFrom(script.getProgram()))
+                            .setCreationTimestamp(script.getCreationTimeSeconds() * 1000)
+                            .build()
+                            .toByteArray());
+                } else {
+                    append(UNWATCH, script.getProgram());
+                }
+            }
+        }
+
+        @Override
+        public void onWalletChanged(Wallet wallet) {
+            journalChain();
+        }
+    }
+}
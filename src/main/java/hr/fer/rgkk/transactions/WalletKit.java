@@ -1,53 +1,322 @@
 package hr.fer.rgkk.transactions;
 
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Service;
+import com.google.common.util.concurrent.SettableFuture;
+import org.bitcoinj.core.AbstractBlockChain;
+import org.bitcoinj.core.BlockChain;
+import org.bitcoinj.core.Context;
 import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Peer;
 import org.bitcoinj.core.PeerAddress;
 import org.bitcoinj.core.PeerGroup;
+import org.bitcoinj.core.listeners.DownloadProgressTracker;
 import org.bitcoinj.kits.WalletAppKit;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.wallet.Wallet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.net.InetAddress;
+import java.io.IOException;
+import java.util.List;
 
 public class WalletKit implements AutoCloseable {
 
     private final static Logger LOGGER = LoggerFactory.getLogger(WalletKit.class);
 
+    /**
+     * How a kit backed by a wallet file keeps it up to date.
+     */
+    public enum Persistence {
+        // Rewrite the whole wallet file a few seconds after every change
+        AUTOSAVE,
+        // Append changes to a journal next to the wallet file, see WalletJournal
+        JOURNAL
+    }
+
+    // Null for kits restored from a snapshot, which live in memory only
     private final WalletAppKit walletAppKit;
+    // Set once the wallet is loaded, by the time walletLoaded completes
+    private volatile Wallet wallet;
+    private volatile BlockStore blockStore;
+    private volatile AbstractBlockChain chain;
+    private volatile PeerGroup peerGroup;
+    private volatile PeerBroadcaster broadcaster;
+    // Null unless the kit journals its wallet
+    private volatile WalletJournal journal;
+
+    private final SettableFuture<WalletKit> walletLoaded = SettableFuture.create();
+    private final SettableFuture<WalletKit> peersConnected = SettableFuture.create();
+    private final SettableFuture<WalletKit> synced = SettableFuture.create();
 
     public WalletKit(NetworkParameters parameters, File file, String password) {
-        this.walletAppKit = new WalletAppKit(parameters, file, password);
+        this(parameters, file, password, new RemotePeer());
+    }
 
-        try {
-            // NOTE change the address of the server
-            InetAddress peerAddress = InetAddress.getByName("bujica.zemris.fer.hr");
-            this.walletAppKit.setPeerNodes(new PeerAddress(peerAddress, 8080));
-        } catch (Exception ignore) {}
+    /**
+     * @param peers where to sync from, the kit doesn't close it
+     */
+    public WalletKit(NetworkParameters parameters, File file, String password, PeerBackend peers) {
+        this(parameters, file, password, peers, Persistence.AUTOSAVE);
+    }
+
+    /**
+     * @param peers where to sync from, the kit doesn't close it
+     */
+    public WalletKit(NetworkParameters parameters, File file, String password, PeerBackend peers,
+                     Persistence persistence) {
+        this(parameters, file, password, peers, persistence, null);
+    }
+
+    /**
+     * Blocks until the wallet is synced, see {@link #startAsync} for a kit that can be used while it syncs.
+     *
+     * @param peers       where to sync from, the kit doesn't close it
+     * @param checkpoints where a new block store starts, null for bitcoinj's bundled ones if it has any
+     */
+    public WalletKit(NetworkParameters parameters, File file, String password, PeerBackend peers,
+                     Persistence persistence, Checkpoints checkpoints) {
+        this(parameters, file, password, peers, persistence, checkpoints, true);
+    }
+
+    /**
+     * Starts a kit without waiting for it. Work that only needs the wallet, such as creating locking scripts,
+     * generating keys or signing against outputs the wallet already knows, can go ahead once
+     * {@link #walletLoaded()} completes; {@link #getWallet()} and the other getters wait for it. Broadcasts made
+     * before {@link #peersConnected()} are held by the peer group until enough peers connect.
+     *
+     * @param peers where to sync from, the kit doesn't close it
+     */
+    public static WalletKit startAsync(NetworkParameters parameters, File file, String password, PeerBackend peers) {
+        return startAsync(parameters, file, password, peers, Persistence.AUTOSAVE, null);
+    }
+
+    /**
+     * @see #startAsync(NetworkParameters, File, String, PeerBackend)
+     */
+    public static WalletKit startAsync(NetworkParameters parameters, File file, String password, PeerBackend peers,
+                                       Persistence persistence, Checkpoints checkpoints) {
+        return new WalletKit(parameters, file, password, peers, persistence, checkpoints, false);
+    }
+
+    private WalletKit(NetworkParameters parameters, File file, String password, PeerBackend peers,
+                      final Persistence persistence, Checkpoints checkpoints, boolean awaitSync) {
+        final File journalFile = new File(file, password + ".journal");
+        if (persistence == Persistence.JOURNAL) {
+            try {
+                WalletJournal.recover(parameters, new File(file, password + ".wallet"), journalFile);
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to recover wallet journal " + journalFile, e);
+            }
+        }
+        this.walletAppKit = new WalletAppKit(parameters, file, password) {
+            {
+                // So that a WalletPruner can be attached
+                walletFactory = PrunableWallet.FACTORY;
+            }
+
+            @Override
+            protected void setupAutoSave(Wallet wallet) {
+                if (persistence == Persistence.AUTOSAVE) {
+                    super.setupAutoSave(wallet);
+                    return;
+                }
+                try {
+                    journal = new WalletJournal(wallet, vWalletFile, journalFile);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Failed to open wallet journal " + journalFile, e);
+                }
+            }
+
+            @Override
+            protected void onSetupCompleted() {
+                // On the starting thread, before the peer group starts
+                loaded(wallet(), store(), chain(), peerGroup());
+            }
+        };
+        this.walletAppKit.addListener(new Service.Listener() {
+            @Override
+            public void failed(Service.State from, Throwable failure) {
+                fail(failure);
+            }
+
+            @Override
+            public void terminated(Service.State from) {
+                fail(new IllegalStateException("Wallet kit was closed before it was ready"));
+            }
+        }, MoreExecutors.directExecutor());
+
+        PeerAddress[] peerAddresses = peers.getPeerAddresses();
+        if (peerAddresses.length > 0) {
+            this.walletAppKit.setPeerNodes(peerAddresses);
+        }
+        if (checkpoints != null) {
+            this.walletAppKit.setCheckpoints(checkpoints.openStream());
+        }
 
-        LOGGER.info("Starting to sync blockchain. This might take a few minutes");
+        DownloadProgressTracker download = new DownloadProgressTracker();
+        Futures.addCallback(download.getFuture(), new FutureCallback<Long>() {
+            @Override
+            public void onSuccess(Long height) {
+                synced.set(WalletKit.this);
+            }
+
+            @Override
+            public void onFailure(Throwable failure) {
+                fail(failure);
+            }
+        });
+        this.walletAppKit.setDownloadListener(download);
+        this.walletAppKit.setBlockingStartup(false);
         this.walletAppKit.setAutoSave(true);
         this.walletAppKit.startAsync();
-        this.walletAppKit.awaitRunning();
-        this.walletAppKit.wallet().allowSpendingUnconfirmedTransactions();
-        LOGGER.info("Synced blockchain");
+        if (awaitSync) {
+            LOGGER.info("Starting to sync blockchain. This might take a few minutes");
+            Futures.getUnchecked(synced);
+            LOGGER.info("Synced blockchain");
+        }
+    }
+
+    WalletKit(Context context, Wallet wallet, BlockStore blockStore, PeerBackend peers) throws BlockStoreException {
+        this.walletAppKit = null;
+        BlockChain chain = new BlockChain(context, wallet, blockStore);
+        PeerGroup peerGroup = new PeerGroup(context, chain);
+
+        PeerAddress[] peerAddresses = peers.getPeerAddresses();
+        for (PeerAddress peerAddress : peerAddresses) {
+            peerGroup.addAddress(peerAddress);
+        }
+        peerGroup.setMaxConnections(peerAddresses.length);
+        peerGroup.addWallet(wallet);
+        loaded(wallet, blockStore, chain, peerGroup);
+        peerGroup.start();
+        if (peerAddresses.length == 0) {
+            // Nothing to download from, synced() completes only with a failure once the kit is closed
+            LOGGER.info("No peers to sync with, working offline");
+            return;
+        }
+        peerGroup.downloadBlockChain();
+        synced.set(this);
+    }
+
+    private void loaded(Wallet wallet, BlockStore blockStore, AbstractBlockChain chain, PeerGroup peerGroup) {
+        wallet.allowSpendingUnconfirmedTransactions();
+        this.wallet = wallet;
+        this.blockStore = blockStore;
+        this.chain = chain;
+        this.peerGroup = peerGroup;
+        this.broadcaster = new PeerBroadcaster(peerGroup);
+        Futures.addCallback(peerGroup.waitForPeers(1), new FutureCallback<List<Peer>>() {
+            @Override
+            public void onSuccess(List<Peer> peers) {
+                peersConnected.set(WalletKit.this);
+            }
+
+            @Override
+            public void onFailure(Throwable failure) {
+                fail(failure);
+            }
+        });
+        walletLoaded.set(this);
+    }
+
+    // Fails whichever readiness futures haven't completed yet
+    private void fail(Throwable failure) {
+        walletLoaded.setException(failure);
+        peersConnected.setException(failure);
+        synced.setException(failure);
+    }
+
+    /**
+     * Completes once the wallet, block store and chain are loaded and the peer group is created, from then on
+     * the getters return without waiting.
+     */
+    public ListenableFuture<WalletKit> walletLoaded() {
+        return walletLoaded;
+    }
+
+    /**
+     * Completes once at least one peer is connected.
+     */
+    public ListenableFuture<WalletKit> peersConnected() {
+        return peersConnected;
+    }
+
+    /**
+     * Completes once the chain has caught up with the peer it downloads from.
+     */
+    public ListenableFuture<WalletKit> synced() {
+        return synced;
     }
 
     public Wallet getWallet() {
-        return this.walletAppKit.wallet();
+        Futures.getUnchecked(walletLoaded);
+        return this.wallet;
     }
     public PeerGroup getPeerGroup() {
-        return this.walletAppKit.peerGroup();
+        Futures.getUnchecked(walletLoaded);
+        return this.peerGroup;
     }
+    public AbstractBlockChain getChain() {
+        Futures.getUnchecked(walletLoaded);
+        return this.chain;
+    }
+    /**
+     * @return sends transactions to the fastest connected peers, see {@link PeerBroadcaster}
+     */
+    public PeerBroadcaster getBroadcaster() {
+        Futures.getUnchecked(walletLoaded);
+        return this.broadcaster;
+    }
+    /**
+     * @return the underlying kit, or null if this kit was restored from a snapshot
+     */
     public WalletAppKit getWalletAppKit() {
         return this.walletAppKit;
     }
 
+    /**
+     * Copies the current wallet and chain state, call it while nothing is being sent or received.
+     */
+    public WalletSnapshot snapshot() throws BlockStoreException {
+        Futures.getUnchecked(walletLoaded);
+        return WalletSnapshot.of(wallet, blockStore);
+    }
 
     @Override
     public void close() {
-        walletAppKit.stopAsync();
-        walletAppKit.awaitTerminated();
+        if (broadcaster != null) {
+            broadcaster.close();
+        }
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                LOGGER.warn("Failed to close wallet journal", e);
+            }
+        }
+        if (walletAppKit != null) {
+            walletAppKit.stopAsync();
+            try {
+                walletAppKit.awaitTerminated();
+            } catch (IllegalStateException e) {
+                // Already reported through the readiness futures
+                LOGGER.warn("Wallet kit had failed", e);
+            }
+            return;
+        }
+        if (peerGroup.isRunning()) {
+            peerGroup.stop();
+        }
+        try {
+            blockStore.close();
+        } catch (BlockStoreException e) {
+            LOGGER.warn("Failed to close block store", e);
+        }
     }
 }
@@ -0,0 +1,208 @@
+package hr.fer.rgkk.transactions;
+
+import org.bitcoinj.core.AbstractBlockChain;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.listeners.NewBestBlockListener;
+import org.bitcoinj.wallet.Wallet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Keeps the transactions of a {@link PrunableWallet} within a heap budget by moving settled ones, oldest first,
+ * to an archive file. A transaction stays while it is confirmed less than {@code minDepth} deep, or while one of
+ * its owned or watched outputs, or one of its contract outputs still waiting to be redeemed, isn't spent that deep.
+ * Outputs paying to other wallets' addresses don't keep it.
+ * <p>
+ * The heap a transaction takes is estimated from its serialized size. Pruning runs on every new best block and
+ * whenever {@link #prune()} is called. Transactions are appended to the archive and synced before they leave the
+ * wallet, so a crash in between only archives them twice.
+ */
+public final class WalletPruner implements AutoCloseable {
+
+    private final static Logger LOGGER = LoggerFactory.getLogger(WalletPruner.class);
+
+    private static final int DEFAULT_MIN_DEPTH = Integer.getInteger("rgkk.walletPruner.minDepth", 100);
+    private static final long DEFAULT_BUDGET_BYTES = Long.getLong("rgkk.walletPruner.budgetBytes", 64L << 20);
+    // Parsed transactions take several times their serialized size
+    static final int HEAP_PER_SERIALIZED_BYTE = 8;
+    // Length and confirmation height
+    private static final int RECORD_HEADER_SIZE = 4 + 4;
+
+    private final PrunableWallet wallet;
+    private final AbstractBlockChain chain;
+    private final File archiveFile;
+    private final RandomAccessFile archive;
+    private final int minDepth;
+    private final long budgetBytes;
+    private final NewBestBlockListener listener = new NewBestBlockListener() {
+        @Override
+        public void notifyNewBestBlock(StoredBlock block) {
+            try {
+                prune();
+            } catch (IOException e) {
+                LOGGER.warn("Failed to prune wallet at height {}", block.getHeight(), e);
+            }
+        }
+    };
+
+    /**
+     * Prunes transactions confirmed {@code rgkk.walletPruner.minDepth} deep, 100 by default, once the wallet
+     * takes more than {@code rgkk.walletPruner.budgetBytes}, 64 MiB by default.
+     *
+     * @throws IllegalArgumentException if the kit's wallet isn't a {@link PrunableWallet}
+     */
+    public WalletPruner(WalletKit walletKit, File archiveFile) throws IOException {
+        this(prunable(walletKit.getWallet()), walletKit.getChain(), archiveFile, DEFAULT_MIN_DEPTH,
+                DEFAULT_BUDGET_BYTES);
+    }
+
+    /**
+     * @param chain       prunes on its new best blocks, null to only prune on {@link #prune()}
+     * @param archiveFile created if missing, appended to otherwise
+     * @param budgetBytes estimated heap the wallet's transactions may take, 0 to prune every settled one
+     */
+    public WalletPruner(PrunableWallet wallet, AbstractBlockChain chain, File archiveFile, int minDepth,
+                        long budgetBytes) throws IOException {
+        checkArgument(minDepth > 0, "Minimum depth must be positive, got %s", minDepth);
+        checkArgument(budgetBytes >= 0, "Budget must not be negative, got %s", budgetBytes);
+        this.wallet = wallet;
+        this.chain = chain;
+        this.archiveFile = archiveFile;
+        this.archive = new RandomAccessFile(archiveFile, "rw");
+        this.minDepth = minDepth;
+        this.budgetBytes = budgetBytes;
+        if (chain != null) {
+            chain.addNewBestBlockListener(listener);
+        }
+    }
+
+    /**
+     * Archives and removes settled transactions, oldest first, until the wallet's estimated heap is within budget.
+     *
+     * @return the number of transactions pruned
+     */
+    public synchronized int prune() throws IOException {
+        long excess = estimateHeapBytes() - budgetBytes;
+        if (excess <= 0) {
+            return 0;
+        }
+        List<Transaction> pruning = new ArrayList<>();
+        for (Transaction transaction : wallet.getSettledTransactions(minDepth)) {
+            if (excess <= 0) {
+                break;
+            }
+            pruning.add(transaction);
+            excess -= (long) transaction.getMessageSize() * HEAP_PER_SERIALIZED_BYTE;
+        }
+        if (pruning.isEmpty()) {
+            return 0;
+        }
+        archive(pruning);
+        List<Transaction> removed = wallet.removeSettledTransactions(pruning, minDepth);
+        LOGGER.info("Pruned {} settled transactions, {} left in the wallet", removed.size(),
+                wallet.getTransactions(true).size());
+        return removed.size();
+    }
+
+    /**
+     * @return estimated heap taken by the wallet's transactions
+     */
+    public long estimateHeapBytes() {
+        return wallet.getTransactionBytes() * HEAP_PER_SERIALIZED_BYTE;
+    }
+
+    public File getArchiveFile() {
+        return archiveFile;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (chain != null) {
+            chain.removeNewBestBlockListener(listener);
+        }
+        archive.close();
+    }
+
+    private void archive(List<Transaction> transactions) throws IOException {
+        int size = 0;
+        List<byte[]> serialized = new ArrayList<>(transactions.size());
+        for (Transaction transaction : transactions) {
+            byte[] bytes = transaction.bitcoinSerialize();
+            serialized.add(bytes);
+            size += RECORD_HEADER_SIZE + bytes.length;
+        }
+        ByteBuffer records = ByteBuffer.allocate(size);
+        for (int i = 0; i < transactions.size(); i++) {
+            records.putInt(serialized.get(i).length)
+                    .putInt(transactions.get(i).getConfidence().getAppearedAtChainHeight())
+                    .put(serialized.get(i));
+        }
+        archive.seek(archive.length());
+        archive.write(records.array());
+        archive.getFD().sync();
+    }
+
+    /**
+     * Reads back every transaction archived in {@code archiveFile}, a torn last record is left out.
+     */
+    public static List<Archived> readArchive(NetworkParameters parameters, File archiveFile) throws IOException {
+        List<Archived> archived = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(archiveFile)))) {
+            while (true) {
+                byte[] bytes;
+                int height;
+                try {
+                    bytes = new byte[in.readInt()];
+                    height = in.readInt();
+                    in.readFully(bytes);
+                } catch (EOFException e) {
+                    break;
+                }
+                archived.add(new Archived(new Transaction(parameters, bytes), height));
+            }
+        }
+        return archived;
+    }
+
+    private static PrunableWallet prunable(Wallet wallet) {
+        checkArgument(wallet instanceof PrunableWallet, "Wallet is a %s, not a PrunableWallet", wallet.getClass());
+        return (PrunableWallet) wallet;
+    }
+
+    /**
+     * A pruned transaction and the height it confirmed at.
+     */
+    public static final class Archived {
+
+        private final Transaction transaction;
+        private final int height;
+
+        private Archived(Transaction transaction, int height) {
+            this.transaction = transaction;
+            this.height = height;
+        }
+
+        public Transaction getTransaction() {
+            return transaction;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package hr.fer.rgkk.transactions;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.bitcoinj.wallet.Protos;
+import org.bitcoinj.wallet.UnreadableWalletException;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.WalletProtobufSerializer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * In-memory copy of a synced wallet and the chain it has seen.
+ * <p>
+ * Every {@link #restore(PeerBackend)} gets its own wallet, so kits restored from one snapshot can spend the
+ * same outputs without seeing each other's transactions. Block headers are immutable and shared between copies.
+ */
+public final class WalletSnapshot {
+
+    private final Context context;
+    private final byte[] wallet;
+    // Oldest first, ends with the chain head
+    private final List<StoredBlock> headers;
+
+    private WalletSnapshot(Context context, byte[] wallet, List<StoredBlock> headers) {
+        this.context = context;
+        this.wallet = wallet;
+        this.headers = headers;
+    }
+
+    static WalletSnapshot of(Wallet wallet, BlockStore blockStore) throws BlockStoreException {
+        List<StoredBlock> headers = new ArrayList<>();
+        // The store may not reach back to genesis, whatever it still holds is enough to sync from
+        StoredBlock block = blockStore.getChainHead();
+        while (block != null) {
+            headers.add(block);
+            block = block.getHeight() == 0 ? null : block.getPrev(blockStore);
+        }
+        Collections.reverse(headers);
+        byte[] serialized = new WalletProtobufSerializer().walletToProto(wallet).toByteArray();
+        return new WalletSnapshot(
+                Context.getOrCreate(wallet.getParams()), serialized, Collections.unmodifiableList(headers)
+        );
+    }
+
+    public NetworkParameters getParameters() {
+        return context.getParams();
+    }
+
+    public int getChainHeight() {
+        return headers.get(headers.size() - 1).getHeight();
+    }
+
+    /**
+     * Starts a kit with a copy of the wallet, synced from {@code peers} starting at the snapshot's chain head.
+     *
+     * @param peers where to sync from, the kit doesn't close it
+     */
+    public WalletKit restore(PeerBackend peers) throws UnreadableWalletException, BlockStoreException {
+        Context.propagate(context);
+        Wallet copy;
+        try {
+            copy = new WalletProtobufSerializer(PrunableWallet.FACTORY).readWallet(getParameters(), null, Protos.Wallet.parseFrom(wallet));
+        } catch (InvalidProtocolBufferException e) {
+            throw new UnreadableWalletException("Corrupt snapshot", e);
+        }
+        BlockStore blockStore = new MemoryBlockStore(getParameters());
+        for (StoredBlock header : headers) {
+            blockStore.put(header);
+        }
+        blockStore.setChainHead(headers.get(headers.size() - 1));
+        return new WalletKit(context, copy, blockStore, peers);
+    }
+}
@@ -0,0 +1,184 @@
+package hr.fer.rgkk.transactions;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.bitcoinj.core.BloomFilter;
+import org.bitcoinj.core.PeerFilterProvider;
+import org.bitcoinj.core.PeerGroup;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptChunk;
+import org.bitcoinj.wallet.Wallet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Non-standard locking scripts, such as those of {@link TimeLock} and {@link CoinToss}, that the wallet has to watch
+ * to see them spent.
+ * <p>
+ * Every script added to the wallet makes the peer group recalculate its bloom filter and send it to every peer.
+ * Scripts added here are instead handed to the wallet in one batch every {@code rgkk.watchedScripts.flushMillis},
+ * 500 if not set, so that many new contracts cost one recalculation.
+ * <p>
+ * Registered with the peer group, this also reserves room in the filter for the scripts' data, which the wallet
+ * counts as one element per script. The reserve doubles when it runs out, so the filter keeps the target false
+ * positive rate and only changes size a logarithmic number of times as scripts are added. Past
+ * {@link BloomFilter#MAX_FILTER_SIZE} bytes the rate does go up.
+ */
+public final class WatchedScripts implements PeerFilterProvider, AutoCloseable {
+
+    private final static Logger LOGGER = LoggerFactory.getLogger(WatchedScripts.class);
+
+    private static final int DEFAULT_FLUSH_MILLIS = Integer.getInteger("rgkk.watchedScripts.flushMillis", 500);
+    private static final int MIN_CAPACITY = 1024;
+    // Same as the wallet, shorter pushes don't go into the filter
+    private static final int MINIMUM_BLOOM_DATA_LENGTH = 8;
+
+    private final Wallet wallet;
+    // Null when no filter is kept for peers
+    private final PeerGroup peerGroup;
+    private final ScheduledExecutorService flusher;
+    private final Set<Script> pending = new LinkedHashSet<>();
+    private int scripts;
+    private int elements;
+    private int capacity = MIN_CAPACITY;
+
+    /**
+     * Watches through the kit's wallet and reserves filter room in its peer group.
+     */
+    public WatchedScripts(WalletKit walletKit) {
+        this(walletKit.getWallet(), walletKit.getPeerGroup(), DEFAULT_FLUSH_MILLIS);
+    }
+
+    WatchedScripts(Wallet wallet, PeerGroup peerGroup, long flushMillis) {
+        checkArgument(flushMillis > 0, "Flush interval must be positive, got %s", flushMillis);
+        this.wallet = wallet;
+        this.peerGroup = peerGroup;
+        grow(wallet.getWatchedScripts());
+        this.flusher = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("watched-scripts-flush").setDaemon(true).build()
+        );
+        this.flusher.scheduleWithFixedDelay(this::flushQuietly, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+        if (peerGroup != null) {
+            peerGroup.addPeerFilterProvider(this);
+        }
+    }
+
+    /**
+     * Has the wallet watch {@code script} from the next flush on.
+     */
+    public void watch(Script script) {
+        watch(Collections.singletonList(script));
+    }
+
+    public synchronized void watch(Collection<Script> scripts) {
+        pending.addAll(scripts);
+    }
+
+    /**
+     * Hands the scripts added since the last flush to the wallet right away.
+     *
+     * @return number of scripts handed over
+     */
+    public int flush() {
+        List<Script> batch;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return 0;
+            }
+            batch = new ArrayList<>(pending);
+            pending.clear();
+            // Before the wallet asks for a new filter
+            grow(batch);
+        }
+        int added = wallet.addWatchedScripts(batch);
+        LOGGER.info("Watching {} more scripts, filter room for {} elements", added, getCapacity());
+        return batch.size();
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * @return data elements the filter has room for, for all the watched scripts
+     */
+    public synchronized int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public void close() {
+        flusher.shutdown();
+        flush();
+        if (peerGroup != null) {
+            peerGroup.removePeerFilterProvider(this);
+        }
+    }
+
+    @Override
+    public long getEarliestKeyCreationTime() {
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public void beginBloomFilterCalculation() {
+    }
+
+    /**
+     * @return room left for script data, on top of the one element per script the wallet counts
+     */
+    @Override
+    public synchronized int getBloomFilterElementCount() {
+        return capacity - scripts;
+    }
+
+    /**
+     * @return an empty filter, the wallet inserts the scripts' data
+     */
+    @Override
+    public BloomFilter getBloomFilter(int size, double falsePositiveRate, long nTweak) {
+        return new BloomFilter(size, falsePositiveRate, nTweak);
+    }
+
+    @Override
+    public boolean isRequiringUpdateAllBloomFilter() {
+        return false;
+    }
+
+    @Override
+    public void endBloomFilterCalculation() {
+    }
+
+    private void grow(Collection<Script> added) {
+        for (Script script : added) {
+            scripts++;
+            for (ScriptChunk chunk : script.getChunks()) {
+                if (!chunk.isOpCode() && chunk.data.length >= MINIMUM_BLOOM_DATA_LENGTH) {
+                    elements++;
+                }
+            }
+        }
+        while (capacity < Math.max(elements, scripts)) {
+            capacity *= 2;
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            LOGGER.warn("Failed to hand watched scripts to the wallet", e);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package hr.fer.rgkk.transactions;
+
+import hr.fer.rgkk.transactions.CoinToss.CoinTossChoice;
+import hr.fer.rgkk.transactions.CoinToss.WinningPlayer;
+import hr.fer.rgkk.transactions.TimeLock.ScriptSigType;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.params.RegTestParams;
+import org.bitcoinj.script.ScriptOpCodes;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class BatchVerifierTest {
+
+    private final NetworkParameters networkParameters = RegTestParams.get();
+
+    @Test
+    public void testMixedBatch() {
+        List<SpendJob> jobs = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            jobs.add(OfflineSpends.spend(new PayToPubKeyHash(null, networkParameters), networkParameters));
+            jobs.add(OfflineSpends.spend(new TimeLock(null, networkParameters, ScriptSigType.ALICE_AND_BOB), networkParameters));
+            jobs.add(OfflineSpends.spend(CoinToss.of(
+                    null, networkParameters, CoinTossChoice.ONE, CoinTossChoice.ZERO, WinningPlayer.HEAD
+            ), networkParameters));
+            // Tail loses with one and zero
+            jobs.add(OfflineSpends.spend(CoinToss.of(
+                    null, networkParameters, CoinTossChoice.ONE, CoinTossChoice.ZERO, WinningPlayer.TAIL
+            ), networkParameters));
+        }
+
+        List<VerificationResult> results;
+        try (BatchVerifier verifier = new BatchVerifier(4)) {
+            results = verifier.verify(jobs);
+        }
+
+        Assert.assertEquals(jobs.size(), results.size());
+        for (int i = 0; i < jobs.size(); i++) {
+            VerificationResult result = results.get(i);
+            Assert.assertSame(jobs.get(i), result.getJob());
+            if (i % 4 == 3) {
+                Assert.assertFalse(result.isValid());
+                Assert.assertEquals(ScriptOpCodes.OP_CHECKSIG, result.getFailingOpcode());
+            } else {
+                Assert.assertTrue(result.toString(), result.isValid());
+            }
+        }
+    }
+}
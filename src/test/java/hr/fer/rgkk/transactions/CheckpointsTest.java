@@ -0,0 +1,115 @@
+package hr.fer.rgkk.transactions;
+
+import org.bitcoinj.core.CheckpointManager;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.params.MainNetParams;
+import org.bitcoinj.params.RegTestParams;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.wallet.DeterministicSeed;
+import org.bitcoinj.wallet.Wallet;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+public class CheckpointsTest {
+
+    private final NetworkParameters networkParameters = RegTestParams.get();
+    private Path directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("checkpoints");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    public void testNewKitSyncsFromLastCheckpoint() throws Exception {
+        try (RegTestPeer peer = new RegTestPeer(networkParameters)) {
+            for (int i = 0; i < 250; i++) {
+                peer.mineBlock();
+            }
+            Checkpoints checkpoints;
+            Sha256Hash checkpointed;
+            Sha256Hash skipped;
+            try (WalletKit node = kit("node", peer, null)) {
+                BlockStore store = node.getChain().getBlockStore();
+                checkpoints = Checkpoints.fromChain(store, 100);
+                StoredBlock block = store.getChainHead();
+                while (block.getHeight() > 200) {
+                    block = block.getPrev(store);
+                }
+                checkpointed = block.getHeader().getHash();
+                skipped = block.getPrev(store).getHeader().getHash();
+            }
+
+            // Born a week after the blocks were mined, as bitcoinj picks the last checkpoint a week before birth
+            File walletDirectory = directory.resolve("wallet").toFile();
+            Assert.assertTrue(walletDirectory.mkdirs());
+            long birth = Utils.currentTimeSeconds() + TimeUnit.DAYS.toSeconds(8);
+            Wallet.fromSeed(networkParameters, new DeterministicSeed(new SecureRandom(), 128, "", birth))
+                    .saveToFile(new File(walletDirectory, "test.wallet"));
+
+            try (WalletKit walletKit = kit("wallet", peer, checkpoints)) {
+                BlockStore store = walletKit.getChain().getBlockStore();
+                Assert.assertEquals(250, walletKit.getChain().getBestChainHeight());
+                Assert.assertNotNull(store.get(checkpointed));
+                Assert.assertNull(store.get(skipped));
+            }
+        }
+    }
+
+    @Test
+    public void testFileRoundTrip() throws Exception {
+        try (RegTestPeer peer = new RegTestPeer(networkParameters)) {
+            for (int i = 0; i < 30; i++) {
+                peer.mineBlock();
+            }
+            File file = directory.resolve("regtest.checkpoints.txt").toFile();
+            try (WalletKit node = kit("node", peer, null)) {
+                Checkpoints.fromChain(node.getChain().getBlockStore(), 10).writeTo(file);
+            }
+
+            CheckpointManager manager = new CheckpointManager(networkParameters, Checkpoints.fromFile(file).openStream());
+            Assert.assertEquals(3, manager.numCheckpoints());
+            Assert.assertEquals(30, manager.getCheckpointBefore(Long.MAX_VALUE / 2).getHeight());
+        }
+    }
+
+    @Test
+    public void testBundledCheckpoints() throws Exception {
+        NetworkParameters mainNet = MainNetParams.get();
+        CheckpointManager manager = new CheckpointManager(mainNet, Checkpoints.bundled(mainNet).openStream());
+        Assert.assertTrue(manager.numCheckpoints() > 0);
+        try {
+            Checkpoints.bundled(networkParameters);
+            Assert.fail("bitcoinj has no regtest checkpoints");
+        } catch (IllegalArgumentException expected) {
+            // Has to be made from a chain
+        }
+    }
+
+    private WalletKit kit(String name, RegTestPeer peer, Checkpoints checkpoints) {
+        return new WalletKit(
+                networkParameters, directory.resolve(name).toFile(), "test", peer, WalletKit.Persistence.AUTOSAVE,
+                checkpoints
+        );
+    }
+}
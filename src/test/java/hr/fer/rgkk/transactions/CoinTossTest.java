@@ -0,0 +1,53 @@
+package hr.fer.rgkk.transactions;
+
+import hr.fer.rgkk.transactions.CoinToss.CoinTossChoice;
+import hr.fer.rgkk.transactions.CoinToss.WinningPlayer;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.params.RegTestParams;
+import org.bitcoinj.script.Script;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class CoinTossTest {
+
+    private final NetworkParameters networkParameters = RegTestParams.get();
+
+    @Test
+    public void testBulkGamesAreDistinctAndSpendable() {
+        List<CoinToss> games = CoinToss.of(
+                null, networkParameters, 64, CoinTossChoice.ZERO, CoinTossChoice.ONE, WinningPlayer.HEAD
+        );
+        Assert.assertEquals(64, games.size());
+
+        Set<Script> lockingScripts = new HashSet<>();
+        List<SpendJob> jobs = new ArrayList<>();
+        for (CoinToss game : games) {
+            Script lockingScript = game.createLockingScript();
+            // Nonces are pushed with their length, 16 for zero and 17 for one
+            Assert.assertEquals(16, lockingScript.getChunks().get(1).data.length);
+            Assert.assertEquals(17, lockingScript.getChunks().get(5).data.length);
+            lockingScripts.add(lockingScript);
+            jobs.add(OfflineSpends.spend(game, networkParameters));
+        }
+        Assert.assertEquals(games.size(), lockingScripts.size());
+
+        try (BatchVerifier verifier = new BatchVerifier(4)) {
+            for (VerificationResult result : verifier.verify(jobs)) {
+                Assert.assertTrue(result.toString(), result.isValid());
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsTooManyGames() {
+        CoinToss.of(
+                null, networkParameters, Integer.MAX_VALUE / 2, CoinTossChoice.ZERO, CoinTossChoice.ONE,
+                WinningPlayer.HEAD
+        );
+    }
+}
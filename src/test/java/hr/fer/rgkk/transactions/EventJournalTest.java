@@ -0,0 +1,115 @@
+package hr.fer.rgkk.transactions;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.RegTestParams;
+import org.bitcoinj.script.ScriptBuilder;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class EventJournalTest {
+
+    private final NetworkParameters networkParameters = RegTestParams.get();
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = Files.createTempFile("events", ".bin").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testReadsBackTransactionFields() throws Exception {
+        Transaction transaction = new Transaction(networkParameters);
+        transaction.addInput(Sha256Hash.of(new ECKey().getPubKey()), 0, new ScriptBuilder().build());
+        transaction.addOutput(Coin.CENT, new ECKey().toAddress(networkParameters));
+
+        try (EventJournal journal = new EventJournal(file, 16)) {
+            Assert.assertTrue(journal.record(transaction, "PayToPubKeyHash",
+                    ScriptMetrics.Phase.SEND_TRANSACTION, false, 1234));
+            Assert.assertTrue(journal.record(null, "TimeLock",
+                    ScriptMetrics.Phase.TEST_SCRIPT, true, 99));
+        }
+
+        EventJournal.Journal journal = EventJournal.read(file);
+        Assert.assertEquals(0, journal.getDropped());
+        Assert.assertEquals(2, journal.getEvents().size());
+
+        EventJournal.Event sent = journal.getEvents().get(0);
+        Assert.assertEquals(transaction.getHash(), sent.getTxid());
+        Assert.assertEquals(transaction.bitcoinSerialize().length, sent.getSize());
+        Assert.assertEquals(transaction.getSigOpCount(), sent.getSigOps());
+        Assert.assertEquals("PayToPubKeyHash", sent.getScriptType());
+        Assert.assertEquals(ScriptMetrics.Phase.SEND_TRANSACTION, sent.getPhase());
+        Assert.assertFalse(sent.isFailed());
+        Assert.assertEquals(1234, sent.getNanos());
+
+        EventJournal.Event tested = journal.getEvents().get(1);
+        Assert.assertNull(tested.getTxid());
+        Assert.assertEquals("TimeLock", tested.getScriptType());
+        Assert.assertTrue(tested.isFailed());
+    }
+
+    @Test
+    public void testConcurrentRecordersLoseNothingUncounted() throws Exception {
+        final int threads = 4;
+        final int perThread = 20000;
+        final AtomicInteger accepted = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        final EventJournal journal = new EventJournal(file, 256);
+        List<Thread> recorders = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final String scriptType = "Script" + t;
+            Thread recorder = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < perThread; i++) {
+                    if (journal.record(null, scriptType, ScriptMetrics.Phase.SIGN, false, i)) {
+                        accepted.incrementAndGet();
+                    }
+                }
+            });
+            recorder.start();
+            recorders.add(recorder);
+        }
+        start.countDown();
+        for (Thread recorder : recorders) {
+            recorder.join();
+        }
+        journal.close();
+
+        EventJournal.Journal read = EventJournal.read(file);
+        Assert.assertEquals(accepted.get(), read.getEvents().size());
+        Assert.assertEquals(threads * perThread - accepted.get(), read.getDropped());
+        Assert.assertEquals(journal.getDropped(), read.getDropped());
+
+        // Each thread's events stay in the order it recorded them
+        long[] last = new long[threads];
+        Arrays.fill(last, -1);
+        for (EventJournal.Event event : read.getEvents()) {
+            int thread = event.getScriptType().charAt(event.getScriptType().length() - 1) - '0';
+            Assert.assertTrue(event.getNanos() > last[thread]);
+            last[thread] = event.getNanos();
+        }
+    }
+}
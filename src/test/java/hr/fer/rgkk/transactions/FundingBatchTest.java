@@ -0,0 +1,124 @@
+package hr.fer.rgkk.transactions;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.params.RegTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.wallet.Wallet;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+public class FundingBatchTest {
+
+    private static WalletFixture fixture;
+
+    private final NetworkParameters networkParameters = RegTestParams.get();
+    private WalletFixture.Copy wallet;
+
+    @BeforeClass
+    public static void startFixture() throws Exception {
+        fixture = WalletFixture.start(RegTestParams.get());
+    }
+
+    @AfterClass
+    public static void stopFixture() throws IOException {
+        if (fixture != null) {
+            fixture.close();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        wallet = fixture.restore();
+    }
+
+    @After
+    public void tearDown() {
+        if (wallet != null) {
+            wallet.close();
+        }
+    }
+
+    @Test
+    public void testManyScriptsShareOneTransaction() throws Exception {
+        List<Script> scripts = scripts(200);
+        FundingBatch batch = new FundingBatch();
+        for (Script script : scripts) {
+            batch.add(script, Coin.MILLICOIN);
+        }
+
+        Map<Script, TransactionOutput> outputs = batch.fund(wallet.getWalletKit().getWallet());
+
+        Assert.assertEquals(scripts, new ArrayList<>(outputs.keySet()));
+        Set<Transaction> transactions = new HashSet<>();
+        for (Map.Entry<Script, TransactionOutput> output : outputs.entrySet()) {
+            Assert.assertEquals(output.getKey(), output.getValue().getScriptPubKey());
+            Assert.assertEquals(Coin.MILLICOIN, output.getValue().getValue());
+            transactions.add(output.getValue().getParentTransaction());
+        }
+        Assert.assertEquals(1, transactions.size());
+    }
+
+    @Test
+    public void testSizeCapSplitsWithoutDoubleSpending() throws Exception {
+        Assume.assumeNotNull(wallet.getPeer());
+        Wallet funded = wallet.getWalletKit().getWallet();
+        wallet.getPeer().fund(funded.currentReceiveAddress(), Coin.COIN);
+        wallet.getPeer().fund(funded.currentReceiveAddress(), Coin.COIN);
+        funded.getBalanceFuture(Coin.COIN.multiply(3), Wallet.BalanceType.AVAILABLE).get(10, TimeUnit.SECONDS);
+
+        // Pay to pubkey hash outputs take 34 bytes, so two of them fit under the cap
+        FundingBatch batch = new FundingBatch(70);
+        for (Script script : scripts(6)) {
+            batch.add(script, Coin.CENT);
+        }
+
+        Map<Script, TransactionOutput> outputs = batch.fund(funded);
+
+        Assert.assertEquals(6, outputs.size());
+        Set<Transaction> transactions = new HashSet<>();
+        for (TransactionOutput output : outputs.values()) {
+            transactions.add(output.getParentTransaction());
+        }
+        Assert.assertEquals(3, transactions.size());
+        Set<TransactionOutPoint> spent = new HashSet<>();
+        for (Transaction transaction : transactions) {
+            for (TransactionInput input : transaction.getInputs()) {
+                Assert.assertTrue("Double spend of " + input.getOutpoint(), spent.add(input.getOutpoint()));
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDuplicateScriptIsRejected() {
+        Script script = scripts(1).get(0);
+        new FundingBatch().add(script, Coin.CENT).add(script, Coin.COIN);
+    }
+
+    private List<Script> scripts(int count) {
+        List<Script> scripts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            scripts.add(ScriptBuilder.createOutputScript(new ECKey().toAddress(networkParameters)));
+        }
+        return scripts;
+    }
+}
@@ -0,0 +1,36 @@
+package hr.fer.rgkk.transactions;
+
+import org.bitcoinj.core.ECKey;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+public class KeyPoolTest {
+
+    @Test
+    public void testRefillsBetweenWatermarks() throws InterruptedException {
+        try (KeyPool pool = new KeyPool(2, 8)) {
+            awaitSize(pool, 8);
+
+            Set<ECKey> keys = new HashSet<>();
+            for (int i = 0; i < 8; i++) {
+                keys.add(pool.take());
+            }
+            // Whether or not the refill has caught up, the pool still hands out a key
+            keys.add(pool.take());
+
+            Assert.assertEquals(9, keys.size());
+            Assert.assertEquals(9, pool.getHits() + pool.getMisses());
+            awaitSize(pool, 8);
+        }
+    }
+
+    private static void awaitSize(KeyPool pool, int size) throws InterruptedException {
+        for (int i = 0; i < 500 && pool.size() < size; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(size, pool.size());
+    }
+}
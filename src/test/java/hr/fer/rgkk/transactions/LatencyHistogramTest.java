@@ -0,0 +1,27 @@
+package hr.fer.rgkk.transactions;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testHistogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        Assert.assertEquals(1000, snapshot.getCount());
+        Assert.assertEquals(1000000, snapshot.getMax());
+        Assert.assertEquals(500500, snapshot.getMean(), 0.001);
+        Assert.assertEquals(500000, snapshot.getValueAtPercentile(50), 500000 * 0.07);
+        Assert.assertEquals(990000, snapshot.getValueAtPercentile(99), 990000 * 0.07);
+        Assert.assertEquals(1000000, snapshot.getValueAtPercentile(100));
+        for (long value = 0; value < 1L << 20; value += 7919) {
+            int bucket = LatencyHistogram.bucket(value);
+            Assert.assertTrue(LatencyHistogram.highestValue(bucket) >= value);
+            Assert.assertTrue(bucket == 0 || LatencyHistogram.highestValue(bucket - 1) < value);
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package hr.fer.rgkk.transactions;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.RegTestParams;
+import org.bitcoinj.script.ScriptBuilder;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class MaturitySchedulerTest {
+
+    private final NetworkParameters networkParameters = RegTestParams.get();
+    private final List<Sha256Hash> broadcast = Collections.synchronizedList(new ArrayList<Sha256Hash>());
+    private volatile boolean offline;
+    private final MaturityScheduler.Broadcaster broadcaster = new MaturityScheduler.Broadcaster() {
+        @Override
+        public ListenableFuture<?> broadcast(Transaction transaction) {
+            if (offline) {
+                return Futures.immediateFailedFuture(new IllegalStateException("No peers to broadcast to"));
+            }
+            broadcast.add(transaction.getHash());
+            return Futures.immediateFuture(transaction);
+        }
+    };
+    private File journal;
+
+    @Before
+    public void setUp() throws IOException {
+        journal = Files.createTempFile("maturity", ".journal").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        journal.delete();
+    }
+
+    @Test
+    public void testBroadcastsWhenFinalAndSurvivesRestart() throws IOException {
+        Transaction atTen = redemption(10);
+        Transaction atTwenty = redemption(20);
+        // Far below any regtest block time
+        Transaction byTime = redemption(Transaction.LOCKTIME_THRESHOLD + 1000);
+
+        try (MaturityScheduler scheduler = open()) {
+            scheduler.schedule(atTen);
+            scheduler.schedule(atTwenty);
+            scheduler.schedule(byTime);
+            scheduler.onNewTip(9, Transaction.LOCKTIME_THRESHOLD);
+            Assert.assertTrue(broadcast.isEmpty());
+            scheduler.onNewTip(10, Transaction.LOCKTIME_THRESHOLD + 1000);
+            Assert.assertEquals(Collections.singletonList(atTen.getHash()), broadcast);
+        }
+
+        broadcast.clear();
+        try (MaturityScheduler scheduler = open()) {
+            Assert.assertEquals(2, scheduler.getPendingCount());
+            scheduler.onNewTip(20, Transaction.LOCKTIME_THRESHOLD + 1001);
+            Assert.assertEquals(2, broadcast.size());
+            Assert.assertTrue(broadcast.contains(atTwenty.getHash()));
+            Assert.assertTrue(broadcast.contains(byTime.getHash()));
+        }
+
+        try (MaturityScheduler scheduler = open()) {
+            Assert.assertEquals(0, scheduler.getPendingCount());
+        }
+    }
+
+    @Test
+    public void testRetriesFailedBroadcasts() throws IOException {
+        Transaction redemption = redemption(10);
+        offline = true;
+        try (MaturityScheduler scheduler = open()) {
+            scheduler.schedule(redemption);
+            scheduler.onNewTip(10, 0);
+            Assert.assertTrue(broadcast.isEmpty());
+            Assert.assertEquals(1, scheduler.getPendingCount());
+        }
+
+        try (MaturityScheduler scheduler = open()) {
+            Assert.assertEquals(1, scheduler.getPendingCount());
+            offline = false;
+            scheduler.onNewTip(11, 0);
+            Assert.assertEquals(Collections.singletonList(redemption.getHash()), broadcast);
+            Assert.assertEquals(0, scheduler.getPendingCount());
+        }
+
+        try (MaturityScheduler scheduler = open()) {
+            Assert.assertEquals(0, scheduler.getPendingCount());
+        }
+    }
+
+    @Test
+    public void testCompactionKeepsPendingRedemptions() throws IOException {
+        List<Transaction> redemptions = new ArrayList<>();
+        for (int i = 1; i <= 10; i++) {
+            redemptions.add(redemption(i));
+        }
+        try (MaturityScheduler scheduler = open()) {
+            scheduler.schedule(redemptions);
+            scheduler.onNewTip(8, 0);
+        }
+        long before = journal.length();
+
+        broadcast.clear();
+        try (MaturityScheduler scheduler = open()) {
+            Assert.assertTrue(journal.length() < before);
+            Assert.assertEquals(2, scheduler.getPendingCount());
+            scheduler.onNewTip(10, 0);
+            Assert.assertEquals(
+                    Arrays.asList(redemptions.get(8).getHash(), redemptions.get(9).getHash()),
+                    broadcast
+            );
+        }
+    }
+
+    @Test
+    public void testManyPendingComeDueInOrder() throws IOException {
+        Random random = new Random(1);
+        List<Transaction> redemptions = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            redemptions.add(redemption(1 + random.nextInt(10000)));
+        }
+        try (MaturityScheduler scheduler = open()) {
+            scheduler.schedule(redemptions);
+            scheduler.onNewTip(5000, 0);
+            int due = 0;
+            for (Transaction redemption : redemptions) {
+                if (redemption.getLockTime() <= 5000) {
+                    due++;
+                }
+            }
+            Assert.assertEquals(due, broadcast.size());
+            Assert.assertEquals(redemptions.size() - due, scheduler.getPendingCount());
+        }
+    }
+
+    @Test
+    public void testFollowsTheChainTip() throws Exception {
+        try (WalletFixture fixture = WalletFixture.start(networkParameters);
+             WalletFixture.Copy wallet = fixture.restore()) {
+            RegTestPeer peer = wallet.getPeer();
+            Assume.assumeNotNull(peer);
+            peer.setAutoMine(false);
+            Transaction redemption = redemption(peer.getChainHeight() + 1);
+
+            try (MaturityScheduler scheduler = new MaturityScheduler(wallet.getWalletKit(), journal)) {
+                scheduler.schedule(redemption);
+                Assert.assertEquals(1, scheduler.getPendingCount());
+                peer.mineBlock();
+                long deadline = System.currentTimeMillis() + 10000;
+                while (!peer.getMemoryPool().contains(redemption.getHash()) && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(20);
+                }
+                Assert.assertTrue(peer.getMemoryPool().contains(redemption.getHash()));
+                Assert.assertEquals(0, scheduler.getPendingCount());
+            }
+        }
+    }
+
+    private MaturityScheduler open() throws IOException {
+        return new MaturityScheduler(networkParameters, broadcaster, journal, null);
+    }
+
+    private Transaction redemption(long lockTime) {
+        Transaction transaction = new Transaction(networkParameters);
+        transaction.addInput(Sha256Hash.of(new ECKey().getPubKey()), 0, new ScriptBuilder().build());
+        transaction.getInput(0).setSequenceNumber(0);
+        transaction.addOutput(Coin.CENT, new ECKey().toAddress(networkParameters));
+        transaction.setLockTime(lockTime);
+        return transaction;
+    }
+}
@@ -0,0 +1,32 @@
+package hr.fer.rgkk.transactions;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.script.Script;
+
+/**
+ * Builds spends the same way {@code ScriptTest.testTransaction} does, but without a wallet or a node:
+ * the funding transaction is never completed or broadcast.
+ */
+final class OfflineSpends {
+
+    private OfflineSpends() {
+    }
+
+    static SpendJob spend(ScriptTransaction scriptTransaction, NetworkParameters parameters) {
+        final Script inputScript = scriptTransaction.createLockingScript();
+        Transaction transaction = new Transaction(parameters);
+        transaction.addOutput(Coin.CENT, inputScript);
+        Transaction redemptionTransaction = scriptTransaction.createUnsignedRedemptionTransaction(
+                transaction.getOutput(0), new ECKey().toAddress(parameters)
+        );
+
+        redemptionTransaction.getInput(0).setSequenceNumber(scriptTransaction.getNSequence());
+        redemptionTransaction.setLockTime(scriptTransaction.getNLockTime());
+
+        Script redeemScript = scriptTransaction.createUnlockingScript(redemptionTransaction);
+        return scriptTransaction.createSpendJob(inputScript, redeemScript, redemptionTransaction);
+    }
+}
@@ -0,0 +1,144 @@
+package hr.fer.rgkk.transactions;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.PeerAddress;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.RegTestParams;
+import org.bitcoinj.script.ScriptBuilder;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+public class PeerBroadcasterTest {
+
+    private final NetworkParameters networkParameters = RegTestParams.get();
+    private Path directory;
+    private RegTestPeer[] peers;
+    private WalletKit walletKit;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("broadcaster");
+        try (RegTestPeer origin = new RegTestPeer(networkParameters)) {
+            for (int i = 0; i < 5; i++) {
+                origin.mineBlock();
+            }
+            peers = new RegTestPeer[]{origin.fork(), origin.fork(), origin.fork()};
+        }
+        for (RegTestPeer peer : peers) {
+            // Keep the forks on the same chain
+            peer.setAutoMine(false);
+        }
+        walletKit = new WalletKit(networkParameters, directory.toFile(), "test", new PeerSet(peers));
+        walletKit.getPeerGroup().waitForPeers(peers.length).get(10, TimeUnit.SECONDS);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        walletKit.close();
+        for (RegTestPeer peer : peers) {
+            peer.close();
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    public void testSlowPeerIsLeftOut() throws Exception {
+        RegTestPeer slow = peers[2];
+        slow.setDelay(300);
+        try (PeerBroadcaster broadcaster = new PeerBroadcaster(walletKit.getPeerGroup(), 2, 5000)) {
+            Transaction last = null;
+            for (int i = 0; i < 6; i++) {
+                last = transaction();
+                broadcaster.broadcast(last).get(10, TimeUnit.SECONDS);
+            }
+            Assert.assertTrue(peers[0].getMemoryPool().contains(last.getHash()));
+            Assert.assertTrue(peers[1].getMemoryPool().contains(last.getHash()));
+            Assert.assertFalse(slow.getMemoryPool().contains(last.getHash()));
+
+            Map<Integer, PeerBroadcaster.PeerStats.Snapshot> stats = statsByPort(broadcaster);
+            Assert.assertEquals(3, stats.size());
+            PeerBroadcaster.PeerStats.Snapshot slowStats = stats.get(port(slow));
+            Assert.assertTrue(slowStats.getBroadcasts() <= 2);
+            if (slowStats.getAcknowledgements() > 0) {
+                Assert.assertTrue(slowStats.getAcknowledgementNanos() >= TimeUnit.MILLISECONDS.toNanos(300));
+            }
+            Assert.assertTrue(stats.get(port(peers[0])).getAcknowledgementNanos()
+                    < TimeUnit.MILLISECONDS.toNanos(300));
+        }
+    }
+
+    @Test
+    public void testFailsOverWhenPeersStopAnswering() throws Exception {
+        RegTestPeer survivor = peers[2];
+        peers[0].setDelay(5000);
+        peers[1].setDelay(5000);
+        try (PeerBroadcaster broadcaster = new PeerBroadcaster(walletKit.getPeerGroup(), 2, 500)) {
+            // Whichever two go first, both silent peers end up tried and the survivor acknowledges
+            Transaction transaction = transaction();
+            broadcaster.broadcast(transaction).get(10, TimeUnit.SECONDS);
+            Assert.assertTrue(survivor.getMemoryPool().contains(transaction.getHash()));
+
+            Map<Integer, PeerBroadcaster.PeerStats.Snapshot> stats = statsByPort(broadcaster);
+            for (RegTestPeer peer : peers) {
+                PeerBroadcaster.PeerStats.Snapshot peerStats = stats.get(port(peer));
+                Assert.assertEquals(1, peerStats.getBroadcasts());
+                Assert.assertEquals(peer == survivor ? 0 : 1, peerStats.getFailures());
+            }
+        }
+    }
+
+    @Test
+    public void testCloseFailsOutstandingBroadcasts() throws Exception {
+        for (RegTestPeer peer : peers) {
+            peer.setDelay(5000);
+        }
+        PeerBroadcaster broadcaster = new PeerBroadcaster(walletKit.getPeerGroup(), 2, 10000);
+        ListenableFuture<List<Transaction>> broadcast = broadcaster.broadcast(transaction());
+        broadcaster.close();
+        try {
+            broadcast.get(1, TimeUnit.SECONDS);
+            Assert.fail("Broadcast completed after close");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        Assert.assertTrue(broadcaster.broadcast(transaction()).isDone());
+    }
+
+    private Transaction transaction() {
+        Transaction transaction = new Transaction(networkParameters);
+        transaction.addInput(Sha256Hash.of(new ECKey().getPubKey()), 0, new ScriptBuilder().build());
+        transaction.addOutput(Coin.CENT, new ECKey().toAddress(networkParameters));
+        return transaction;
+    }
+
+    private static Map<Integer, PeerBroadcaster.PeerStats.Snapshot> statsByPort(PeerBroadcaster broadcaster) {
+        Map<Integer, PeerBroadcaster.PeerStats.Snapshot> stats = new HashMap<>();
+        for (Map.Entry<PeerAddress, PeerBroadcaster.PeerStats.Snapshot> entry : broadcaster.getStats().entrySet()) {
+            stats.put(entry.getKey().getPort(), entry.getValue());
+        }
+        return stats;
+    }
+
+    private static int port(RegTestPeer peer) {
+        return peer.getPeerAddresses()[0].getPort();
+    }
+}
@@ -0,0 +1,121 @@
+package hr.fer.rgkk.transactions;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.RegTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+public class ScriptIndexTest {
+
+    private final NetworkParameters networkParameters = RegTestParams.get();
+    private File indexFile;
+
+    @Before
+    public void setUp() throws IOException {
+        indexFile = Files.createTempFile("scripts", ".index").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        indexFile.delete();
+    }
+
+    @Test
+    public void testLookupSurvivesRestartUntilSpent() throws Exception {
+        Script locking = ScriptBuilder.createOutputScript(new ECKey());
+        Transaction funding = funding(locking, Coin.CENT);
+
+        try (ScriptIndex index = new ScriptIndex(networkParameters, indexFile)) {
+            index.record(funding);
+            index.record(funding);
+            Assert.assertEquals(funding.getOutput(1).getOutPointFor(), index.lookup(locking).getOutPoint());
+            index.sync();
+            Assert.assertTrue(indexFile.length() > 0);
+        }
+        long recorded = indexFile.length();
+
+        try (ScriptIndex index = new ScriptIndex(networkParameters, indexFile)) {
+            Assert.assertEquals(recorded, indexFile.length());
+            ScriptIndex.FundedOutput funded = index.lookup(locking);
+            Assert.assertEquals(funding.getOutput(1).getOutPointFor(), funded.getOutPoint());
+            Assert.assertEquals(Coin.CENT, funded.getValue());
+
+            Transaction redemption = new Transaction(networkParameters);
+            redemption.addInput(funding.getOutput(1));
+            redemption.addOutput(Coin.MILLICOIN, new ECKey().toAddress(networkParameters));
+            index.record(redemption);
+            Assert.assertNull(index.lookup(locking));
+        }
+
+        try (ScriptIndex index = new ScriptIndex(networkParameters, indexFile)) {
+            Assert.assertNull(index.lookup(locking));
+        }
+    }
+
+    @Test
+    public void testCompactionDropsSpentOutputs() throws IOException {
+        Script kept = ScriptBuilder.createOutputScript(new ECKey());
+        try (ScriptIndex index = new ScriptIndex(networkParameters, indexFile)) {
+            index.record(funding(kept, Coin.CENT));
+            for (int i = 0; i < 10; i++) {
+                Transaction funding = funding(ScriptBuilder.createOutputScript(new ECKey()), Coin.CENT);
+                Transaction redemption = new Transaction(networkParameters);
+                redemption.addInput(funding.getOutput(0));
+                redemption.addInput(funding.getOutput(1));
+                index.record(funding);
+                index.record(redemption);
+            }
+        }
+        long before = indexFile.length();
+
+        try (ScriptIndex index = new ScriptIndex(networkParameters, indexFile)) {
+            Assert.assertTrue(indexFile.length() < before);
+            // The change output of the first funding and the kept script
+            Assert.assertEquals(2, index.size());
+            Assert.assertEquals(Coin.CENT, index.lookup(kept).getValue());
+        }
+    }
+
+    @Test
+    public void testRedeemsCommittedFundingAfterRestart() throws Exception {
+        try (WalletFixture fixture = WalletFixture.start(networkParameters);
+             WalletFixture.Copy wallet = fixture.restore()) {
+            PayToPubKeyHash contract = new PayToPubKeyHash(wallet.getWalletKit(), networkParameters);
+            Script locking = contract.createLockingScript();
+
+            try (ScriptIndex index = new ScriptIndex(networkParameters, indexFile)) {
+                index.watch(contract.getWallet());
+                contract.sendTransaction(contract.createOutgoingTransaction(locking, Coin.CENT));
+                Assert.assertNotNull(index.lookup(locking));
+            }
+
+            try (ScriptIndex index = new ScriptIndex(networkParameters, indexFile)) {
+                Transaction redemption = contract.createUnsignedRedemptionTransaction(
+                        index, locking, contract.getReceiveAddress()
+                );
+                Script unlocking = contract.createUnlockingScript(redemption);
+                contract.testScript(locking, unlocking, redemption);
+            }
+        }
+    }
+
+    private Transaction funding(Script locking, Coin amount) {
+        Transaction transaction = new Transaction(networkParameters);
+        transaction.addInput(Sha256Hash.of(new ECKey().getPubKey()), 0, new ScriptBuilder().build());
+        transaction.addOutput(Coin.MILLICOIN, new ECKey().toAddress(networkParameters));
+        transaction.addOutput(amount, locking);
+        return transaction;
+    }
+}
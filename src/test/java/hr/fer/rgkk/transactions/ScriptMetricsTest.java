@@ -0,0 +1,50 @@
+package hr.fer.rgkk.transactions;
+
+import hr.fer.rgkk.transactions.ScriptMetrics.Phase;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.ScriptException;
+import org.bitcoinj.params.RegTestParams;
+import org.bitcoinj.script.Script;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+public class ScriptMetricsTest {
+
+    private final NetworkParameters networkParameters = RegTestParams.get();
+
+    @BeforeClass
+    public static void enable() {
+        ScriptMetrics.setEnabled(true);
+    }
+
+    @AfterClass
+    public static void disable() {
+        ScriptMetrics.setEnabled(false);
+    }
+
+    @Test
+    public void testRecordsPhasesPerScriptType() throws Exception {
+        PayToPubKeyHash payToPubKeyHash = new PayToPubKeyHash(null, networkParameters);
+        PhaseMetrics.Snapshot before = ScriptMetrics.snapshot().get("PayToPubKeyHash").get(Phase.TEST_SCRIPT);
+        SpendJob job = OfflineSpends.spend(payToPubKeyHash, networkParameters);
+        payToPubKeyHash.testScript(job.getLockingScript(), job.getUnlockingScript(), job.getTransaction());
+        try {
+            payToPubKeyHash.testScript(job.getLockingScript(), new Script(new byte[0]), job.getTransaction());
+            Assert.fail("Empty unlocking script should fail");
+        } catch (ScriptException expected) {
+        }
+
+        PhaseMetrics.Snapshot after = ScriptMetrics.snapshot().get("PayToPubKeyHash").get(Phase.TEST_SCRIPT);
+        Assert.assertEquals(2, after.getLatencies().getCount() - before.getLatencies().getCount());
+        Assert.assertEquals(1, after.getErrors() - before.getErrors());
+        Assert.assertTrue(ScriptMetrics.snapshot().get("PayToPubKeyHash").get(Phase.SIGN).getLatencies().getCount() > 0);
+
+        ObjectName name = new ObjectName("hr.fer.rgkk.transactions:type=ScriptMetrics,script=PayToPubKeyHash,phase=SIGN");
+        Assert.assertTrue((Long) ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Count") > 0);
+    }
+}
@@ -0,0 +1,52 @@
+package hr.fer.rgkk.transactions;
+
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.bitcoinj.script.ScriptOpCodes.*;
+
+public class ScriptTemplateTest {
+
+    private static Script shape(byte[] first, byte[] second) {
+        return new ScriptBuilder()
+                .op(OP_HASH160)
+                .data(first)
+                .op(OP_EQUALVERIFY)
+                .number(1412121600)
+                .data(second)
+                .data(first)
+                .op(OP_2)
+                .op(OP_CHECKMULTISIG)
+                .build();
+    }
+
+    @Test
+    public void testTemplateMatchesBuilder() {
+        ScriptTemplate.Family family = new ScriptTemplate.Family(slots -> shape(slots[0], slots[1]));
+        Random random = new Random(42);
+        // 80 bytes is pushed with OP_PUSHDATA1, the rest directly
+        int[][] lengths = {{16, 16}, {17, 33}, {33, 65}, {20, 80}};
+        for (int[] length : lengths) {
+            for (int i = 0; i < 10; i++) {
+                byte[] first = new byte[length[0]];
+                byte[] second = new byte[length[1]];
+                random.nextBytes(first);
+                random.nextBytes(second);
+                Assert.assertArrayEquals(
+                        shape(first, second).getProgram(),
+                        family.instantiate(first, second).getProgram()
+                );
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrongSlotLength() {
+        ScriptTemplate template = ScriptTemplate.compile(slots -> shape(slots[0], slots[1]), 16, 16);
+        template.instantiate(new byte[16], new byte[17]);
+    }
+}
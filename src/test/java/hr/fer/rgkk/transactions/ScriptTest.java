@@ -6,25 +6,64 @@ import hr.fer.rgkk.transactions.TimeLock.ScriptSigType;
 import org.bitcoinj.core.*;
 import org.bitcoinj.params.RegTestParams;
 import org.bitcoinj.script.Script;
+import org.junit.After;
+import org.junit.AfterClass;
 import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.time.Instant;
+import java.util.concurrent.TimeUnit;
 
 public class ScriptTest {
 
+    private static WalletFixture fixture;
+
+    private WalletFixture.Copy wallet;
     private WalletKit walletKit;
     private NetworkParameters networkParameters;
+    private File indexFile;
+    private ScriptIndex index;
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ScriptTest.class);
 
-    public ScriptTest() {
-        String walletName = "wallet";
+    @BeforeClass
+    public static void startFixture() throws Exception {
+        fixture = WalletFixture.start(RegTestParams.get());
+    }
+
+    @AfterClass
+    public static void stopFixture() throws IOException {
+        if (fixture != null) {
+            fixture.close();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
         this.networkParameters = RegTestParams.get();
-        this.walletKit = new WalletKit(networkParameters, new File(walletName), "password");
+        this.wallet = fixture.restore();
+        this.walletKit = wallet.getWalletKit();
+        this.indexFile = Files.createTempFile("scripts", ".index").toFile();
+        this.index = new ScriptIndex(networkParameters, indexFile);
+        index.watch(walletKit.getWallet());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (index != null) {
+            index.close();
+            indexFile.delete();
+        }
+        if (wallet != null) {
+            wallet.close();
+        }
     }
 
     @Test
@@ -35,10 +74,12 @@ public class ScriptTest {
         walletKit.close();
     }
 
-    private void testTransaction(ScriptTransaction scriptTransaction) throws InsufficientMoneyException, InterruptedException {
+    private void testTransaction(ScriptTransaction scriptTransaction) throws Exception {
         final Script inputScript = scriptTransaction.createLockingScript();
         Transaction transaction = scriptTransaction.createOutgoingTransaction(inputScript, Coin.CENT);
-        TransactionOutput relevantOutput = transaction.getOutputs().stream().filter(to -> to.getScriptPubKey().equals(inputScript)).findAny().get();
+        // Not committed until it's sent together with the redemption, so it's indexed by hand
+        index.record(transaction);
+        TransactionOutput relevantOutput = transaction.getOutput(index.lookup(inputScript).getOutPoint().getIndex());
         Transaction redemptionTransaction = scriptTransaction.createUnsignedRedemptionTransaction(relevantOutput, scriptTransaction.getReceiveAddress());
 
         redemptionTransaction.getInput(0).setSequenceNumber(scriptTransaction.getNSequence());
@@ -46,18 +87,16 @@ public class ScriptTest {
 
         Script redeemScript = scriptTransaction.createUnlockingScript(redemptionTransaction);
 
-        LOGGER.info("Transaction:\n{}", transaction);
-        LOGGER.info("Transaction SigOps: {}", transaction.getSigOpCount());
-        LOGGER.info("Redemption transaction:\n{}", redemptionTransaction);
-        LOGGER.info("Redemption transaction SigOps: {}", redemptionTransaction.getSigOpCount());
+        // Sizes and sigops go to the EventJournal when it's enabled, the text only at debug
+        LOGGER.debug("Transaction:\n{}", transaction);
+        LOGGER.debug("Redemption transaction:\n{}", redemptionTransaction);
 
         scriptTransaction.testScript(inputScript, redeemScript, redemptionTransaction);
         redemptionTransaction.getInput(0).setScriptSig(redeemScript);
 
-        scriptTransaction.sendTransaction(transaction);
-        // To prevent race condition...
-        Thread.sleep(1000);
-        scriptTransaction.sendTransaction(redemptionTransaction);
+        scriptTransaction.sendPackage(transaction, redemptionTransaction).get(30, TimeUnit.SECONDS);
+        // Committing the redemption spent it
+        Assert.assertNull(index.lookup(inputScript));
     }
 
     //////////////////////
@@ -0,0 +1,42 @@
+package hr.fer.rgkk.transactions;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.RegTestParams;
+import org.bitcoinj.script.Script;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SighashCacheTest {
+
+    private final NetworkParameters networkParameters = RegTestParams.get();
+
+    @Test
+    public void testDigestFollowsTransactionChanges() {
+        PayToPubKeyHash payToPubKeyHash = new PayToPubKeyHash(null, networkParameters);
+        Script inputScript = payToPubKeyHash.createLockingScript();
+        Transaction transaction = new Transaction(networkParameters);
+        transaction.addOutput(Coin.CENT, inputScript);
+        Transaction redemptionTransaction = payToPubKeyHash.createUnsignedRedemptionTransaction(
+                transaction.getOutput(0), new ECKey().toAddress(networkParameters)
+        );
+        byte[] scriptCode = inputScript.getProgram();
+
+        SighashCache cache = new SighashCache(4);
+        Sha256Hash first = cache.hashForSignature(redemptionTransaction, 0, scriptCode, Transaction.SigHash.ALL, false);
+        Assert.assertSame(first, cache.hashForSignature(redemptionTransaction, 0, scriptCode, Transaction.SigHash.ALL, false));
+        Assert.assertEquals(
+                redemptionTransaction.hashForSignature(0, scriptCode, Transaction.SigHash.ALL, false), first
+        );
+
+        redemptionTransaction.setLockTime(1);
+        Sha256Hash changed = cache.hashForSignature(redemptionTransaction, 0, scriptCode, Transaction.SigHash.ALL, false);
+        Assert.assertNotEquals(first, changed);
+        Assert.assertEquals(
+                redemptionTransaction.hashForSignature(0, scriptCode, Transaction.SigHash.ALL, false), changed
+        );
+    }
+}
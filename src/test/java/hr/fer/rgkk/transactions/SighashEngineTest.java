@@ -0,0 +1,93 @@
+package hr.fer.rgkk.transactions;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.crypto.TransactionSignature;
+import org.bitcoinj.params.RegTestParams;
+import org.bitcoinj.script.ScriptBuilder;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.bitcoinj.script.ScriptOpCodes.OP_CHECKSIG;
+import static org.bitcoinj.script.ScriptOpCodes.OP_CODESEPARATOR;
+
+public class SighashEngineTest {
+
+    private final NetworkParameters networkParameters = RegTestParams.get();
+
+    @Test
+    public void testDigestsMatchBitcoinj() {
+        Transaction transaction = new Transaction(networkParameters);
+        for (int i = 0; i < 300; i++) {
+            transaction.addInput(Sha256Hash.of(new byte[]{(byte) i}), i, new ScriptBuilder().build());
+            transaction.getInput(i).setSequenceNumber(i % 2 == 0 ? 0xFFFFFFFFL : i);
+        }
+        transaction.addOutput(Coin.CENT, new ECKey().toAddress(networkParameters));
+        transaction.addOutput(Coin.COIN, new ECKey().toAddress(networkParameters));
+        transaction.setLockTime(1234);
+        byte[] scriptCode = new ScriptBuilder()
+                .op(OP_CODESEPARATOR)
+                .data(new ECKey().getPubKey())
+                .op(OP_CHECKSIG)
+                .build()
+                .getProgram();
+
+        SighashEngine engine = new SighashEngine(transaction);
+        for (int i = 0; i < transaction.getInputs().size(); i++) {
+            for (Transaction.SigHash type : new Transaction.SigHash[]{
+                    Transaction.SigHash.ALL, Transaction.SigHash.NONE, Transaction.SigHash.SINGLE
+            }) {
+                for (boolean anyoneCanPay : new boolean[]{false, true}) {
+                    byte sigHashType = (byte) TransactionSignature.calcSigHashValue(type, anyoneCanPay);
+                    Assert.assertEquals(
+                            "Input " + i + " " + type + (anyoneCanPay ? "|ANYONECANPAY" : ""),
+                            transaction.hashForSignature(i, scriptCode, sigHashType),
+                            engine.hashForSignature(i, scriptCode, sigHashType)
+                    );
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testEngineIsSharedUntilTransactionChanges() {
+        Transaction transaction = new Transaction(networkParameters);
+        transaction.addInput(Sha256Hash.of(new byte[]{1}), 0, new ScriptBuilder().build());
+        transaction.addOutput(Coin.CENT, new ECKey().toAddress(networkParameters));
+
+        SighashEngine engine = SighashEngine.of(transaction);
+        Assert.assertSame(engine, SighashEngine.of(transaction));
+        transaction.setLockTime(1);
+        Assert.assertNotSame(engine, SighashEngine.of(transaction));
+    }
+
+    @Test
+    public void testPinnedEnginesOutliveTheCache() {
+        List<Transaction> transactions = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            Transaction transaction = new Transaction(networkParameters);
+            transaction.addInput(Sha256Hash.of(new byte[]{(byte) i}), 0, new ScriptBuilder().build());
+            transaction.addOutput(Coin.CENT, new ECKey().toAddress(networkParameters));
+            transactions.add(transaction);
+        }
+        List<SighashEngine> engines = new ArrayList<>();
+        SighashEngine.Pin pin = SighashEngine.pin(transactions);
+        try {
+            for (Transaction transaction : transactions) {
+                engines.add(SighashEngine.of(transaction));
+            }
+            for (int i = 0; i < transactions.size(); i++) {
+                Assert.assertSame(engines.get(i), SighashEngine.of(transactions.get(i)));
+            }
+        } finally {
+            pin.close();
+        }
+        Assert.assertNotSame(engines.get(0), SighashEngine.of(transactions.get(0)));
+    }
+}
@@ -0,0 +1,66 @@
+package hr.fer.rgkk.transactions;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.crypto.TransactionSignature;
+import org.bitcoinj.params.RegTestParams;
+import org.bitcoinj.script.Script;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SignatureCacheTest {
+
+    @Test
+    public void testValidSignaturesAreVerifiedOnce() {
+        SignatureCache cache = new SignatureCache(64);
+        ECKey key = new ECKey();
+        Sha256Hash hash = Sha256Hash.of(new byte[]{1});
+        ECKey.ECDSASignature signature = key.sign(hash);
+
+        Assert.assertTrue(cache.verify(hash, signature, key.getPubKey()));
+        Assert.assertEquals(1, cache.getMisses());
+        Assert.assertTrue(cache.verify(hash, signature, key.getPubKey()));
+        Assert.assertEquals(1, cache.getHits());
+
+        // Same signature under another key or hash is a different entry, and doesn't verify
+        Assert.assertFalse(cache.verify(hash, signature, new ECKey().getPubKey()));
+        Assert.assertFalse(cache.verify(Sha256Hash.of(new byte[]{2}), signature, key.getPubKey()));
+        Assert.assertFalse(cache.contains(Sha256Hash.of(new byte[]{2}), signature, key.getPubKey()));
+        Assert.assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void testMemoryIsFixed() {
+        SignatureCache cache = new SignatureCache(100);
+        Assert.assertEquals(128, cache.getCapacity());
+        ECKey key = new ECKey();
+        ECKey.ECDSASignature signature = key.sign(Sha256Hash.of(new byte[0]));
+        for (int i = 0; i < 1000; i++) {
+            cache.add(Sha256Hash.of(new byte[]{(byte) i, (byte) (i >> 8)}), signature, key.getPubKey());
+        }
+        Assert.assertEquals(128, cache.getCapacity());
+        // The latest signature always survives, it is the last to be replaced in its bucket
+        Assert.assertTrue(cache.contains(Sha256Hash.of(new byte[]{(byte) 999, (byte) (999 >> 8)}), signature, key.getPubKey()));
+    }
+
+    @Test
+    public void testSignaturesWeMakeAreCached() {
+        NetworkParameters parameters = RegTestParams.get();
+        PayToPubKeyHash contract = new PayToPubKeyHash(null, parameters);
+        Script lockingScript = contract.createLockingScript();
+        Transaction funding = new Transaction(parameters);
+        funding.addOutput(Coin.CENT, lockingScript);
+        Transaction redemption = contract.createUnsignedRedemptionTransaction(
+                funding.getOutput(0), new ECKey().toAddress(parameters)
+        );
+        ECKey key = new ECKey();
+
+        TransactionSignature signature = contract.sign(redemption, key);
+
+        Sha256Hash hash = redemption.hashForSignature(0, lockingScript.getProgram(), Transaction.SigHash.ALL, false);
+        Assert.assertTrue(SignatureCache.getDefault().contains(hash, signature, key.getPubKey()));
+    }
+}
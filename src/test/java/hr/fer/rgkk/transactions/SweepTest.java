@@ -0,0 +1,128 @@
+package hr.fer.rgkk.transactions;
+
+import hr.fer.rgkk.transactions.CoinToss.CoinTossChoice;
+import hr.fer.rgkk.transactions.CoinToss.WinningPlayer;
+import hr.fer.rgkk.transactions.TimeLock.ScriptSigType;
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.params.RegTestParams;
+import org.bitcoinj.script.Script;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class SweepTest {
+
+    private final NetworkParameters networkParameters = RegTestParams.get();
+    private final Address destination = new ECKey().toAddress(networkParameters);
+
+    @Test
+    public void testMixedOutputsSweptIntoOneTransaction() {
+        Sweep sweep = new Sweep(networkParameters);
+        fund(sweep, 30);
+
+        List<Transaction> transactions = sweep.build(destination);
+
+        Assert.assertEquals(1, transactions.size());
+        Assert.assertEquals(30, transactions.get(0).getInputs().size());
+        verify(transactions);
+    }
+
+    @Test
+    public void testLimitsSplitTheSweep() {
+        // Every time lock output counts 41 sigops, so at most two fit in a transaction
+        Sweep sweep = new Sweep(networkParameters, 1000, 100);
+        fund(sweep, 30);
+
+        List<Transaction> transactions = sweep.build(destination);
+
+        int inputs = 0;
+        for (Transaction transaction : transactions) {
+            Assert.assertTrue(transaction.unsafeBitcoinSerialize().length <= 1000);
+            int sigOps = 0;
+            for (TransactionInput input : transaction.getInputs()) {
+                sigOps += Script.getSigOpCount(input.getConnectedOutput().getScriptBytes());
+            }
+            Assert.assertTrue(sigOps <= 100);
+            inputs += transaction.getInputs().size();
+        }
+        Assert.assertTrue(transactions.size() > 1);
+        Assert.assertEquals(30, inputs);
+        verify(transactions);
+    }
+
+    @Test
+    public void testRejectsMixedLockKinds() {
+        Transaction funding = new Transaction(networkParameters);
+        TimeLock byHeight = new TimeLock(null, networkParameters, ScriptSigType.ALICE_AND_EVE);
+        byHeight.setNLockTime(100);
+        TimeLock byTime = new TimeLock(null, networkParameters, ScriptSigType.BOB_AND_EVE);
+        byTime.setNLockTime(Transaction.LOCKTIME_THRESHOLD + 100);
+        ScriptTransaction unlocked = new PayToPubKeyHash(null, networkParameters);
+        for (ScriptTransaction contract : new ScriptTransaction[]{byHeight, byTime, unlocked}) {
+            funding.addOutput(Coin.CENT, contract.createLockingScript());
+        }
+
+        Sweep sweep = new Sweep(networkParameters)
+                .add(unlocked, funding.getOutput(2))
+                .add(byHeight, funding.getOutput(0));
+        try {
+            sweep.add(byTime, funding.getOutput(1));
+            Assert.fail("Mixed a height lock with a time lock");
+        } catch (IllegalArgumentException expected) {
+            Assert.assertEquals(2, sweep.size());
+        }
+    }
+
+    /**
+     * Locks a cent to each of {@code count} contracts, cycling through the script types.
+     */
+    private void fund(Sweep sweep, int count) {
+        Transaction funding = new Transaction(networkParameters);
+        List<ScriptTransaction> contracts = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ScriptTransaction contract;
+            switch (i % 3) {
+                case 0:
+                    contract = new PayToPubKeyHash(null, networkParameters);
+                    break;
+                case 1:
+                    contract = new TimeLock(null, networkParameters, ScriptSigType.ALICE_AND_BOB);
+                    break;
+                default:
+                    contract = CoinToss.of(
+                            null, networkParameters, CoinTossChoice.ZERO, CoinTossChoice.ONE, WinningPlayer.HEAD
+                    );
+            }
+            funding.addOutput(Coin.CENT, contract.createLockingScript());
+            contracts.add(contract);
+        }
+        for (int i = 0; i < count; i++) {
+            sweep.add(contracts.get(i), funding.getOutput(i));
+        }
+    }
+
+    private void verify(List<Transaction> transactions) {
+        List<SpendJob> jobs = new ArrayList<>();
+        for (Transaction transaction : transactions) {
+            for (int i = 0; i < transaction.getInputs().size(); i++) {
+                TransactionInput input = transaction.getInput(i);
+                jobs.add(new SpendJob(
+                        input.getConnectedOutput().getScriptPubKey(), input.getScriptSig(), transaction,
+                        i, ScriptTransaction.VERIFY_FLAGS
+                ));
+            }
+        }
+        try (BatchVerifier verifier = new BatchVerifier(4)) {
+            for (VerificationResult result : verifier.verify(jobs)) {
+                Assert.assertTrue(result.toString(), result.isValid());
+            }
+        }
+    }
+}
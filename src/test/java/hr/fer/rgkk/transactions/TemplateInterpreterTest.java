@@ -0,0 +1,205 @@
+package hr.fer.rgkk.transactions;
+
+import hr.fer.rgkk.transactions.CoinToss.CoinTossChoice;
+import hr.fer.rgkk.transactions.CoinToss.WinningPlayer;
+import hr.fer.rgkk.transactions.TemplateInterpreter.Shape;
+import hr.fer.rgkk.transactions.TimeLock.ScriptSigType;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.crypto.TransactionSignature;
+import org.bitcoinj.params.RegTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.script.ScriptChunk;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.bitcoinj.script.ScriptOpCodes.*;
+
+/**
+ * Differential test: the specialized interpreter must reach the same verdict as bitcoinj for valid spends
+ * and for every mutation of their unlocking scripts.
+ */
+public class TemplateInterpreterTest {
+
+    private final NetworkParameters networkParameters = RegTestParams.get();
+
+    private final Random random = new Random(7);
+
+    @SuppressWarnings("unchecked")
+    private final List<Set<Script.VerifyFlag>> flagSets = java.util.Arrays.<Set<Script.VerifyFlag>>asList(
+            ScriptTransaction.VERIFY_FLAGS,
+            EnumSet.of(Script.VerifyFlag.P2SH, Script.VerifyFlag.STRICTENC, Script.VerifyFlag.NULLDUMMY),
+            EnumSet.of(Script.VerifyFlag.P2SH, Script.VerifyFlag.CHECKLOCKTIMEVERIFY, Script.VerifyFlag.LOW_S),
+            EnumSet.of(Script.VerifyFlag.DISCOURAGE_UPGRADABLE_NOPS)
+    );
+
+    private List<SpendJob> spends() {
+        List<SpendJob> spends = new ArrayList<>();
+        spends.add(payToPubKey());
+        spends.add(OfflineSpends.spend(new PayToPubKeyHash(null, networkParameters), networkParameters));
+        for (ScriptSigType type : ScriptSigType.values()) {
+            TimeLock timeLock = new TimeLock(null, networkParameters, type);
+            if (type != ScriptSigType.ALICE_AND_BOB) {
+                timeLock.setNSequence(4294967294L);
+                timeLock.setNLockTime(Instant.parse("2014-10-01T02:00:00Z").getEpochSecond());
+            }
+            spends.add(OfflineSpends.spend(timeLock, networkParameters));
+        }
+        for (CoinTossChoice alice : CoinTossChoice.values()) {
+            for (CoinTossChoice bob : CoinTossChoice.values()) {
+                for (WinningPlayer winner : WinningPlayer.values()) {
+                    spends.add(OfflineSpends.spend(
+                            CoinToss.of(null, networkParameters, alice, bob, winner), networkParameters
+                    ));
+                }
+            }
+        }
+        return spends;
+    }
+
+    // PayToPubKey takes its key from the wallet, so this one is built by hand
+    private SpendJob payToPubKey() {
+        ECKey key = new ECKey();
+        Script inputScript = new ScriptBuilder().data(key.getPubKey()).op(OP_CHECKSIG).build();
+        Transaction transaction = new Transaction(networkParameters);
+        transaction.addOutput(Coin.CENT, inputScript);
+        Transaction redemptionTransaction = new Transaction(networkParameters);
+        redemptionTransaction.addOutput(Coin.MILLICOIN, new ECKey().toAddress(networkParameters));
+        redemptionTransaction.addInput(transaction.getOutput(0));
+        TransactionSignature signature = redemptionTransaction.calculateSignature(
+                0, key, inputScript, Transaction.SigHash.ALL, false
+        );
+        Script redeemScript = new ScriptBuilder().data(signature.encodeToBitcoin()).build();
+        return new SpendJob(inputScript, redeemScript, redemptionTransaction);
+    }
+
+    private List<Script> mutations(Script unlockingScript) {
+        List<ScriptChunk> chunks = unlockingScript.getChunks();
+        List<Script> mutations = new ArrayList<>();
+        mutations.add(unlockingScript);
+        for (int i = 0; i < chunks.size(); i++) {
+            List<ScriptChunk> removed = new ArrayList<>(chunks);
+            removed.remove(i);
+            mutations.add(build(removed));
+
+            if (chunks.get(i).data != null && chunks.get(i).data.length > 0) {
+                byte[] flipped = chunks.get(i).data.clone();
+                flipped[random.nextInt(flipped.length)] ^= 1 << random.nextInt(8);
+                List<ScriptChunk> changed = new ArrayList<>(chunks);
+                changed.set(i, new ScriptBuilder().data(flipped).build().getChunks().get(0));
+                mutations.add(build(changed));
+            }
+            for (int opcode : new int[]{OP_0, OP_1, OP_1NEGATE}) {
+                List<ScriptChunk> replaced = new ArrayList<>(chunks);
+                replaced.set(i, new ScriptChunk(opcode, null));
+                mutations.add(build(replaced));
+            }
+            if (i + 1 < chunks.size()) {
+                List<ScriptChunk> swapped = new ArrayList<>(chunks);
+                swapped.set(i, chunks.get(i + 1));
+                swapped.set(i + 1, chunks.get(i));
+                mutations.add(build(swapped));
+            }
+        }
+        List<ScriptChunk> extended = new ArrayList<>(chunks);
+        extended.add(new ScriptChunk(OP_1, null));
+        mutations.add(build(extended));
+        List<ScriptChunk> prefixed = new ArrayList<>(chunks);
+        prefixed.add(0, new ScriptChunk(OP_NOP, null));
+        mutations.add(build(prefixed));
+        mutations.add(new ScriptBuilder().build());
+        return mutations;
+    }
+
+    private static Script build(List<ScriptChunk> chunks) {
+        ScriptBuilder builder = new ScriptBuilder();
+        for (ScriptChunk chunk : chunks) {
+            builder.addChunk(chunk);
+        }
+        return builder.build();
+    }
+
+    private static boolean bitcoinjVerdict(SpendJob job, Script unlockingScript, Set<Script.VerifyFlag> flags) {
+        try {
+            unlockingScript.correctlySpends(job.getTransaction(), job.getInputIndex(), job.getLockingScript(), flags);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private static boolean templateVerdict(SpendJob job, Script unlockingScript, Set<Script.VerifyFlag> flags) {
+        try {
+            TemplateInterpreter.correctlySpends(
+                    unlockingScript, job.getTransaction(), job.getInputIndex(), job.getLockingScript(), flags
+            );
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    @Test
+    public void testRecognizesContracts() {
+        List<SpendJob> spends = spends();
+        Assert.assertEquals(Shape.PAY_TO_PUB_KEY, TemplateInterpreter.recognize(spends.get(0).getLockingScript().getProgram()));
+        Assert.assertEquals(Shape.PAY_TO_PUB_KEY_HASH, TemplateInterpreter.recognize(spends.get(1).getLockingScript().getProgram()));
+        Assert.assertEquals(Shape.TIME_LOCK, TemplateInterpreter.recognize(spends.get(2).getLockingScript().getProgram()));
+        Assert.assertEquals(Shape.COIN_TOSS, TemplateInterpreter.recognize(spends.get(5).getLockingScript().getProgram()));
+        Script standard = ScriptBuilder.createOutputScript(new ECKey().toAddress(networkParameters));
+        Assert.assertNull(TemplateInterpreter.recognize(standard.getProgram()));
+    }
+
+    @Test
+    public void testSameVerdictsAsBitcoinj() {
+        int accepted = 0;
+        int rejected = 0;
+        for (SpendJob spend : spends()) {
+            for (Script unlockingScript : mutations(spend.getUnlockingScript())) {
+                for (Set<Script.VerifyFlag> flags : flagSets) {
+                    boolean expected = bitcoinjVerdict(spend, unlockingScript, flags);
+                    Assert.assertEquals(
+                            "Verdict differs for " + unlockingScript + " spending " + spend.getLockingScript()
+                                    + " with " + flags,
+                            expected, templateVerdict(spend, unlockingScript, flags)
+                    );
+                    if (expected) accepted++;
+                    else rejected++;
+                }
+            }
+        }
+        // Both outcomes have to be exercised for the comparison to mean anything
+        Assert.assertTrue(accepted > 0);
+        Assert.assertTrue(rejected > 0);
+    }
+
+    @Test
+    public void testHighSInMultiSigSameVerdictAsBitcoinj() {
+        SpendJob spend = OfflineSpends.spend(
+                new TimeLock(null, networkParameters, ScriptSigType.ALICE_AND_BOB), networkParameters
+        );
+        List<ScriptChunk> chunks = new ArrayList<>(spend.getUnlockingScript().getChunks());
+        // Alice's signature, negating S keeps it valid but makes it high
+        TransactionSignature signature = TransactionSignature.decodeFromBitcoin(chunks.get(1).data, true, true);
+        BigInteger highS = ECKey.CURVE.getN().subtract(signature.s);
+        TransactionSignature high = new TransactionSignature(signature.r, highS, signature.sighashFlags);
+        chunks.set(1, new ScriptBuilder().data(high.encodeToBitcoin()).build().getChunks().get(0));
+        Script unlockingScript = build(chunks);
+
+        Set<Script.VerifyFlag> flags = EnumSet.of(Script.VerifyFlag.P2SH, Script.VerifyFlag.LOW_S);
+        boolean expected = bitcoinjVerdict(spend, unlockingScript, flags);
+        Assert.assertTrue("bitcoinj doesn't enforce LOW_S in CHECKMULTISIG", expected);
+        Assert.assertEquals(expected, templateVerdict(spend, unlockingScript, flags));
+    }
+}
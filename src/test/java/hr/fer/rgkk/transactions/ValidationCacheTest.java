@@ -0,0 +1,60 @@
+package hr.fer.rgkk.transactions;
+
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.ScriptException;
+import org.bitcoinj.params.RegTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+public class ValidationCacheTest {
+
+    private final NetworkParameters networkParameters = RegTestParams.get();
+
+    @Test
+    public void testRepeatedSpendIsAnsweredFromCache() {
+        ValidationCache cache = new ValidationCache(16);
+        SpendJob job = OfflineSpends.spend(new PayToPubKeyHash(null, networkParameters), networkParameters);
+
+        verify(job, job.getUnlockingScript(), job.getVerifyFlags(), cache);
+        Assert.assertEquals(0, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+        verify(job, job.getUnlockingScript(), job.getVerifyFlags(), cache);
+        Assert.assertEquals(1, cache.getHits());
+
+        // Other flags are a different check
+        verify(job, job.getUnlockingScript(), EnumSet.noneOf(Script.VerifyFlag.class), cache);
+        Assert.assertEquals(2, cache.getMisses());
+        Assert.assertEquals(2, cache.getSize());
+    }
+
+    @Test
+    public void testFailuresAreNotCached() {
+        ValidationCache cache = new ValidationCache(16);
+        SpendJob job = OfflineSpends.spend(new PayToPubKeyHash(null, networkParameters), networkParameters);
+        Script empty = new ScriptBuilder().build();
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                verify(job, empty, job.getVerifyFlags(), cache);
+                Assert.fail("Empty unlocking script must not spend");
+            } catch (ScriptException expected) {
+                // Checked again every time
+            }
+        }
+        Assert.assertEquals(0, cache.getHits());
+        Assert.assertEquals(2, cache.getMisses());
+        Assert.assertEquals(0, cache.getSize());
+    }
+
+    private static void verify(SpendJob job, Script unlockingScript, Set<Script.VerifyFlag> flags,
+                               ValidationCache cache) {
+        TemplateInterpreter.correctlySpends(
+                unlockingScript, job.getTransaction(), job.getInputIndex(), job.getLockingScript(), flags, cache
+        );
+    }
+}
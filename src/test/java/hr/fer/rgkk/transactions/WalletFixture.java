@@ -0,0 +1,101 @@
+package hr.fer.rgkk.transactions;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.wallet.Wallet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * A wallet synced and funded once, then handed out to tests as independent copies.
+ * <p>
+ * Runs against an embedded {@link RegTestPeer} with a throwaway wallet, every copy also gets its own fork of
+ * the peer's chain. Set {@code -Drgkk.peer=host:port} to use a real node and the persistent "wallet" directory
+ * instead, copies then share that node.
+ */
+final class WalletFixture implements AutoCloseable {
+
+    private static final String WALLET_NAME = "wallet";
+
+    private final PeerBackend peers;
+    private final WalletKit walletKit;
+    // Null when the wallet is kept
+    private final Path walletDirectory;
+    private final WalletSnapshot snapshot;
+
+    private WalletFixture(PeerBackend peers, WalletKit walletKit, Path walletDirectory) throws Exception {
+        this.peers = peers;
+        this.walletKit = walletKit;
+        this.walletDirectory = walletDirectory;
+        this.snapshot = walletKit.snapshot();
+    }
+
+    static WalletFixture start(NetworkParameters parameters) throws Exception {
+        String remotePeer = System.getProperty("rgkk.peer");
+        if (remotePeer != null) {
+            String[] hostAndPort = remotePeer.split(":");
+            PeerBackend peers = new RemotePeer(hostAndPort[0], Integer.parseInt(hostAndPort[1]));
+            return new WalletFixture(peers, new WalletKit(parameters, new File(WALLET_NAME), "password", peers), null);
+        }
+        RegTestPeer peer = new RegTestPeer(parameters);
+        Path walletDirectory = Files.createTempDirectory(WALLET_NAME);
+        WalletKit walletKit = new WalletKit(parameters, walletDirectory.toFile(), "password", peer);
+        Wallet wallet = walletKit.getWallet();
+        peer.fund(wallet.currentReceiveAddress(), Coin.COIN);
+        wallet.getBalanceFuture(Coin.COIN, Wallet.BalanceType.AVAILABLE).get(10, TimeUnit.SECONDS);
+        return new WalletFixture(peer, walletKit, walletDirectory);
+    }
+
+    Copy restore() throws Exception {
+        if (peers instanceof RegTestPeer) {
+            RegTestPeer fork = ((RegTestPeer) peers).fork();
+            return new Copy(snapshot.restore(fork), fork);
+        }
+        return new Copy(snapshot.restore(peers), null);
+    }
+
+    @Override
+    public void close() throws IOException {
+        walletKit.close();
+        peers.close();
+        if (walletDirectory != null) {
+            try (Stream<Path> files = Files.walk(walletDirectory)) {
+                files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    static final class Copy implements AutoCloseable {
+
+        private final WalletKit walletKit;
+        // Null when the copy shares the fixture's peers
+        private final RegTestPeer peer;
+
+        private Copy(WalletKit walletKit, RegTestPeer peer) {
+            this.walletKit = walletKit;
+            this.peer = peer;
+        }
+
+        WalletKit getWalletKit() {
+            return walletKit;
+        }
+
+        RegTestPeer getPeer() {
+            return peer;
+        }
+
+        @Override
+        public void close() {
+            walletKit.close();
+            if (peer != null) {
+                peer.close();
+            }
+        }
+    }
+}
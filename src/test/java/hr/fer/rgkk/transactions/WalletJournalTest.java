@@ -0,0 +1,141 @@
+package hr.fer.rgkk.transactions;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.RegTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.WalletTransaction;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+public class WalletJournalTest {
+
+    private final NetworkParameters networkParameters = RegTestParams.get();
+    private Path directory;
+    private File snapshotFile;
+    private File journalFile;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("journal");
+        snapshotFile = directory.resolve("test.wallet").toFile();
+        journalFile = directory.resolve("test.journal").toFile();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    public void testReplaysChangesWithoutRewritingTheSnapshot() throws Exception {
+        Wallet wallet = new Wallet(networkParameters);
+        wallet.saveToFile(snapshotFile);
+        long snapshotLength = snapshotFile.length();
+        ECKey imported = new ECKey();
+        Script watched = new ScriptBuilder().data(new ECKey().getPubKey()).data(new ECKey().getPubKey()).build();
+
+        try (WalletJournal journal = new WalletJournal(wallet, snapshotFile, journalFile, Integer.MAX_VALUE)) {
+            wallet.freshReceiveKey();
+            wallet.importKey(imported);
+            wallet.addWatchedScripts(Collections.singletonList(watched));
+            Transaction received = payment(wallet, Coin.CENT);
+            wallet.receivePending(received, null);
+            journal.sync();
+            Assert.assertEquals(snapshotLength, snapshotFile.length());
+
+            // As if the process died here
+            File crashedSnapshot = copy(snapshotFile);
+            File crashedJournal = copy(journalFile);
+            WalletJournal.recover(networkParameters, crashedSnapshot, crashedJournal);
+            Wallet restored = Wallet.loadFromFile(crashedSnapshot);
+
+            Assert.assertTrue(restored.hasKey(imported));
+            Assert.assertTrue(restored.isWatchedScript(watched));
+            Assert.assertTrue(restored.getTransactionPool(WalletTransaction.Pool.PENDING)
+                    .containsKey(received.getHash()));
+            Assert.assertEquals(Coin.CENT, restored.getBalance(Wallet.BalanceType.ESTIMATED));
+            Assert.assertEquals(wallet.currentReceiveKey(), restored.currentReceiveKey());
+        }
+        // Closing saves the snapshot and empties the journal
+        Assert.assertEquals(8, journalFile.length());
+        Assert.assertEquals(Coin.CENT, Wallet.loadFromFile(snapshotFile).getBalance(Wallet.BalanceType.ESTIMATED));
+    }
+
+    @Test
+    public void testStaleJournalIsNotReplayedOverNewerSnapshot() throws Exception {
+        Wallet wallet = new Wallet(networkParameters);
+        wallet.saveToFile(snapshotFile);
+        File stale;
+        try (WalletJournal journal = new WalletJournal(wallet, snapshotFile, journalFile, 1)) {
+            wallet.receivePending(payment(wallet, Coin.CENT), null);
+            journal.sync();
+            stale = copy(journalFile);
+            for (int i = 0; i < 10; i++) {
+                wallet.receivePending(payment(wallet, Coin.MILLICOIN), null);
+            }
+            journal.sync();
+        }
+        // A crash right after a compaction saved the snapshot, before it emptied the journal
+        Files.move(stale.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        WalletJournal.recover(networkParameters, snapshotFile, journalFile);
+
+        Wallet restored = Wallet.loadFromFile(snapshotFile);
+        Assert.assertEquals(11, restored.getTransactions(true).size());
+        Assert.assertEquals(wallet.getBalance(Wallet.BalanceType.ESTIMATED),
+                restored.getBalance(Wallet.BalanceType.ESTIMATED));
+    }
+
+    @Test
+    public void testKitKeepsItsWalletAcrossRestarts() throws Exception {
+        try (RegTestPeer peer = new RegTestPeer(networkParameters)) {
+            Sha256Hash funding;
+            try (WalletKit walletKit = new WalletKit(
+                    networkParameters, directory.toFile(), "test", peer, WalletKit.Persistence.JOURNAL
+            )) {
+                Wallet wallet = walletKit.getWallet();
+                funding = peer.fund(wallet.currentReceiveAddress(), Coin.COIN).getHash();
+                wallet.getBalanceFuture(Coin.COIN, Wallet.BalanceType.AVAILABLE).get(10, TimeUnit.SECONDS);
+            }
+
+            try (WalletKit walletKit = new WalletKit(
+                    networkParameters, directory.toFile(), "test", peer, WalletKit.Persistence.JOURNAL
+            )) {
+                Wallet wallet = walletKit.getWallet();
+                Assert.assertEquals(Coin.COIN, wallet.getBalance(Wallet.BalanceType.AVAILABLE));
+                Assert.assertNotNull(wallet.getTransaction(funding));
+            }
+        }
+    }
+
+    private Transaction payment(Wallet wallet, Coin amount) {
+        Transaction transaction = new Transaction(networkParameters);
+        transaction.addInput(Sha256Hash.of(new ECKey().getPubKey()), 0, new ScriptBuilder().build());
+        transaction.addOutput(amount, wallet.currentReceiveAddress());
+        return transaction;
+    }
+
+    private static File copy(File file) throws Exception {
+        File copy = new File(file.getPath() + ".copy");
+        Files.copy(file.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return copy;
+    }
+}
@@ -0,0 +1,141 @@
+package hr.fer.rgkk.transactions;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.PeerAddress;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.RegTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.bitcoinj.wallet.Wallet;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+public class WalletKitTest {
+
+    private final NetworkParameters networkParameters = RegTestParams.get();
+    private Path directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("kit");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    public void testOfflineWorkDoesNotWaitForPeers() throws Exception {
+        // Accepts connections but never completes a handshake
+        try (ServerSocket silent = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            final PeerAddress address = new PeerAddress(networkParameters, silent.getInetAddress(), silent.getLocalPort());
+            PeerBackend peers = new PeerBackend() {
+                @Override
+                public PeerAddress[] getPeerAddresses() {
+                    return new PeerAddress[]{address};
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+
+            WalletKit walletKit = WalletKit.startAsync(networkParameters, directory.toFile(), "test", peers);
+            try {
+                walletKit.walletLoaded().get(10, TimeUnit.SECONDS);
+                walletKit.getWallet().freshReceiveKey();
+
+                PayToPubKeyHash contract = new PayToPubKeyHash(walletKit, networkParameters);
+                Script lockingScript = contract.createLockingScript();
+                Transaction funding = new Transaction(networkParameters);
+                funding.addInput(Sha256Hash.of(new ECKey().getPubKey()), 0, new ScriptBuilder().build());
+                funding.addOutput(Coin.COIN, lockingScript);
+                Transaction redemption = contract.createUnsignedRedemptionTransaction(
+                        funding.getOutput(0), walletKit.getWallet().currentReceiveAddress()
+                );
+                Script unlockingScript = contract.createUnlockingScript(redemption);
+                contract.testScript(lockingScript, unlockingScript, redemption);
+
+                Assert.assertFalse(walletKit.peersConnected().isDone());
+                Assert.assertFalse(walletKit.synced().isDone());
+            } finally {
+                walletKit.close();
+            }
+            try {
+                walletKit.synced().get(10, TimeUnit.SECONDS);
+                Assert.fail("Closed before it synced");
+            } catch (ExecutionException expected) {
+                // Never reached a peer
+            }
+        }
+    }
+
+    @Test
+    public void testRestoresOfflineWithoutPeers() throws Exception {
+        PeerBackend none = new PeerBackend() {
+            @Override
+            public PeerAddress[] getPeerAddresses() {
+                return new PeerAddress[0];
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        final Context context = new Context(networkParameters);
+        final Wallet wallet = new Wallet(context);
+        final BlockStore blockStore = new MemoryBlockStore(networkParameters);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<WalletKit> restoring = executor.submit(() -> {
+                Context.propagate(context);
+                return new WalletKit(context, wallet, blockStore, none);
+            });
+            try (WalletKit walletKit = restoring.get(10, TimeUnit.SECONDS)) {
+                Assert.assertSame(wallet, walletKit.getWallet());
+                Assert.assertFalse(walletKit.synced().isDone());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testReadinessFuturesComplete() throws Exception {
+        try (RegTestPeer peer = new RegTestPeer(networkParameters)) {
+            for (int i = 0; i < 20; i++) {
+                peer.mineBlock();
+            }
+            try (WalletKit walletKit = WalletKit.startAsync(networkParameters, directory.toFile(), "test", peer)) {
+                Assert.assertSame(walletKit, walletKit.synced().get(30, TimeUnit.SECONDS));
+                Assert.assertTrue(walletKit.walletLoaded().isDone());
+                Assert.assertTrue(walletKit.peersConnected().isDone());
+                Assert.assertEquals(peer.getChainHeight(), walletKit.getChain().getBestChainHeight());
+            }
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package hr.fer.rgkk.transactions;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.params.RegTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.wallet.SendRequest;
+import org.bitcoinj.wallet.Wallet;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+public class WalletPrunerTest {
+
+    private final NetworkParameters networkParameters = RegTestParams.get();
+    private Path directory;
+    private RegTestPeer peer;
+    private WalletKit walletKit;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("pruner");
+        peer = new RegTestPeer(networkParameters);
+        walletKit = new WalletKit(networkParameters, directory.resolve("wallet").toFile(), "test", peer);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        walletKit.close();
+        peer.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    public void testArchivesSettledTransactionsOnly() throws Exception {
+        Wallet wallet = walletKit.getWallet();
+        Assert.assertTrue(wallet instanceof PrunableWallet);
+        Sha256Hash funding = peer.fund(wallet.currentReceiveAddress(), Coin.COIN).getHash();
+        wallet.getBalanceFuture(Coin.COIN, Wallet.BalanceType.AVAILABLE).get(10, TimeUnit.SECONDS);
+        // Spends the funding output, sends part of it away and keeps the change
+        Transaction spend = send(wallet, Coin.CENT);
+        Sha256Hash kept = peer.fund(wallet.currentReceiveAddress(), Coin.COIN).getHash();
+
+        File archiveFile = directory.resolve("archive").toFile();
+        try (WalletPruner pruner = new WalletPruner((PrunableWallet) wallet, null, archiveFile, 3, 0)) {
+            Assert.assertEquals("Not deep enough yet", 0, pruner.prune());
+
+            mine(3);
+            Coin balance = wallet.getBalance(Wallet.BalanceType.AVAILABLE);
+            Assert.assertEquals(1, pruner.prune());
+            Assert.assertNull(wallet.getTransaction(funding));
+            // Both still have unspent outputs
+            Assert.assertNotNull(wallet.getTransaction(spend.getHash()));
+            Assert.assertNotNull(wallet.getTransaction(kept));
+            Assert.assertEquals(balance, wallet.getBalance(Wallet.BalanceType.AVAILABLE));
+            Assert.assertTrue(wallet.isConsistent());
+            Assert.assertEquals(0, pruner.prune());
+
+            // The wallet can still spend what's left
+            send(wallet, Coin.CENT);
+        }
+
+        Set<Sha256Hash> archived = new HashSet<>();
+        for (WalletPruner.Archived transaction : WalletPruner.readArchive(networkParameters, archiveFile)) {
+            archived.add(transaction.getTransaction().getHash());
+            Assert.assertTrue(transaction.getHeight() > 0);
+        }
+        Assert.assertEquals(Collections.singleton(funding), archived);
+    }
+
+    @Test
+    public void testKeepsHistoryWithinBudget() throws Exception {
+        Wallet wallet = walletKit.getWallet();
+        List<Transaction> fundings = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            fundings.add(peer.fund(wallet.currentReceiveAddress(), Coin.COIN));
+        }
+        wallet.getBalanceFuture(Coin.COIN.multiply(5), Wallet.BalanceType.AVAILABLE).get(10, TimeUnit.SECONDS);
+        // Spends all five outputs
+        Transaction sweep = wallet.sendCoins(SendRequest.emptyWallet(new ECKey().toAddress(networkParameters))).tx;
+        waitForDepth(sweep, 1);
+        mine(3);
+        Assert.assertEquals(6, wallet.getTransactions(true).size());
+
+        File archiveFile = directory.resolve("archive").toFile();
+        PrunableWallet prunable = (PrunableWallet) wallet;
+        long bytes = prunable.getTransactionBytes();
+        try (WalletPruner pruner = new WalletPruner(prunable, walletKit.getChain(), archiveFile, 3,
+                bytes * WalletPruner.HEAP_PER_SERIALIZED_BYTE)) {
+            Assert.assertEquals(0, pruner.prune());
+        }
+        // Room for all but the two oldest
+        long budget = (bytes - fundings.get(0).bitcoinSerialize().length - fundings.get(1).bitcoinSerialize().length)
+                * WalletPruner.HEAP_PER_SERIALIZED_BYTE;
+        try (WalletPruner pruner = new WalletPruner(prunable, walletKit.getChain(), archiveFile, 3, budget)) {
+            Assert.assertEquals(2, pruner.prune());
+            Assert.assertTrue(pruner.estimateHeapBytes() <= budget);
+            Assert.assertNull(wallet.getTransaction(fundings.get(0).getHash()));
+            Assert.assertNull(wallet.getTransaction(fundings.get(1).getHash()));
+            Assert.assertNotNull(wallet.getTransaction(fundings.get(2).getHash()));
+            Assert.assertTrue(wallet.isConsistent());
+
+            // Pruning follows the chain as well
+            peer.fund(wallet.currentReceiveAddress(), Coin.COIN);
+            mine(3);
+            long deadline = System.currentTimeMillis() + 10000;
+            while (pruner.estimateHeapBytes() > budget && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertTrue(pruner.estimateHeapBytes() <= budget);
+            Assert.assertNull(wallet.getTransaction(fundings.get(2).getHash()));
+        }
+        Assert.assertEquals(3, WalletPruner.readArchive(networkParameters, archiveFile).size());
+    }
+
+    @Test
+    public void testKeepsUnredeemedContractOutputs() throws Exception {
+        Wallet wallet = walletKit.getWallet();
+        Sha256Hash funding = peer.fund(wallet.currentReceiveAddress(), Coin.COIN).getHash();
+        wallet.getBalanceFuture(Coin.COIN, Wallet.BalanceType.AVAILABLE).get(10, TimeUnit.SECONDS);
+        CoinToss contract = CoinToss.of(
+                walletKit, networkParameters, CoinToss.CoinTossChoice.ZERO, CoinToss.CoinTossChoice.ONE,
+                CoinToss.WinningPlayer.HEAD
+        );
+        Script lockingScript = contract.createLockingScript();
+        Transaction locking = contract.createOutgoingTransaction(lockingScript, Coin.CENT);
+        contract.sendTransaction(locking);
+        waitForDepth(locking, 1);
+        // Spends the change, leaving only the contract output of the locking transaction
+        Transaction sweep = wallet.sendCoins(SendRequest.emptyWallet(new ECKey().toAddress(networkParameters))).tx;
+        waitForDepth(sweep, 1);
+        mine(3);
+
+        File archiveFile = directory.resolve("archive").toFile();
+        try (WalletPruner pruner = new WalletPruner((PrunableWallet) wallet, null, archiveFile, 3, 0)) {
+            Assert.assertEquals(2, pruner.prune());
+            Assert.assertNull(wallet.getTransaction(funding));
+            Assert.assertNull(wallet.getTransaction(sweep.getHash()));
+            Assert.assertNotNull(wallet.getTransaction(locking.getHash()));
+            Assert.assertEquals(0, pruner.prune());
+        }
+        // Still redeemable through the wallet
+        TransactionOutput output = null;
+        for (TransactionOutput candidate : wallet.getTransaction(locking.getHash()).getOutputs()) {
+            if (candidate.getScriptPubKey().equals(lockingScript)) {
+                output = candidate;
+            }
+        }
+        Transaction redemption = contract.createUnsignedRedemptionTransaction(output, contract.getReceiveAddress());
+        contract.testScript(lockingScript, contract.createUnlockingScript(redemption), redemption);
+    }
+
+    private Transaction send(Wallet wallet, Coin amount) throws Exception {
+        Transaction transaction = wallet.sendCoins(
+                walletKit.getPeerGroup(), new ECKey().toAddress(networkParameters), amount
+        ).tx;
+        waitForDepth(transaction, 1);
+        return transaction;
+    }
+
+    private void mine(int blocks) throws Exception {
+        int height = peer.getChainHeight() + blocks;
+        for (int i = 0; i < blocks; i++) {
+            peer.mineBlock();
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while (walletKit.getChain().getBestChainHeight() < height && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(height, walletKit.getChain().getBestChainHeight());
+    }
+
+    private static void waitForDepth(Transaction transaction, int depth) throws Exception {
+        transaction.getConfidence().getDepthFuture(depth).get(10, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,108 @@
+package hr.fer.rgkk.transactions;
+
+import com.google.common.collect.ImmutableList;
+import org.bitcoinj.core.BloomFilter;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.PeerFilterProvider;
+import org.bitcoinj.net.FilterMerger;
+import org.bitcoinj.params.RegTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.utils.Threading;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.listeners.ScriptsChangeEventListener;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.bitcoinj.script.ScriptOpCodes.OP_CHECKMULTISIG;
+
+public class WatchedScriptsTest {
+
+    private final NetworkParameters networkParameters = RegTestParams.get();
+
+    @Test
+    public void testScriptsReachTheWalletInOneBatch() {
+        Wallet wallet = new Wallet(networkParameters);
+        final AtomicInteger changes = new AtomicInteger();
+        wallet.addScriptChangeEventListener(Threading.SAME_THREAD, new ScriptsChangeEventListener() {
+            @Override
+            public void onScriptsChanged(Wallet wallet, List<Script> scripts, boolean isAddingScripts) {
+                changes.incrementAndGet();
+            }
+        });
+
+        try (WatchedScripts watched = new WatchedScripts(wallet, null, 60000)) {
+            for (int i = 0; i < 500; i++) {
+                watched.watch(script());
+            }
+            Assert.assertEquals(500, watched.getPendingCount());
+            Assert.assertTrue(wallet.getWatchedScripts().isEmpty());
+
+            Assert.assertEquals(500, watched.flush());
+            Assert.assertEquals(500, wallet.getWatchedScripts().size());
+            Assert.assertEquals(1, changes.get());
+            Assert.assertEquals(0, watched.flush());
+        }
+    }
+
+    @Test
+    public void testFlushesOnSchedule() throws InterruptedException {
+        Wallet wallet = new Wallet(networkParameters);
+        Script script = script();
+        try (WatchedScripts watched = new WatchedScripts(wallet, null, 20)) {
+            watched.watch(script);
+            long deadline = System.currentTimeMillis() + 10000;
+            while (!wallet.isWatchedScript(script) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertTrue(wallet.isWatchedScript(script));
+            Assert.assertEquals(0, watched.getPendingCount());
+        }
+    }
+
+    @Test
+    public void testFilterKeepsItsSizeAsScriptsAreAdded() {
+        Wallet wallet = new Wallet(networkParameters);
+        FilterMerger merger = new FilterMerger(0.0001);
+        List<Script> all = new ArrayList<>();
+        Set<Integer> sizes = new HashSet<>();
+        try (WatchedScripts watched = new WatchedScripts(wallet, null, 60000)) {
+            ImmutableList<PeerFilterProvider> providers = ImmutableList.<PeerFilterProvider>of(wallet, watched);
+            for (int batch = 0; batch < 40; batch++) {
+                for (int i = 0; i < 50; i++) {
+                    Script script = script();
+                    all.add(script);
+                    watched.watch(script);
+                }
+                watched.flush();
+                sizes.add(merger.calculate(providers).filter.bitcoinSerialize().length);
+            }
+            Assert.assertTrue(watched.getCapacity() >= 2 * all.size());
+
+            BloomFilter filter = merger.getLastFilter();
+            for (Script script : all) {
+                Assert.assertTrue(filter.contains(script.getChunks().get(1).data));
+                Assert.assertTrue(filter.contains(script.getChunks().get(2).data));
+            }
+        }
+        // 1024 doubled up to 4096 elements, plus the first filter
+        Assert.assertTrue("Filter sizes: " + sizes, sizes.size() <= 3);
+    }
+
+    /**
+     * 1-of-2 multisig, two data elements like a {@link TimeLock}.
+     */
+    private static Script script() {
+        return new ScriptBuilder()
+                .smallNum(1).data(new ECKey().getPubKey()).data(new ECKey().getPubKey()).smallNum(2)
+                .op(OP_CHECKMULTISIG)
+                .build();
+    }
+}